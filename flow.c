@@ -1,13 +1,15 @@
 #include "flow.h"
 #include "math.h"
     
-void flowRepeat(int size,float height[],float water[],int repeat) {
+float flowRepeat(int size,float height[],float water[],int repeat) {
+    float moved = 0;
     for ( int i = 0 ; i < repeat ; i++) {
-      flow(size,height,water);
+      moved = flow(size,height,water);
     }
+    return moved;
 } 
 
-void flow(int size,float height[],float water[]) 
+float flow(int size,float height[],float water[]) 
 {
         // 1000 - flow() time: 15 ms (total: 17217 ms)
         // 1000 - flow() time: 16 ms (total: 16102 ms)
@@ -23,11 +25,11 @@ void flow(int size,float height[],float water[])
         // below the current node's level (water+height)
         // so water needs to be re-distributed there
         int neighbours[8];
+        float moved = 0;
         int ptr;
-        // TODO: Code currently cheats and ignores the border area as
-        // TODO: we'd need to do lots of additional comparisons to detect
-        // TODO: those boundary cases (OR duplicate the loop and
-        // TODO: deal with the first/last row/column separately)
+        // The outermost ring of cells is not handled here as
+        // we'd need to do lots of additional comparisons to detect
+        // those boundary cases, see flowBorder()
         for (int y = 1 , ymax = size-1 ; y < ymax ; y++)
         {
             ptr = y*size+1;
@@ -64,6 +66,7 @@ void flow(int size,float height[],float water[])
                     float fraction = excessWater / pointCount;
                     float newValue = currentWater - excessWater;
                     water[ptr] = newValue < EPSILON ? 0 : newValue;
+                    moved += excessWater;
                     for ( int i = pointCount-1 ; i >= 0 ; i-- )
                     {
                         int offset = neighbours[i];
@@ -73,4 +76,492 @@ void flow(int size,float height[],float water[])
                 }
             }
         }
+        return moved + flowBorder(size,height,water);
+}
+
+static float flowBorderCell(int size,float height[],float water[],int x,int y)
+{
+        int ptr = y*size+x;
+        float currentWater = water[ptr];
+        if ( currentWater == 0 ) {
+            // no water in this cell
+            return 0;
+        }
+        // true height (ground height + water height)
+        float currentHeight = currentWater + height[ptr];
+        int neighbours[8];
+        int pointCount = 0;
+        float heightSum = 0;
+        for ( int dy = -1 ; dy <= 1 ; dy++ )
+        {
+            int ny = y + dy;
+            if ( ny < 0 || ny >= size ) {
+                continue;
+            }
+            for ( int dx = -1 ; dx <= 1 ; dx++ )
+            {
+                int nx = x + dx;
+                if ( nx < 0 || nx >= size || ( dx == 0 && dy == 0 ) ) {
+                    continue;
+                }
+                int offset = ny*size+nx;
+                float otherHeight = water[offset]+height[offset];
+                if ( otherHeight < currentHeight )
+                {
+                    // ok, downstream
+                    heightSum += otherHeight;
+                    neighbours[pointCount++] = offset;
+                }
+            }
+        }
+
+        if ( pointCount > 0 )
+        {
+            float avgHeight = heightSum / pointCount;
+            float h = currentHeight - avgHeight;
+            float excessWater = currentWater < h ? currentWater : h;
+
+            float fraction = excessWater / pointCount;
+            float newValue = currentWater - excessWater;
+            water[ptr] = newValue < EPSILON ? 0 : newValue;
+            for ( int i = pointCount-1 ; i >= 0 ; i-- )
+            {
+                water[neighbours[i]] += fraction;
+            }
+            return excessWater;
+        }
+        return 0;
+}
+
+float flowBorder(int size,float height[],float water[])
+{
+        float moved = 0;
+        if ( size < 2 ) {
+            return moved;
+        }
+        for ( int x = 0 ; x < size ; x++ )
+        {
+            moved += flowBorderCell(size,height,water,x,0);
+            moved += flowBorderCell(size,height,water,x,size-1);
+        }
+        for ( int y = 1 ; y < size-1 ; y++ )
+        {
+            moved += flowBorderCell(size,height,water,0,y);
+            moved += flowBorderCell(size,height,water,size-1,y);
+        }
+        return moved;
+}
+
+/*
+ * flowRepeatParallel() and helpers.
+ */
+
+#include <pthread.h>
+#include <stdlib.h>
+#include <string.h>
+
+// same as Data.EPSILON, so results match the Java gather engine
+#define GATHER_EPSILON 0.0001f
+
+typedef struct {
+    int size;
+    int repeat;
+    int threadCount;
+    const float *height;
+    float *water;
+    float *waterNext;
+    float *outflow;
+    // height+water, computed once per iteration
+    float *surface;
+    float *surfaceNext;
+    pthread_barrier_t barrier;
+    // threads wait for state to become 1 (run) or -1 (abort) before starting
+    pthread_mutex_t lock;
+    pthread_cond_t stateChanged;
+    int state;
+    // water moved during the last iteration, per thread
+    float *moved;
+    // invoked by the first thread every progressInterval iterations, may be NULL
+    FlowProgress progress;
+    int progressInterval;
+    // checked by the first thread after each iteration, may be NULL
+    const volatile int *cancel;
+    // set by the first thread when the progress callback or the cancel flag asks to stop
+    int cancelled;
+    int iterationsDone;
+} GatherJob;
+
+typedef struct {
+    GatherJob *job;
+    int index;
+} GatherThread;
+
+/*
+ * First phase for a cell next to the edge of the height map.
+ */
+static float computeOutflowChecked(int size,const float *surface,const float *water,float *outflow,float *waterNext,int x,int y)
+{
+    int ptr = y*size+x;
+    float currentWater = water[ptr];
+    if ( currentWater == 0 ) {
+        outflow[ptr] = 0;
+        waterNext[ptr] = 0;
+        return 0;
+    }
+    float currentHeight = surface[ptr];
+    int pointCount = 0;
+    float heightSum = 0;
+    for ( int dy = -1 ; dy <= 1 ; dy++ )
+    {
+        int ny = y + dy;
+        if ( ny < 0 || ny >= size ) {
+            continue;
+        }
+        for ( int dx = -1 ; dx <= 1 ; dx++ )
+        {
+            int nx = x + dx;
+            if ( nx < 0 || nx >= size || ( dx == 0 && dy == 0 ) ) {
+                continue;
+            }
+            float otherHeight = surface[ny*size+nx];
+            if ( otherHeight < currentHeight ) {
+                heightSum += otherHeight;
+                pointCount++;
+            }
+        }
+    }
+    if ( pointCount == 0 ) {
+        outflow[ptr] = 0;
+        waterNext[ptr] = currentWater;
+        return 0;
+    }
+    float h = currentHeight - heightSum / pointCount;
+    float excessWater = currentWater < h ? currentWater : h;
+    float newValue = currentWater - excessWater;
+    outflow[ptr] = excessWater / pointCount;
+    waterNext[ptr] = newValue < GATHER_EPSILON ? 0 : newValue;
+    return excessWater;
+}
+
+/*
+ * First phase for cells 1...size-2 of a row that is not the first or last one.
+ *
+ * Branch-free so that gcc -O3 can vectorize it, results are the same as
+ * computeOutflowChecked() as adding 0 does not change the sum.
+ */
+static float computeOutflowRow(int size,const float *restrict surface,const float *restrict water,float *restrict outflow,float *restrict waterNext,int y)
+{
+    const float *above = surface + (y-1)*size;
+    const float *row = surface + y*size;
+    const float *below = surface + (y+1)*size;
+    const float *rowWater = water + y*size;
+    float *rowOutflow = outflow + y*size;
+    float *rowWaterNext = waterNext + y*size;
+    float moved = 0;
+    for ( int x = 1 ; x < size-1 ; x++ )
+    {
+        float currentWater = rowWater[x];
+        float currentHeight = row[x];
+        float n0 = above[x-1], n1 = above[x], n2 = above[x+1];
+        float n3 = row[x-1], n4 = row[x+1];
+        float n5 = below[x-1], n6 = below[x], n7 = below[x+1];
+        float heightSum = 0;
+        float pointCount = 0;
+        heightSum += n0 < currentHeight ? n0 : 0; pointCount += n0 < currentHeight ? 1 : 0;
+        heightSum += n1 < currentHeight ? n1 : 0; pointCount += n1 < currentHeight ? 1 : 0;
+        heightSum += n2 < currentHeight ? n2 : 0; pointCount += n2 < currentHeight ? 1 : 0;
+        heightSum += n3 < currentHeight ? n3 : 0; pointCount += n3 < currentHeight ? 1 : 0;
+        heightSum += n4 < currentHeight ? n4 : 0; pointCount += n4 < currentHeight ? 1 : 0;
+        heightSum += n5 < currentHeight ? n5 : 0; pointCount += n5 < currentHeight ? 1 : 0;
+        heightSum += n6 < currentHeight ? n6 : 0; pointCount += n6 < currentHeight ? 1 : 0;
+        heightSum += n7 < currentHeight ? n7 : 0; pointCount += n7 < currentHeight ? 1 : 0;
+
+        // dry cells and cells without downstream neighbours keep their water
+        int flows = currentWater != 0 && pointCount > 0;
+        float divisor = flows ? pointCount : 1;
+        float h = currentHeight - heightSum / divisor;
+        float excessWater = currentWater < h ? currentWater : h;
+        excessWater = flows ? excessWater : 0;
+        float newValue = currentWater - excessWater;
+        rowOutflow[x] = excessWater / divisor;
+        rowWaterNext[x] = flows && newValue < GATHER_EPSILON ? 0 : newValue;
+        moved += excessWater;
+    }
+    return moved;
+}
+
+/*
+ * Second phase for a single cell, returns the amount of water it holds afterwards.
+ */
+static float gatherInflowChecked(int size,const float *surface,const float *outflow,float *waterNext,int x,int y)
+{
+    int ptr = y*size+x;
+    float currentHeight = surface[ptr];
+    float inflow = 0;
+    for ( int dy = -1 ; dy <= 1 ; dy++ )
+    {
+        int ny = y + dy;
+        if ( ny < 0 || ny >= size ) {
+            continue;
+        }
+        for ( int dx = -1 ; dx <= 1 ; dx++ )
+        {
+            int nx = x + dx;
+            if ( nx < 0 || nx >= size || ( dx == 0 && dy == 0 ) ) {
+                continue;
+            }
+            int offset = ny*size+nx;
+            if ( surface[offset] > currentHeight ) {
+                inflow += outflow[offset];
+            }
+        }
+    }
+    waterNext[ptr] += inflow;
+    return waterNext[ptr];
+}
+
+/*
+ * Second phase for cells 1...size-2 of a row that is not the first or last one.
+ */
+static void gatherInflowRow(int size,const float *restrict surface,const float *restrict outflow,float *restrict waterNext,int y)
+{
+    const float *above = surface + (y-1)*size;
+    const float *row = surface + y*size;
+    const float *below = surface + (y+1)*size;
+    const float *outAbove = outflow + (y-1)*size;
+    const float *outRow = outflow + y*size;
+    const float *outBelow = outflow + (y+1)*size;
+    float *rowWaterNext = waterNext + y*size;
+    for ( int x = 1 ; x < size-1 ; x++ )
+    {
+        float currentHeight = row[x];
+        float inflow = 0;
+        inflow += above[x-1] > currentHeight ? outAbove[x-1] : 0;
+        inflow += above[x] > currentHeight ? outAbove[x] : 0;
+        inflow += above[x+1] > currentHeight ? outAbove[x+1] : 0;
+        inflow += row[x-1] > currentHeight ? outRow[x-1] : 0;
+        inflow += row[x+1] > currentHeight ? outRow[x+1] : 0;
+        inflow += below[x-1] > currentHeight ? outBelow[x-1] : 0;
+        inflow += below[x] > currentHeight ? outBelow[x] : 0;
+        inflow += below[x+1] > currentHeight ? outBelow[x+1] : 0;
+        rowWaterNext[x] += inflow;
+    }
+}
+
+static float sumMoved(GatherJob *job)
+{
+    float result = 0;
+    for ( int i = 0 ; i < job->threadCount ; i++ ) {
+        result += job->moved[i];
+    }
+    return result;
+}
+
+static void setState(GatherJob *job,int state)
+{
+    pthread_mutex_lock( &job->lock );
+    job->state = state;
+    pthread_cond_broadcast( &job->stateChanged );
+    pthread_mutex_unlock( &job->lock );
+}
+
+static void *runGatherThread(void *arg)
+{
+    GatherThread *thread = (GatherThread*) arg;
+    GatherJob *job = thread->job;
+
+    pthread_mutex_lock( &job->lock );
+    while ( job->state == 0 ) {
+        pthread_cond_wait( &job->stateChanged, &job->lock );
+    }
+    const int state = job->state;
+    pthread_mutex_unlock( &job->lock );
+    if ( state < 0 ) {
+        return NULL;
+    }
+    const int size = job->size;
+    const float *height = job->height;
+    // rows are split evenly between threads, ranges may be empty if there are more threads than rows
+    const int firstRow = (int) ( (long long) size * thread->index / job->threadCount );
+    const int lastRow = (int) ( (long long) size * ( thread->index + 1 ) / job->threadCount );
+
+    float *water = job->water;
+    float *waterNext = job->waterNext;
+    float *surface = job->surface;
+    float *surfaceNext = job->surfaceNext;
+
+    for ( int ptr = firstRow*size ; ptr < lastRow*size ; ptr++ ) {
+        surface[ptr] = water[ptr] + height[ptr];
+    }
+    pthread_barrier_wait( &job->barrier );
+
+    float moved = 0;
+    for ( int i = 0 ; i < job->repeat ; i++ )
+    {
+        moved = 0;
+        for ( int y = firstRow ; y < lastRow ; y++ )
+        {
+            if ( y == 0 || y == size-1 || size < 3 )
+            {
+                for ( int x = 0 ; x < size ; x++ ) {
+                    moved += computeOutflowChecked( size, surface, water, job->outflow, waterNext, x, y );
+                }
+                continue;
+            }
+            moved += computeOutflowChecked( size, surface, water, job->outflow, waterNext, 0, y );
+            moved += computeOutflowRow( size, surface, water, job->outflow, waterNext, y );
+            moved += computeOutflowChecked( size, surface, water, job->outflow, waterNext, size-1, y );
+        }
+        pthread_barrier_wait( &job->barrier );
+
+        for ( int y = firstRow ; y < lastRow ; y++ )
+        {
+            if ( y == 0 || y == size-1 || size < 3 )
+            {
+                for ( int x = 0 ; x < size ; x++ ) {
+                    gatherInflowChecked( size, surface, job->outflow, waterNext, x, y );
+                }
+            }
+            else
+            {
+                gatherInflowChecked( size, surface, job->outflow, waterNext, 0, y );
+                gatherInflowRow( size, surface, job->outflow, waterNext, y );
+                gatherInflowChecked( size, surface, job->outflow, waterNext, size-1, y );
+            }
+            for ( int ptr = y*size, end = ptr + size ; ptr < end ; ptr++ ) {
+                surfaceNext[ptr] = waterNext[ptr] + height[ptr];
+            }
+        }
+        job->moved[thread->index] = moved;
+        pthread_barrier_wait( &job->barrier );
+
+        // every thread swaps its own copies of the pointers
+        float *tmp = water;
+        water = waterNext;
+        waterNext = tmp;
+        tmp = surface;
+        surface = surfaceNext;
+        surfaceNext = tmp;
+
+        const int done = i + 1;
+        if ( thread->index == 0 ) {
+            job->iterationsDone = done;
+        }
+        // the final progress report is done after all threads finished
+        const int report = job->progress != NULL && done % job->progressInterval == 0 && done < job->repeat;
+        const int check = job->cancel != NULL && done < job->repeat;
+        if ( report || check )
+        {
+            if ( thread->index == 0 )
+            {
+                // the progress callback may have set the cancel flag itself
+                if ( report && ! job->progress( done, sumMoved( job ) ) ) {
+                    job->cancelled = 1;
+                } else if ( check && *job->cancel ) {
+                    job->cancelled = 1;
+                }
+            }
+            // all threads must agree on whether to stop
+            pthread_barrier_wait( &job->barrier );
+            if ( job->cancelled ) {
+                break;
+            }
+        }
+    }
+    // an odd number of iterations leaves the result in the scratch buffer
+    if ( water != job->water ) {
+        memcpy( job->water + firstRow*size, water + firstRow*size, (size_t) (lastRow-firstRow)*size*sizeof(float) );
+    }
+    return NULL;
+}
+
+float flowRepeatParallel(int size,float height[],float water[],int repeat,int threadCount)
+{
+    return flowRepeatParallelProgress( size, height, water, repeat, threadCount, 0, NULL );
+}
+
+float flowRepeatParallelProgress(int size,float height[],float water[],int repeat,int threadCount,int progressInterval,FlowProgress progress)
+{
+    return flowRepeatParallelCancel( size, height, water, repeat, threadCount, progressInterval, progress, NULL );
+}
+
+float flowRepeatParallelCancel(int size,float height[],float water[],int repeat,int threadCount,int progressInterval,FlowProgress progress,
+                               const volatile int *cancel)
+{
+    if ( repeat < 1 || size < 1 ) {
+        return 0;
+    }
+    if ( threadCount < 1 ) {
+        threadCount = 1;
+    }
+    if ( threadCount > size ) {
+        threadCount = size;
+    }
+    const size_t cells = (size_t) size * size;
+    GatherJob job;
+    job.size = size;
+    job.repeat = repeat;
+    job.threadCount = threadCount;
+    job.progress = progressInterval > 0 ? progress : NULL;
+    job.progressInterval = progressInterval;
+    job.cancel = cancel;
+    job.cancelled = 0;
+    job.iterationsDone = 0;
+    job.height = height;
+    job.water = water;
+    job.waterNext = malloc( cells * sizeof(float) );
+    job.outflow = malloc( cells * sizeof(float) );
+    job.surface = malloc( cells * sizeof(float) );
+    job.surfaceNext = malloc( cells * sizeof(float) );
+    job.moved = calloc( threadCount, sizeof(float) );
+    GatherThread *threads = malloc( threadCount * sizeof(GatherThread) );
+    pthread_t *handles = malloc( threadCount * sizeof(pthread_t) );
+    float result = -1;
+    job.state = 0;
+    if ( job.waterNext && job.outflow && job.surface && job.surfaceNext && job.moved && threads && handles &&
+         pthread_barrier_init( &job.barrier, NULL, threadCount ) == 0 )
+    {
+        pthread_mutex_init( &job.lock, NULL );
+        pthread_cond_init( &job.stateChanged, NULL );
+        // the calling thread does the work of the first thread
+        int started = 1;
+        for ( ; started < threadCount ; started++ )
+        {
+            threads[started].job = &job;
+            threads[started].index = started;
+            if ( pthread_create( &handles[started], NULL, runGatherThread, &threads[started] ) != 0 ) {
+                break;
+            }
+        }
+        if ( started == threadCount )
+        {
+            setState( &job, 1 );
+            threads[0].job = &job;
+            threads[0].index = 0;
+            runGatherThread( &threads[0] );
+        } else {
+            setState( &job, -1 );
+        }
+        for ( int i = 1 ; i < started ; i++ ) {
+            pthread_join( handles[i], NULL );
+        }
+        pthread_cond_destroy( &job.stateChanged );
+        pthread_mutex_destroy( &job.lock );
+        pthread_barrier_destroy( &job.barrier );
+        if ( started == threadCount )
+        {
+            result = sumMoved( &job );
+            if ( job.progress != NULL ) {
+                job.progress( job.iterationsDone, result );
+            }
+        }
+    }
+    free( handles );
+    free( threads );
+    free( job.moved );
+    free( job.surfaceNext );
+    free( job.surface );
+    free( job.outflow );
+    free( job.waterNext );
+    return result;
 }
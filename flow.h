@@ -3,8 +3,41 @@
 
 #define EPSILON 0.001
     
-void flowRepeat(int size,float height[],float water[],int repeat);
+/*
+ * All functions return the total amount of water that
+ * flowed from one cell to another (during the last iteration).
+ */
+float flowRepeat(int size,float height[],float water[],int repeat);
 
-void flow(int size,float height[],float water[]);
+float flow(int size,float height[],float water[]);
+
+float flowBorder(int size,float height[],float water[]);
+
+/*
+ * Race-free variant of flowRepeat() that runs each iteration in two phases (every cell
+ * first determines its outflow, then pulls in the outflow of its upstream neighbours), with rows
+ * split between threadCount threads. Results match the JAVA_GATHER engine and do not depend
+ * on the number of threads. Returns -1 if memory or threads could not be allocated.
+ */
+float flowRepeatParallel(int size,float height[],float water[],int repeat,int threadCount);
+
+/*
+ * Invoked with the number of iterations done so far and the total amount of water
+ * moved during the last iteration. Returning 0 stops the computation.
+ */
+typedef int (*FlowProgress)(int iteration,float moved);
+
+/*
+ * Same as flowRepeatParallel() but invokes a callback every progressInterval iterations (from the calling thread)
+ * and once more with the number of iterations actually run after stopping, the return value of the last call is ignored.
+ */
+float flowRepeatParallelProgress(int size,float height[],float water[],int repeat,int threadCount,int progressInterval,FlowProgress progress);
+
+/*
+ * Same as flowRepeatParallelProgress() but also stops as soon as *cancel is non-zero, which gets checked after
+ * each iteration. cancel may be changed by other threads while running and may be NULL.
+ */
+float flowRepeatParallelCancel(int size,float height[],float water[],int repeat,int threadCount,int progressInterval,FlowProgress progress,
+                               const volatile int *cancel);
 
 #endif
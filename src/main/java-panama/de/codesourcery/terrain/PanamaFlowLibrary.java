@@ -0,0 +1,206 @@
+package de.codesourcery.terrain;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.FunctionDescriptor;
+import java.lang.foreign.Linker;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.SymbolLookup;
+import java.lang.foreign.ValueLayout;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.file.Path;
+
+/**
+ * {@link FlowLibrary} that calls <code>libflow.so</code> through downcall handles of the foreign function
+ * API, passing grids as {@link MemorySegment}s instead of having JNA marshal the arguments on every call.
+ *
+ * Direct buffers are passed as they are. Heap buffers are accessed in-place by single iterations only
+ * (critical downcalls pin the arrays), longer runs copy them into native memory once per call.
+ *
+ * Requires JDK 22+ both at compile- and runtime (see <code>panama</code> profile in pom.xml), gets loaded
+ * through reflection by {@link NativeFlowEngine} which falls back to JNA otherwise. Run with
+ * <code>--enable-native-access=ALL-UNNAMED</code> to avoid warnings about restricted methods.
+ */
+public final class PanamaFlowLibrary implements FlowLibrary
+{
+    private static final FunctionDescriptor FLOW = FunctionDescriptor.of( ValueLayout.JAVA_FLOAT,
+            ValueLayout.JAVA_INT, ValueLayout.ADDRESS, ValueLayout.ADDRESS );
+
+    private static final FunctionDescriptor FLOW_REPEAT = FunctionDescriptor.of( ValueLayout.JAVA_FLOAT,
+            ValueLayout.JAVA_INT, ValueLayout.ADDRESS, ValueLayout.ADDRESS, ValueLayout.JAVA_INT );
+
+    private static final FunctionDescriptor FLOW_REPEAT_PARALLEL = FunctionDescriptor.of( ValueLayout.JAVA_FLOAT,
+            ValueLayout.JAVA_INT, ValueLayout.ADDRESS, ValueLayout.ADDRESS, ValueLayout.JAVA_INT, ValueLayout.JAVA_INT );
+
+    private static final FunctionDescriptor FLOW_REPEAT_PARALLEL_CANCEL = FunctionDescriptor.of( ValueLayout.JAVA_FLOAT,
+            ValueLayout.JAVA_INT, ValueLayout.ADDRESS, ValueLayout.ADDRESS, ValueLayout.JAVA_INT, ValueLayout.JAVA_INT,
+            ValueLayout.JAVA_INT, ValueLayout.ADDRESS, ValueLayout.ADDRESS );
+
+    private static final FunctionDescriptor PROGRESS = FunctionDescriptor.of( ValueLayout.JAVA_INT,
+            ValueLayout.JAVA_INT, ValueLayout.JAVA_FLOAT );
+
+    private static final MethodHandle PROGRESS_TARGET;
+
+    static
+    {
+        try {
+            PROGRESS_TARGET = MethodHandles.lookup().findStatic( PanamaFlowLibrary.class, "progress",
+                    MethodType.methodType( int.class, ProgressCallback.class, int.class, float.class ) );
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError( e );
+        }
+    }
+
+    private final Linker linker = Linker.nativeLinker();
+    private final MethodHandle flow;
+    private final MethodHandle flowRepeat;
+    // null if the library does not export these functions
+    private final MethodHandle flowRepeatParallel;
+    private final MethodHandle flowRepeatParallelCancel;
+
+    // same function but able to access the Java heap directly, pinning the arrays while running.
+    // Only used for single iterations, longer runs would hold up garbage collection and safepoints for too long
+    private final MethodHandle flowHeap;
+
+    public PanamaFlowLibrary()
+    {
+        final Path path = NativeFlowEngine.findLibrary();
+        if ( path == null ) {
+            throw new UnsatisfiedLinkError("Unable to find "+System.mapLibraryName( "flow" )+", set -D"+NativeFlowEngine.LIBRARY_PROPERTY);
+        }
+        final SymbolLookup lookup = SymbolLookup.libraryLookup( path, Arena.global() );
+        final MemorySegment flowSymbol = find( lookup, "flow" );
+        final MemorySegment flowRepeatSymbol = find( lookup, "flowRepeat" );
+        this.flow = linker.downcallHandle( flowSymbol, FLOW );
+        this.flowRepeat = linker.downcallHandle( flowRepeatSymbol, FLOW_REPEAT );
+        this.flowHeap = linker.downcallHandle( flowSymbol, FLOW, Linker.Option.critical( true ) );
+        this.flowRepeatParallel = lookup.find( "flowRepeatParallel" )
+                .map( symbol -> linker.downcallHandle( symbol, FLOW_REPEAT_PARALLEL ) )
+                .orElse( null );
+        this.flowRepeatParallelCancel = lookup.find( "flowRepeatParallelCancel" )
+                .map( symbol -> linker.downcallHandle( symbol, FLOW_REPEAT_PARALLEL_CANCEL ) )
+                .orElse( null );
+    }
+
+    private static MemorySegment find(SymbolLookup lookup,String name)
+    {
+        return lookup.find( name ).orElseThrow( () -> new UnsatisfiedLinkError("Symbol not found: "+name) );
+    }
+
+    @Override
+    public float flowRepeat(int size, FloatBuffer height, FloatBuffer water, int repeat)
+    {
+        final MemorySegment h = MemorySegment.ofBuffer( height );
+        final MemorySegment w = MemorySegment.ofBuffer( water );
+        try ( Arena arena = Arena.ofConfined() )
+        {
+            final MemorySegment nativeHeight = toNative( h, arena );
+            final MemorySegment nativeWater = toNative( w, arena );
+            final float result = (float) flowRepeat.invokeExact( size, nativeHeight, nativeWater, repeat );
+            copyBack( nativeWater, w );
+            return result;
+        }
+        catch(Throwable t)
+        {
+            throw new RuntimeException( t );
+        }
+    }
+
+    @Override
+    public float flowRepeatParallel(int size, FloatBuffer height, FloatBuffer water, int repeat, int threadCount)
+    {
+        if ( flowRepeatParallel == null ) {
+            throw new UnsatisfiedLinkError("Library does not export flowRepeatParallel()");
+        }
+        final MemorySegment h = MemorySegment.ofBuffer( height );
+        final MemorySegment w = MemorySegment.ofBuffer( water );
+        try ( Arena arena = Arena.ofConfined() )
+        {
+            final MemorySegment nativeHeight = toNative( h, arena );
+            final MemorySegment nativeWater = toNative( w, arena );
+            final float result = (float) flowRepeatParallel.invokeExact( size, nativeHeight, nativeWater, repeat, threadCount );
+            copyBack( nativeWater, w );
+            return result;
+        }
+        catch(Throwable t)
+        {
+            throw new RuntimeException( t );
+        }
+    }
+
+    @Override
+    public float flowRepeatParallelCancel(int size, FloatBuffer height, FloatBuffer water, int repeat, int threadCount,
+                                          int progressInterval, ProgressCallback callback, IntBuffer cancel)
+    {
+        if ( flowRepeatParallelCancel == null ) {
+            throw new UnsatisfiedLinkError("Library does not export flowRepeatParallelCancel()");
+        }
+        final MemorySegment h = MemorySegment.ofBuffer( height );
+        final MemorySegment w = MemorySegment.ofBuffer( water );
+        final MemorySegment c = MemorySegment.ofBuffer( cancel );
+        if ( ! c.isNative() ) {
+            // gets written while the native code runs
+            throw new IllegalArgumentException("Cancel flag must be a direct buffer");
+        }
+        try ( Arena arena = Arena.ofConfined() )
+        {
+            final MemorySegment nativeHeight = toNative( h, arena );
+            final MemorySegment nativeWater = toNative( w, arena );
+            final MemorySegment stub = linker.upcallStub( PROGRESS_TARGET.bindTo( callback ), PROGRESS, arena );
+            final float result = (float) flowRepeatParallelCancel.invokeExact( size, nativeHeight, nativeWater, repeat, threadCount, progressInterval, stub, c );
+            copyBack( nativeWater, w );
+            return result;
+        }
+        catch(Throwable t)
+        {
+            throw new RuntimeException( t );
+        }
+    }
+
+    // runs too long to pin heap arrays, so heap segments get copied into native memory once per call
+    private static MemorySegment toNative(MemorySegment segment,Arena arena)
+    {
+        return segment.isNative() ? segment : arena.allocate( segment.byteSize(), Float.BYTES ).copyFrom( segment );
+    }
+
+    private static void copyBack(MemorySegment nativeWater,MemorySegment water)
+    {
+        if ( nativeWater != water ) {
+            water.copyFrom( nativeWater );
+        }
+    }
+
+    // target of the progress upcall, exceptions would crash the JVM
+    private static int progress(ProgressCallback callback,int iteration,float moved)
+    {
+        try {
+            return callback.invoke( iteration, moved ) ? 1 : 0;
+        }
+        catch(Throwable t)
+        {
+            t.printStackTrace();
+            return 0;
+        }
+    }
+
+    @Override
+    public float flow(int size, FloatBuffer height, FloatBuffer water)
+    {
+        final MemorySegment h = MemorySegment.ofBuffer( height );
+        final MemorySegment w = MemorySegment.ofBuffer( water );
+        try
+        {
+            if ( h.isNative() && w.isNative() ) {
+                return (float) flow.invokeExact( size, h, w );
+            }
+            return (float) flowHeap.invokeExact( size, h, w );
+        }
+        catch(Throwable t)
+        {
+            throw new RuntimeException( t );
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package de.codesourcery.terrain;
+
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+import java.awt.Rectangle;
+
+/**
+ * {@link GatherKernel} that uses the JDK Vector API to process
+ * as many cells per step as the CPU's preferred vector width allows (8 for AVX2, 16 for AVX-512).
+ *
+ * Instead of branching, downstream/upstream neighbours are selected using lane masks. All
+ * floating-point operations are done in the same order as in {@link ScalarGatherKernel} so
+ * results are bit-identical. Cells that do not fill a complete vector at the end of a row
+ * are handled by the scalar implementation.
+ *
+ * Requires JDK 16+ and <code>--add-modules jdk.incubator.vector</code> both at compile- and runtime,
+ * see the <code>vector</code> profile in pom.xml .
+ */
+public final class VectorGatherKernel implements GatherKernel
+{
+    private static final VectorSpecies<Float> SPECIES = FloatVector.SPECIES_PREFERRED;
+
+    private static final FloatVector ZERO = FloatVector.zero( SPECIES );
+    private static final FloatVector ONE = FloatVector.broadcast( SPECIES, 1f );
+
+    @Override
+    public float computeOutflow(Rectangle rect, int trueSize, float[] height, float[] water, float[] outflow, float[] waterNext)
+    {
+        // relative offsets to direct neightbours of current cell
+        final int[] relNeighbourOffsets = {-trueSize-1,-trueSize,-trueSize+1,-1,1,trueSize-1,trueSize,trueSize+1};
+
+        final int lanes = SPECIES.length();
+        FloatVector movedSum = ZERO;
+        float moved = 0;
+        for (int y = rect.y, ymax = rect.y + rect.height; y < ymax ; y++)
+        {
+            int ptr = y*trueSize+rect.x;
+            final int end = ptr + rect.width;
+            for ( final int vectorEnd = end - lanes ; ptr <= vectorEnd ; ptr += lanes )
+            {
+                final FloatVector currentWater = FloatVector.fromArray( SPECIES, water, ptr );
+                // true height (ground height + water height)
+                final FloatVector currentHeight = currentWater.add( FloatVector.fromArray( SPECIES, height, ptr ) );
+
+                FloatVector heightSum = ZERO;
+                FloatVector pointCount = ZERO;
+                for (int relOffset : relNeighbourOffsets )
+                {
+                    final int offset = ptr + relOffset;
+                    final FloatVector otherHeight = FloatVector.fromArray( SPECIES, water, offset )
+                            .add( FloatVector.fromArray( SPECIES, height, offset ) );
+                    final VectorMask<Float> downstream = otherHeight.compare( VectorOperators.LT, currentHeight );
+                    heightSum = heightSum.add( otherHeight, downstream );
+                    pointCount = pointCount.add( ONE, downstream );
+                }
+
+                // lanes without any downstream neighbours divide by zero here, their
+                // results get discarded by the final blend() calls
+                final FloatVector avgHeight = heightSum.div( pointCount );
+                final FloatVector h = currentHeight.sub( avgHeight );
+                final FloatVector excessWater = currentWater.min( h );
+                final FloatVector newValue = currentWater.sub( excessWater );
+                final FloatVector remaining = newValue.blend( ZERO, newValue.compare( VectorOperators.LT, Data.EPSILON ) );
+
+                final VectorMask<Float> hasDownstream = pointCount.compare( VectorOperators.NE, 0 );
+                ZERO.blend( excessWater.div( pointCount ), hasDownstream ).intoArray( outflow, ptr );
+                currentWater.blend( remaining, hasDownstream ).intoArray( waterNext, ptr );
+                movedSum = movedSum.add( excessWater, hasDownstream );
+            }
+            moved += ScalarGatherKernel.computeOutflow( ptr, end - ptr, trueSize, height, water, outflow, waterNext );
+        }
+        return moved + movedSum.reduceLanes( VectorOperators.ADD );
+    }
+
+    @Override
+    public boolean gatherInflow(Rectangle rect, int trueSize, float[] height, float[] water, float[] outflow, float[] waterNext)
+    {
+        // relative offsets to direct neightbours of current cell
+        final int[] relNeighbourOffsets = {-trueSize-1,-trueSize,-trueSize+1,-1,1,trueSize-1,trueSize,trueSize+1};
+
+        final int lanes = SPECIES.length();
+        boolean hasWater = false;
+        for (int y = rect.y, ymax = rect.y + rect.height; y < ymax ; y++)
+        {
+            int ptr = y*trueSize+rect.x;
+            final int end = ptr + rect.width;
+            for ( final int vectorEnd = end - lanes ; ptr <= vectorEnd ; ptr += lanes )
+            {
+                final FloatVector currentHeight = FloatVector.fromArray( SPECIES, water, ptr )
+                        .add( FloatVector.fromArray( SPECIES, height, ptr ) );
+                FloatVector inflow = ZERO;
+                for (int relOffset : relNeighbourOffsets )
+                {
+                    final int offset = ptr + relOffset;
+                    final FloatVector otherHeight = FloatVector.fromArray( SPECIES, water, offset )
+                            .add( FloatVector.fromArray( SPECIES, height, offset ) );
+                    final VectorMask<Float> upstream = otherHeight.compare( VectorOperators.GT, currentHeight );
+                    inflow = inflow.add( FloatVector.fromArray( SPECIES, outflow, offset ), upstream );
+                }
+                final FloatVector newValue = FloatVector.fromArray( SPECIES, waterNext, ptr ).add( inflow );
+                newValue.intoArray( waterNext, ptr );
+                hasWater |= newValue.compare( VectorOperators.NE, 0 ).anyTrue();
+            }
+            hasWater |= ScalarGatherKernel.gatherInflow( ptr, end - ptr, trueSize, height, water, outflow, waterNext );
+        }
+        return hasWater;
+    }
+}
@@ -0,0 +1,231 @@
+package de.codesourcery.terrain;
+
+import java.awt.Rectangle;
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+
+/**
+ * Base class for {@link FlowEngine}s implemented in plain Java.
+ *
+ * All Java engines share one pool of {@link FlowWorkers} that is created on first use and
+ * can only run one job at a time, so engines running on different {@link Data} instances take turns.
+ * The pool's size can be changed at any time using {@link #setThreadCount(int)}.
+ */
+public abstract class AbstractJavaFlowEngine implements FlowEngine
+{
+    // distance in movedByWorker[] between values of adjacent workers
+    private static final int MOVED_STRIDE = 16;
+
+    // guards the shared pool, held while running flow iterations
+    private static final Object POOL_LOCK = new Object();
+
+    private static FlowWorkers sharedWorkers;
+    private static int threadCount = getDefaultThreadCount();
+
+    // amount of water moved by each worker during the current iteration,
+    // padded to keep workers from writing to the same cache line
+    private float[] movedByWorker;
+
+    /**
+     * Work done on a single tile.
+     */
+    @FunctionalInterface
+    protected interface TileTask
+    {
+        /**
+         * Processes a tile.
+         *
+         * @param tile
+         * @return amount of water that flowed out of the tile's cells, 0 if not applicable
+         */
+        float process(TileScheduler.Tile tile);
+    }
+
+    @FunctionalInterface
+    protected interface CellVisitor
+    {
+        void visit(int x,int y);
+    }
+
+    public static int getDefaultThreadCount()
+    {
+        return Math.max(1,Runtime.getRuntime().availableProcessors()/2);
+    }
+
+    public static int getThreadCount()
+    {
+        synchronized( POOL_LOCK ) {
+            return threadCount;
+        }
+    }
+
+    /**
+     * Sets the number of threads used by all Java engines.
+     *
+     * Waits for any flow iterations currently running to complete.
+     *
+     * @param count
+     * @see #getDefaultThreadCount()
+     */
+    public static void setThreadCount(int count)
+    {
+        if ( count < 1 ) {
+            throw new IllegalArgumentException("Thread count must be >= 1");
+        }
+        synchronized( POOL_LOCK )
+        {
+            if ( count != threadCount )
+            {
+                threadCount = count;
+                if ( sharedWorkers != null )
+                {
+                    sharedWorkers.dispose();
+                    sharedWorkers = null;
+                }
+            }
+        }
+    }
+
+    // must be called while holding POOL_LOCK
+    private static FlowWorkers getWorkers()
+    {
+        if ( sharedWorkers == null )
+        {
+            System.out.println("Using "+threadCount+" threads");
+            sharedWorkers = new FlowWorkers( threadCount, "flow" );
+        }
+        return sharedWorkers;
+    }
+
+    @Override
+    public boolean isAvailable()
+    {
+        return true;
+    }
+
+    @Override
+    public final float flow(Data data, int count, boolean measure)
+    {
+        synchronized( POOL_LOCK )
+        {
+            final FlowWorkers workers = getWorkers();
+            if ( movedByWorker == null || movedByWorker.length != workers.getParallelism() * MOVED_STRIDE ) {
+                movedByWorker = new float[ workers.getParallelism() * MOVED_STRIDE ];
+            }
+            return flow( data, workers, count, measure );
+        }
+    }
+
+    /**
+     * Runs flow iterations while holding exclusive access to the worker pool.
+     *
+     * @see FlowEngine#flow(Data, int, boolean)
+     */
+    protected abstract float flow(Data data, FlowWorkers workers, int count, boolean measure);
+
+    protected final void clearMoved()
+    {
+        Arrays.fill( movedByWorker, 0 );
+    }
+
+    protected final void addMoved(int workerIndex,float amount)
+    {
+        movedByWorker[ workerIndex * MOVED_STRIDE ] += amount;
+    }
+
+    protected final float sumMoved()
+    {
+        float result = 0;
+        for ( int i = 0 ; i < movedByWorker.length ; i += MOVED_STRIDE ) {
+            result += movedByWorker[i];
+        }
+        return result;
+    }
+
+    /**
+     * Processes tiles handed out by a scheduler until there are none left.
+     *
+     * @return sum of the values returned by the task
+     */
+    protected static float processTiles(TileScheduler scheduler,TileTask task)
+    {
+        float result = 0;
+        TileScheduler.Tile tile;
+        while ( ( tile = scheduler.next() ) != null ) {
+            result += task.process( tile );
+        }
+        return result;
+    }
+
+    /**
+     * Invokes a visitor for each cell in the outermost ring of the height map.
+     */
+    protected static void visitBorder(int size,CellVisitor visitor)
+    {
+        if ( size < 2 ) {
+            return;
+        }
+        for ( int x = 0 ; x < size ; x++ )
+        {
+            visitor.visit( x, 0 );
+            visitor.visit( x, size-1 );
+        }
+        for ( int y = 1 ; y < size-1 ; y++ )
+        {
+            visitor.visit( 0, y );
+            visitor.visit( size-1, y );
+        }
+    }
+
+    protected static boolean containsWater(Rectangle area,int size,FloatBuffer water)
+    {
+        for ( int y = area.y, ymax = area.y + area.height ; y < ymax ; y++ )
+        {
+            for ( int ptr = y*size+area.x, end = ptr+area.width ; ptr < end ; ptr++ )
+            {
+                if ( water.get(ptr) != 0 ) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    protected static void fill(Rectangle area,int size,float[] array,float value)
+    {
+        for ( int y = area.y, ymax = area.y + area.height ; y < ymax ; y++ )
+        {
+            final int ptr = y*size + area.x;
+            Arrays.fill( array, ptr, ptr + area.width, value );
+        }
+    }
+
+    protected static void fill(Rectangle area,int size,short[] array,short value)
+    {
+        for ( int y = area.y, ymax = area.y + area.height ; y < ymax ; y++ )
+        {
+            final int ptr = y*size + area.x;
+            Arrays.fill( array, ptr, ptr + area.width, value );
+        }
+    }
+
+    protected static void fill(Rectangle area,TiledLayout layout,float[] array,float value)
+    {
+        for ( int y = area.y, ymax = area.y + area.height ; y < ymax ; y++ )
+        {
+            for ( int x = area.x, xmax = area.x + area.width ; x < xmax ; x++ ) {
+                array[ layout.index( x, y ) ] = value;
+            }
+        }
+    }
+
+    protected static void fill(Rectangle area,int size,FloatBuffer buffer,float value)
+    {
+        for ( int y = area.y, ymax = area.y + area.height ; y < ymax ; y++ )
+        {
+            for ( int ptr = y*size + area.x, end = ptr + area.width ; ptr < end ; ptr++ ) {
+                buffer.put( ptr, value );
+            }
+        }
+    }
+}
@@ -0,0 +1,164 @@
+package de.codesourcery.terrain;
+
+import java.awt.Rectangle;
+import java.util.Arrays;
+
+/**
+ * Keeps track of which tiles of a {@link TileScheduler} contain water
+ * so that dry terrain can be skipped entirely during flow calculations.
+ *
+ * A tile is flagged as wet if <b>any</b> of the cells it owns has water, the
+ * flag may be conservatively set for tiles that are actually dry but it must
+ * never be cleared while a tile still has water.
+ */
+public class ActiveTileSet
+{
+    private final TileScheduler scheduler;
+
+    private boolean[] wet;
+    private boolean[] wetNext;
+    /*
+     * Whether the scratch buffers used by GatherFlowEngine
+     * are known to be all zeros in a tile's area.
+     */
+    private final boolean[] scratchCleared;
+    // whether a tile's halo includes cells not owned by any tile
+    // (the outermost ring of the height map)
+    private final boolean[] atBorder;
+    private boolean borderWet = true;
+
+    public ActiveTileSet(TileScheduler scheduler)
+    {
+        this.scheduler = scheduler;
+        this.wet = new boolean[ scheduler.getTileCount() ];
+        this.wetNext = new boolean[ scheduler.getTileCount() ];
+        this.scratchCleared = new boolean[ scheduler.getTileCount() ];
+        this.atBorder = new boolean[ scheduler.getTileCount() ];
+        final Rectangle covered = new Rectangle( scheduler.getTile( 0 ).area );
+        for ( int i = 1 ; i < atBorder.length ; i++ ) {
+            covered.add( scheduler.getTile( i ).area );
+        }
+        for ( int i = 0 ; i < atBorder.length ; i++ ) {
+            atBorder[i] = ! covered.contains( scheduler.getTile( i ).halo );
+        }
+        markAllWet();
+    }
+
+    /**
+     * Flags all tiles as wet.
+     *
+     * Needs to be called whenever water got changed
+     * in ways not tracked by this instance.
+     */
+    public void markAllWet()
+    {
+        Arrays.fill( wet, true );
+        Arrays.fill( scratchCleared, false );
+        borderWet = true;
+    }
+
+    /**
+     * Sets whether any cell in the outermost ring of the height map (that is
+     * not part of any tile) has water.
+     *
+     * @param isWet
+     */
+    public void setBorderWet(boolean isWet)
+    {
+        this.borderWet = isWet;
+    }
+
+    /**
+     * Flags the tile owning a given cell as wet.
+     *
+     * @param x
+     * @param y
+     */
+    public void markWet(int x,int y)
+    {
+        final int idx = scheduler.getTileIndex( x, y );
+        if ( idx != -1 ) {
+            wet[idx] = true;
+        }
+    }
+
+    public void setWet(TileScheduler.Tile tile, boolean isWet)
+    {
+        wet[ tile.index ] = isWet;
+    }
+
+    public boolean isWet(TileScheduler.Tile tile)
+    {
+        return wet[ tile.index ];
+    }
+
+    /**
+     * Returns whether a tile or any of its neighbours (including the
+     * outermost ring of the height map) has water.
+     *
+     * @param tile
+     * @return <code>true</code> if water might flow into or inside this tile
+     */
+    public boolean isWetOrHasWetNeighbour(TileScheduler.Tile tile)
+    {
+        if ( wet[ tile.index ] || ( borderWet && atBorder[ tile.index ] ) ) {
+            return true;
+        }
+        for ( int idx : scheduler.getNeighbours( tile ) )
+        {
+            if ( wet[idx] ) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Sets the wet flag that will become effective after the next call to {@link #swap()}.
+     *
+     * @param tile
+     * @param isWet
+     */
+    public void setWetNext(TileScheduler.Tile tile, boolean isWet)
+    {
+        wetNext[ tile.index ] = isWet;
+    }
+
+    /**
+     * Makes all flags set through {@link #setWetNext(TileScheduler.Tile, boolean)}
+     * effective, tiles that had no flag set are considered to be dry.
+     */
+    public void swap()
+    {
+        final boolean[] tmp = wet;
+        wet = wetNext;
+        wetNext = tmp;
+        Arrays.fill( wetNext, false );
+    }
+
+    public boolean isScratchCleared(TileScheduler.Tile tile)
+    {
+        return scratchCleared[ tile.index ];
+    }
+
+    public void setScratchCleared(TileScheduler.Tile tile,boolean cleared)
+    {
+        scratchCleared[ tile.index ] = cleared;
+    }
+
+    /**
+     * Returns the number of tiles currently flagged as wet.
+     *
+     * @return
+     */
+    public int getWetTileCount()
+    {
+        int result = 0;
+        for ( boolean b : wet ) {
+            if ( b ) {
+                result++;
+            }
+        }
+        return result;
+    }
+}
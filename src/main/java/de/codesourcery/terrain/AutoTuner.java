@@ -0,0 +1,386 @@
+package de.codesourcery.terrain;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.LinkedHashSet;
+import java.util.Properties;
+import java.util.Set;
+
+/**
+ * Finds the fastest flow engine and settings for the current machine by running short
+ * calibration runs on a copy of the actual height map, using the height map's storage.
+ *
+ * Each available engine is measured with default settings first, the Java engines then get tuned
+ * one setting at a time (thread count, tile size and - for the gather engines - temporal blocking depth),
+ * keeping whatever turned out to be fastest.
+ *
+ * Calibration is bounded: large height maps get fewer iterations per measurement and once the
+ * time budget is used up, the remaining candidates are skipped. It also stops when the calling thread gets
+ * interrupted, so it may be run in the background and cancelled.
+ *
+ * Results are stored per height map size in a profile file, profiles get discarded
+ * when the number of available processors changed.
+ */
+public class AutoTuner
+{
+    // tile sizes to try, see Data#setTileSize(int)
+    private static final int[] TILE_SIZES = {32,64,128};
+    // temporal blocking depths to try, see Data#setTemporalBlockingDepth(int)
+    private static final int[] DEPTHS = {1,2,4};
+    // iterations per flow() call, same as the UI uses
+    private static final int ITERATIONS_PER_CALL = 10;
+    // max. number of cells times iterations processed per measurement, larger maps run fewer iterations
+    private static final long CELL_ITERATIONS = 25_000_000L;
+
+    private static final String KEY_CPUS = "cpus";
+
+    private final File profileFile;
+
+    private int warmupIterations = 50;
+    private int measuredIterations = 100;
+    private long timeBudgetMillis = 20_000;
+
+    // state of a single calibration
+    private static final class Calibration
+    {
+        public final byte[] snapshot;
+        public final Data.Storage storage;
+        public final int warmupIterations;
+        public final int measuredIterations;
+        public final long deadline;
+
+        public Calibration(byte[] snapshot,Data.Storage storage,int warmupIterations,int measuredIterations,long deadline)
+        {
+            this.snapshot = snapshot;
+            this.storage = storage;
+            this.warmupIterations = warmupIterations;
+            this.measuredIterations = measuredIterations;
+            this.deadline = deadline;
+        }
+    }
+
+    public AutoTuner(File profileFile)
+    {
+        if ( profileFile == null ) {
+            throw new IllegalArgumentException("Profile file must not be null");
+        }
+        this.profileFile = profileFile;
+    }
+
+    /**
+     * Returns the stored profile for the given height map's size, running
+     * the calibration (and storing its result) if there is none yet.
+     *
+     * @param data height map to tune for, left unchanged
+     * @return
+     */
+    public FlowProfile getProfile(Data data)
+    {
+        FlowProfile profile = load( data.size );
+        if ( profile == null )
+        {
+            System.out.println("Tuning flow engines for size "+data.size+"...");
+            profile = tune( data );
+            save( data.size, profile );
+        }
+        System.out.println("Using flow profile: "+profile);
+        return profile;
+    }
+
+    /**
+     * Runs the calibration.
+     *
+     * @param data height map to tune for, left unchanged. If it has no water at all,
+     *             calibration runs use a copy with all cells covered by water
+     * @return fastest settings found
+     * @throws IllegalStateException if no flow engine is available or the calling thread got interrupted
+     */
+    public FlowProfile tune(Data data)
+    {
+        final long cellIterations = (long) data.size * data.size * ( warmupIterations + measuredIterations );
+        final float scale = Math.min( 1f, CELL_ITERATIONS / (float) cellIterations );
+        final int measured = Math.max( ITERATIONS_PER_CALL, Math.round( measuredIterations * scale ) );
+        final Calibration calibration = new Calibration( snapshot( data ), data.getStorage(),
+                Math.round( warmupIterations * scale ), measured, System.currentTimeMillis() + timeBudgetMillis );
+        if ( scale < 1 ) {
+            System.out.println("Calibration: "+calibration.warmupIterations+" warm-up and "+measured+" measured iterations");
+        }
+        final int oldThreadCount = AbstractJavaFlowEngine.getThreadCount();
+        try
+        {
+            FlowProfile best = null;
+            for ( FlowEngine engine : FlowEngines.getEngines() )
+            {
+                if ( ! engine.isAvailable() || ! engine.isIterative() ) {
+                    continue;
+                }
+                if ( isOver( calibration ) && best != null ) {
+                    System.out.println("Calibration: Time budget exceeded, skipping "+engine.getName());
+                    continue;
+                }
+                final FlowProfile result;
+                try {
+                    result = tune( engine, calibration );
+                }
+                catch(RuntimeException e)
+                {
+                    System.err.println("Calibration of flow engine "+engine.getName()+" failed: "+e);
+                    continue;
+                }
+                System.out.println("Calibration: "+result);
+                best = faster( best, result );
+            }
+            if ( best == null ) {
+                throw new IllegalStateException("No flow engine available");
+            }
+            return best;
+        }
+        finally
+        {
+            AbstractJavaFlowEngine.setThreadCount( oldThreadCount );
+        }
+    }
+
+    // true if remaining candidates should be skipped
+    private static boolean isOver(Calibration calibration)
+    {
+        if ( Thread.currentThread().isInterrupted() ) {
+            throw new IllegalStateException("Calibration interrupted");
+        }
+        return System.currentTimeMillis() > calibration.deadline;
+    }
+
+    private FlowProfile tune(FlowEngine engine,Calibration calibration)
+    {
+        FlowProfile best = measure( engine, AbstractJavaFlowEngine.getDefaultThreadCount(), TileScheduler.DEFAULT_TILE_SIZE, 1, calibration );
+        if ( engine instanceof AbstractJavaFlowEngine || engine instanceof NativeFlowEngine )
+        {
+            for ( int threads : getThreadCounts() )
+            {
+                if ( isOver( calibration ) ) {
+                    return best;
+                }
+                if ( threads != best.threadCount ) {
+                    best = faster( best, measure( engine, threads, best.tileSize, best.temporalBlockingDepth, calibration ) );
+                }
+            }
+        }
+        if ( ! ( engine instanceof AbstractJavaFlowEngine ) ) {
+            // settings do not apply
+            return best;
+        }
+        for ( int tileSize : TILE_SIZES )
+        {
+            if ( isOver( calibration ) ) {
+                return best;
+            }
+            if ( tileSize != best.tileSize ) {
+                best = faster( best, measure( engine, best.threadCount, tileSize, best.temporalBlockingDepth, calibration ) );
+            }
+        }
+        if ( engine instanceof GatherFlowEngine )
+        {
+            for ( int depth : DEPTHS )
+            {
+                if ( isOver( calibration ) ) {
+                    return best;
+                }
+                if ( depth != best.temporalBlockingDepth ) {
+                    best = faster( best, measure( engine, best.threadCount, best.tileSize, depth, calibration ) );
+                }
+            }
+        }
+        return best;
+    }
+
+    private static FlowProfile faster(FlowProfile a,FlowProfile b)
+    {
+        if ( a == null ) {
+            return b;
+        }
+        return b.millisPerIteration < a.millisPerIteration ? b : a;
+    }
+
+    // powers of two up to the number of available processors
+    private static Set<Integer> getThreadCounts()
+    {
+        final int cpus = Runtime.getRuntime().availableProcessors();
+        final Set<Integer> result = new LinkedHashSet<>();
+        for ( int i = 1 ; i < cpus ; i *= 2 ) {
+            result.add( i );
+        }
+        result.add( cpus );
+        return result;
+    }
+
+    private static FlowProfile measure(FlowEngine engine,int threadCount,int tileSize,int depth,Calibration calibration)
+    {
+        final Data data = restore( calibration );
+        try
+        {
+            new FlowProfile( engine.getName(), threadCount, tileSize, depth, Float.NaN ).apply( data );
+            run( data, calibration.warmupIterations );
+            final long start = System.nanoTime();
+            run( data, calibration.measuredIterations );
+            final float millis = (System.nanoTime() - start) / 1_000_000f;
+            return new FlowProfile( engine.getName(), threadCount, tileSize, depth, millis / calibration.measuredIterations );
+        }
+        finally
+        {
+            data.dispose();
+        }
+    }
+
+    private static void run(Data data,int iterations)
+    {
+        for ( int i = 0 ; i < iterations ; i += ITERATIONS_PER_CALL ) {
+            data.flow( Math.min( ITERATIONS_PER_CALL, iterations - i ) );
+        }
+    }
+
+    private static byte[] snapshot(Data data)
+    {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            data.save( out );
+        } catch (IOException e) {
+            throw new RuntimeException( e );
+        }
+        return out.toByteArray();
+    }
+
+    private static Data restore(Calibration calibration)
+    {
+        final Data result;
+        try {
+            result = Data.read( new ByteArrayInputStream( calibration.snapshot ), calibration.storage );
+        } catch (IOException e) {
+            throw new RuntimeException( e );
+        }
+        if ( result.getWaterSum() == 0 ) {
+            // a dry map would only measure how fast engines skip dry tiles
+            result.initWater( Integer.MIN_VALUE, 1 );
+        }
+        return result;
+    }
+
+    private static String key(int size,String property)
+    {
+        return "size."+size+"."+property;
+    }
+
+    private Properties loadProperties()
+    {
+        final Properties props = new Properties();
+        if ( profileFile.exists() && profileFile.canRead() )
+        {
+            try ( InputStream in = new FileInputStream( profileFile ) ) {
+                props.load( in );
+            }
+            catch(IOException e)
+            {
+                System.err.println("Failed to read flow profile from "+profileFile+": "+e.getMessage());
+                props.clear();
+            }
+        }
+        return props;
+    }
+
+    /**
+     * Loads the stored profile for a given height map size.
+     *
+     * @param size
+     * @return profile or <code>null</code> if there is none or it is not usable on this machine
+     */
+    public FlowProfile load(int size)
+    {
+        final Properties props = loadProperties();
+        final String engine = props.getProperty( key( size, "engine" ) );
+        if ( engine == null || ! Integer.toString( Runtime.getRuntime().availableProcessors() ).equals( props.getProperty( KEY_CPUS ) ) ) {
+            return null;
+        }
+        final FlowEngine flowEngine = FlowEngines.find( engine );
+        if ( flowEngine == null || ! flowEngine.isAvailable() ) {
+            return null;
+        }
+        try
+        {
+            return new FlowProfile( engine,
+                    Integer.parseInt( props.getProperty( key( size, "threads" ) ) ),
+                    Integer.parseInt( props.getProperty( key( size, "tileSize" ) ) ),
+                    Integer.parseInt( props.getProperty( key( size, "depth" ) ) ),
+                    Float.parseFloat( props.getProperty( key( size, "millisPerIteration" ) ) ) );
+        }
+        catch(RuntimeException e)
+        {
+            System.err.println("Ignoring malformed flow profile for size "+size+": "+e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Stores a profile for a given height map size, keeping the profiles of other sizes.
+     *
+     * @param size
+     * @param profile
+     */
+    public void save(int size,FlowProfile profile)
+    {
+        final Properties props = loadProperties();
+        final String cpus = Integer.toString( Runtime.getRuntime().availableProcessors() );
+        if ( ! cpus.equals( props.getProperty( KEY_CPUS ) ) ) {
+            // profiles of other sizes are outdated as well
+            props.clear();
+        }
+        props.setProperty( KEY_CPUS, cpus );
+        props.setProperty( key( size, "engine" ), profile.engine );
+        props.setProperty( key( size, "threads" ), Integer.toString( profile.threadCount ) );
+        props.setProperty( key( size, "tileSize" ), Integer.toString( profile.tileSize ) );
+        props.setProperty( key( size, "depth" ), Integer.toString( profile.temporalBlockingDepth ) );
+        props.setProperty( key( size, "millisPerIteration" ), Float.toString( profile.millisPerIteration ) );
+        try ( FileOutputStream out = new FileOutputStream( profileFile ) )
+        {
+            props.store( out, "AUTO-GENERATED, DO NOT EDIT" );
+        }
+        catch (IOException e)
+        {
+            System.err.println("Failed to write flow profile to "+profileFile+": "+e.getMessage());
+        }
+    }
+
+    public void setWarmupIterations(int warmupIterations)
+    {
+        if ( warmupIterations < 0 ) {
+            throw new IllegalArgumentException("Warm-up iterations must be >= 0");
+        }
+        this.warmupIterations = warmupIterations;
+    }
+
+    /**
+     * Sets the time after which calibration skips all remaining candidates.
+     *
+     * At least one measurement is always done and measurements already started are completed.
+     *
+     * @param timeBudgetMillis
+     */
+    public void setTimeBudgetMillis(long timeBudgetMillis)
+    {
+        if ( timeBudgetMillis < 0 ) {
+            throw new IllegalArgumentException("Time budget must be >= 0");
+        }
+        this.timeBudgetMillis = timeBudgetMillis;
+    }
+
+    public void setMeasuredIterations(int measuredIterations)
+    {
+        if ( measuredIterations < 1 ) {
+            throw new IllegalArgumentException("Measured iterations must be >= 1");
+        }
+        this.measuredIterations = measuredIterations;
+    }
+}
@@ -0,0 +1,116 @@
+package de.codesourcery.terrain;
+
+/**
+ * Array-based binary min-heap of cell indices ordered by a <code>float</code> priority,
+ * avoiding the boxing overhead of a {@link java.util.PriorityQueue}.
+ *
+ * Cells with equal priority are returned in no particular order.
+ */
+public class CellHeap
+{
+    private float[] priorities;
+    private int[] cells;
+    private int size;
+
+    public CellHeap(int initialCapacity)
+    {
+        final int capacity = Math.max( 1, initialCapacity );
+        this.priorities = new float[ capacity ];
+        this.cells = new int[ capacity ];
+    }
+
+    public void clear()
+    {
+        size = 0;
+    }
+
+    public boolean isEmpty()
+    {
+        return size == 0;
+    }
+
+    public int size()
+    {
+        return size;
+    }
+
+    public void push(int cell,float priority)
+    {
+        if ( size == cells.length ) {
+            realloc( size + 1 + size / 2 );
+        }
+        // sift up
+        int ptr = size++;
+        while ( ptr > 0 )
+        {
+            final int parent = (ptr - 1) >>> 1;
+            if ( priorities[parent] <= priority ) {
+                break;
+            }
+            priorities[ptr] = priorities[parent];
+            cells[ptr] = cells[parent];
+            ptr = parent;
+        }
+        priorities[ptr] = priority;
+        cells[ptr] = cell;
+    }
+
+    /**
+     * Returns the priority of the cell that {@link #pop()} would return.
+     *
+     * @return
+     */
+    public float peekPriority()
+    {
+        if ( isEmpty() ) {
+            throw new IllegalStateException( "Empty" );
+        }
+        return priorities[0];
+    }
+
+    /**
+     * Removes the cell with the lowest priority.
+     *
+     * @return
+     */
+    public int pop()
+    {
+        if ( isEmpty() ) {
+            throw new IllegalStateException( "Empty" );
+        }
+        final int result = cells[0];
+        final float priority = priorities[--size];
+        final int cell = cells[size];
+        // sift down
+        int ptr = 0;
+        while ( true )
+        {
+            int child = 2*ptr + 1;
+            if ( child >= size ) {
+                break;
+            }
+            if ( child + 1 < size && priorities[child+1] < priorities[child] ) {
+                child++;
+            }
+            if ( priority <= priorities[child] ) {
+                break;
+            }
+            priorities[ptr] = priorities[child];
+            cells[ptr] = cells[child];
+            ptr = child;
+        }
+        priorities[ptr] = priority;
+        cells[ptr] = cell;
+        return result;
+    }
+
+    private void realloc(int newCapacity)
+    {
+        final float[] tmpPriorities = new float[ newCapacity ];
+        final int[] tmpCells = new int[ newCapacity ];
+        System.arraycopy( priorities, 0, tmpPriorities, 0, size );
+        System.arraycopy( cells, 0, tmpCells, 0, size );
+        this.priorities = tmpPriorities;
+        this.cells = tmpCells;
+    }
+}
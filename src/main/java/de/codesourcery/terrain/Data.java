@@ -13,12 +13,6 @@ import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
 import java.util.Arrays;
 import java.util.Random;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.CyclicBarrier;
-import java.util.concurrent.ThreadFactory;
-import java.util.concurrent.ThreadPoolExecutor;
-import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicInteger;
 
 public class Data implements Disposable
 {
@@ -27,114 +21,199 @@ public class Data implements Disposable
      */
     public static final float EPSILON = 0.0001f;
 
+    /**
+     * Number of iterations {@link #flowUntilStable(float, int)} runs
+     * between checks for convergence.
+     */
+    public static final int STABILITY_CHECK_INTERVAL = 10;
+
+    /**
+     * System property holding the name of the {@link Storage} used by default.
+     */
+    public static final String STORAGE_PROPERTY = "terrain.storage";
+
+    // alignment of off-heap grids, OpenCL implementations need page-aligned memory for zero-copy access
+    private static final int PAGE_SIZE = 4096;
+
+    /**
+     * Where the height map and water levels are stored.
+     */
+    public enum Storage
+    {
+        /**
+         * Plain Java arrays, fastest for the Java engines.
+         */
+        HEAP,
+        /**
+         * Page-aligned native memory that the native library and OpenCL CPU devices
+         * access in-place instead of copying it.
+         */
+        DIRECT,
+        /**
+         * Half-precision values in plain Java arrays, using half the memory (and memory bandwidth)
+         * of {@link #HEAP} at the cost of accuracy: values keep about 3 significant digits,
+         * so water gets created or destroyed by rounding (see {@link Data#getWaterSum()}).
+         *
+         * Engines that do not {@link FlowEngine#supportsStorage(Storage) support} this storage
+         * work on float copies of the grids, which get kept until {@link #dispose()} is called.
+         */
+        HALF,
+        /**
+         * Plain Java arrays holding blocks of cells contiguously (see {@link TiledLayout}) instead of whole rows, so
+         * processing a tile of cells touches far fewer cache lines and memory pages on large height maps.
+         *
+         * Engines that do not {@link FlowEngine#supportsStorage(Storage) support} this storage
+         * work on row-by-row copies of the grids, which get kept until {@link #dispose()} is called.
+         */
+        TILED;
+
+        /**
+         * Returns the storage configured by {@link #STORAGE_PROPERTY}, {@link #HEAP} if not set.
+         *
+         * @return
+         */
+        public static Storage getDefault()
+        {
+            return Storage.valueOf( System.getProperty( STORAGE_PROPERTY, HEAP.name() ) );
+        }
+    }
+
+
     @Override
     public void dispose()
     {
-        if ( openCLExecutor != null ) {
-            openCLExecutor.dispose();
+        // engines are shared by all instances, only release our own scratch buffers
+        if ( storage == Storage.HALF || storage == Storage.TILED )
+        {
+            // row-by-row float copies, see runFlow()
+            height = null;
+            water = null;
         }
+        waterNext = null;
+        waterNextHalf = null;
+        waterNextTiled = null;
+        outflow = null;
+        temporalBlocking = null;
+        // water still on the device gets discarded
+        deviceResident = null;
     }
 
-    protected enum CalcMode {
-        JAVA,
-        NATIVE,
-        OPENCL
-    }
+    // engine used by flow(), lazily set to the default engine
+    private FlowEngine flowEngine;
 
-    private static final CalcMode CALC_MODE = CalcMode.OPENCL;
+    // number of iterations to run per tile before synchronizing, see TemporalBlocking
+    private int temporalBlockingDepth = 1;
+    private TemporalBlocking temporalBlocking;
 
-    private final Rectangle[] slices;
-    private final MyRunnable[] runnables;
+    // edge length of tiles processed by the Java engines
+    private int tileSize = TileScheduler.DEFAULT_TILE_SIZE;
+    TileScheduler tileScheduler;
+    ActiveTileSet activeTiles;
 
-    protected final class MyRunnable implements Runnable
-    {
-        public final Rectangle area;
-        public final CyclicBarrier barrier;
+    /*
+     * With HALF or TILED storage these only hold row-by-row float copies while
+     * an engine that does not support that storage is running, see runFlow().
+     */
+    public FloatBuffer height;
+    /*
+     * Not final as GatherFlowEngine swaps this buffer
+     * with waterNext after each iteration. Outdated while the
+     * water only exists in device memory, see syncFromDevice().
+     */
+    public FloatBuffer water;
 
-        public MyRunnable(Rectangle area, CyclicBarrier barrier) {
-            this.area = area;
-            this.barrier = barrier;
-        }
+    // scratch buffers used by GatherFlowEngine, lazily allocated
+    FloatBuffer waterNext;
+    float[] outflow;
 
-        public void run()
-        {
-            try {
-                flow(area,size,height.array(),water.array());
-            }
-            finally
-            {
-                try
-                {
-                    barrier.await();
-                }
-                catch (Exception e)
-                {
-                    e.printStackTrace();
-                }
-            }
-        }
-    }
+    // grids in half-precision, only used with HALF storage
+    short[] heightHalf;
+    short[] waterHalf;
+    short[] waterNextHalf;
 
-    private final int threadCount;
-    public final FloatBuffer height;
-    public final FloatBuffer water;
+    // grids stored in blocks, only used with TILED storage
+    final TiledLayout tiledLayout;
+    float[] heightTiled;
+    float[] waterTiled;
+    float[] waterNextTiled;
 
     private final int[][] offsets;
     public final int size;
+    private final Storage storage;
 
-    private final OpenCLExecutor openCLExecutor;
-    private final ThreadPoolExecutor threadPool;
-    private final CyclicBarrier barrier;
-
-    public boolean dirty = true;
-
-    public Data(int size)
-    {
-        this.size = size;
+    private float residual = Float.NaN;
 
-        final int elemCount = size * size;
+    // net changes of the total amount of water, null unless checking
+    private WaterBalance waterBalance;
 
-        this.height = newFloatBuffer( elemCount );
-        this.water = newFloatBuffer( elemCount );
+    public boolean dirty = true;
 
-        this.openCLExecutor = new OpenCLExecutor();
+    // incremented whenever heights or water get changed on the host, see OpenCLExecutor
+    int heightVersion;
+    int waterVersion;
 
-        final ArrayBlockingQueue workQueue =
-                new ArrayBlockingQueue(10 );
+    // holds the current water while it only exists in device memory, null if the water buffers are up-to-date
+    private DeviceResident deviceResident;
+    // whether reading water returns the most recent device snapshot instead of waiting for the device
+    private boolean deviceSnapshots;
 
-        final ThreadFactory threadFactory = new ThreadFactory()
-        {
-            private final ThreadGroup tg = new ThreadGroup( Thread.currentThread().getThreadGroup(),"flow" );
-            private final AtomicInteger threadId = new AtomicInteger();
+    /**
+     * A flow engine that keeps water in device memory between {@link FlowEngine#flow(Data, int, boolean) flow()} calls.
+     *
+     * @see #setDeviceResident(DeviceResident)
+     */
+    interface DeviceResident
+    {
+        /**
+         * Copies the water from device memory back into the water buffers of a height map.
+         *
+         * @param data
+         */
+        void readBack(Data data);
 
-            @Override
-            public Thread newThread(Runnable r)
-            {
-                final Thread t = new Thread(tg,r,"flow-"+threadId.incrementAndGet());
-                t.setDaemon( true );
-                return t;
-            }
-        };
+        /**
+         * Copies the most recent snapshot of the water that has arrived from the device into
+         * the water buffers of a height map, without waiting for the device.
+         *
+         * @param data
+         * @return whether the water buffers got updated
+         * @see Data#setDeviceSnapshots(boolean)
+         */
+        boolean readSnapshot(Data data);
+    }
 
-        this.threadCount = Math.max(1,Runtime.getRuntime().availableProcessors()/2);
-        System.out.println("Using "+threadCount+" threads");
+    public Data(int size)
+    {
+        this( size, Storage.getDefault() );
+    }
 
-        this.threadPool = new ThreadPoolExecutor( threadCount,
-                threadCount,10, TimeUnit.SECONDS,workQueue,threadFactory,
-                new ThreadPoolExecutor.CallerRunsPolicy() );
+    public Data(int size,Storage storage)
+    {
+        this.size = size;
+        this.storage = storage;
 
-        slices = new Rectangle[threadCount];
-        barrier = new CyclicBarrier(threadCount+1);
+        final int elemCount = size * size;
 
-        for ( int i = 0 ; i < threadCount ; i++ ) {
-            slices[i] = new Rectangle();
+        this.tiledLayout = storage == Storage.TILED ? new TiledLayout( size ) : null;
+        if ( storage == Storage.HALF )
+        {
+            this.heightHalf = new short[ elemCount ];
+            this.waterHalf = new short[ elemCount ];
+        }
+        else if ( storage == Storage.TILED )
+        {
+            this.heightTiled = new float[ tiledLayout.getLength() ];
+            this.waterTiled = new float[ tiledLayout.getLength() ];
         }
-        setupSlices( 1,1,size-2,size-2,slices);
-        runnables = new MyRunnable[ slices.length ];
-        for ( int i = 0 ; i < slices.length ; i++ ) {
-            runnables[i] = new MyRunnable(slices[i], barrier );
+        else
+        {
+            this.height = newFloatBuffer( elemCount, storage );
+            this.water = newFloatBuffer( elemCount, storage );
         }
 
+        this.tileScheduler = createTileScheduler( size, tileSize );
+        this.activeTiles = new ActiveTileSet( tileScheduler );
+
         this.dirty = true;
 
         /* Setup tables with relative
@@ -153,19 +232,29 @@ public class Data implements Disposable
          * |7|           6         |5|
          * +-----------------------+-+
          */
+        // offsets are listed in ascending order (just like in the tables used for
+        // inner cells), so sums over neighbours are computed in the same order
+        // no matter how the border cells are treated
         this.offsets = new int[9][];
-        this.offsets[0] = new int[] {1,size+1,size};
+        this.offsets[0] = new int[] {1,size,size+1};
         this.offsets[1] = new int[] {-1,1,size-1,size,size+1};
         this.offsets[2] = new int[] {-1,size-1,size};
         this.offsets[3] = new int[] {-size-1,-size,-1,size-1,size};
         this.offsets[4] = new int[] {-size-1,-size,-1};
         this.offsets[5] = new int[] {-size-1,-size,-size+1,-1,1};
         this.offsets[6] = new int[] {-size,-size+1,1};
-        this.offsets[7] = new int[] {-size,-size+1,1,size+1,size};
+        this.offsets[7] = new int[] {-size,-size+1,1,size,size+1};
         this.offsets[8] = new int[] {-size-1,-size,-size+1,-1,1,size-1,size,size+1};
     }
 
-    private int[] getNeighbourOffsets(int x,int y) {
+    private static TileScheduler createTileScheduler(int size,int tileSize)
+    {
+        // the outermost ring of cells is not part of the tiles
+        // as it needs boundary checks, see JavaFlowEngine
+        return new TileScheduler( new Rectangle(1,1,size-2,size-2), size, tileSize, 1 );
+    }
+
+    int[] getNeighbourOffsets(int x,int y) {
         if ( x == 0 )
         {
             // x == 0
@@ -191,29 +280,66 @@ public class Data implements Disposable
     }
 
     public void save(OutputStream out) throws IOException {
+        syncFromDevice();
         writeInt(size,out);
-        writeArray( height.array(),out );
-        writeArray( water.array(),out );
+        if ( storage == Storage.HALF )
+        {
+            writeArray( heightHalf,out );
+            writeArray( waterHalf,out );
+        }
+        else if ( storage == Storage.TILED )
+        {
+            writeArray( heightTiled,tiledLayout,out );
+            writeArray( waterTiled,tiledLayout,out );
+        }
+        else
+        {
+            writeBuffer( height,out );
+            writeBuffer( water,out );
+        }
     }
 
     public static Data read(InputStream in) throws IOException
+    {
+        return read( in, Storage.getDefault() );
+    }
+
+    public static Data read(InputStream in,Storage storage) throws IOException
     {
         final int size = readInt(in);
-        final Data result = new Data(size);
+        final Data result = new Data(size,storage);
         final float[] height = readFloatArray(in);
-        System.arraycopy( height,0,result.height.array(),0,size*size );
-
         final float[] floatArray = readFloatArray(in);
-        System.arraycopy( floatArray,0,result.water.array(),0,size*size );
+        if ( storage == Storage.HALF )
+        {
+            copy( height, result.heightHalf );
+            copy( floatArray, result.waterHalf );
+        }
+        else if ( storage == Storage.TILED )
+        {
+            copy( height, result.heightTiled, result.tiledLayout );
+            copy( floatArray, result.waterTiled, result.tiledLayout );
+        }
+        else
+        {
+            copy( height, result.height );
+            copy( floatArray, result.water );
+        }
 
         result.dirty = true;
         return result;
     }
 
+    public Storage getStorage()
+    {
+        return storage;
+    }
+
     public void clear()
     {
-        Arrays.fill( height.array(),(byte) 0);
-        Arrays.fill( water.array(),0);
+        fillHeight( 0 );
+        fillWater( 0 );
+        markAllWet();
         dirty = true;
     }
 
@@ -243,7 +369,8 @@ public class Data implements Disposable
 
         // creates a (roughly) circular disc
         // of water with the given height
-        Arrays.fill( water.array(),0);
+        fillWater( 0 );
+        markAllWet();
 
         final int radius = Math.max( 1 , (int) (size/3f) );
         final int limit = Math.max( size-1 , radius+1 );
@@ -267,17 +394,84 @@ public class Data implements Disposable
 
     public void initWater(int minHeight,float amount)
     {
-        height.rewind();
-        water.rewind();
         for ( int i = 0 ; i < size*size; i++)
         {
-            float h = height.get();
-            water.put( h > minHeight ? water.get(i)+amount: 0);
+            float h = height(i);
+            putWater( i, h > minHeight ? water(i)+amount: 0);
         }
+        markAllWet();
         dirty = true;
     }
 
     public void flow(int count)
+    {
+        runFlow( count, false, getFlowEngine() );
+    }
+
+    /**
+     * Runs flow iterations using a specific engine,
+     * without changing the engine used by {@link #flow(int)}.
+     *
+     * @param count
+     * @param engine
+     * @throws IllegalArgumentException if the engine is not available
+     */
+    public void flow(int count,FlowEngine engine)
+    {
+        if ( ! engine.isAvailable() ) {
+            throw new IllegalArgumentException("Flow engine "+engine.getName()+" is not available");
+        }
+        runFlow( count, false, engine );
+    }
+
+    /**
+     * Runs flow iterations until the total amount of water moved during
+     * a single iteration drops below a given tolerance.
+     *
+     * Convergence is checked every {@link #STABILITY_CHECK_INTERVAL} iterations, so this method
+     * may overshoot by up to <code>STABILITY_CHECK_INTERVAL-1</code> iterations.
+     *
+     * @param tolerance
+     * @param maxIterations max. number of iterations to run
+     * @return number of iterations that were run
+     * @see #getResidual()
+     */
+    public int flowUntilStable(float tolerance,int maxIterations)
+    {
+        final FlowEngine engine = getFlowEngine();
+        int iterations = 0;
+        while ( iterations < maxIterations )
+        {
+            final int count = Math.min( STABILITY_CHECK_INTERVAL, maxIterations - iterations );
+            runFlow( count, true, engine );
+            iterations += count;
+            if ( residual < tolerance ) {
+                break;
+            }
+        }
+        return iterations;
+    }
+
+    /**
+     * Returns the total amount of water that flowed from one cell
+     * to another during the last iteration of the most recent {@link #flowUntilStable(float, int)} call.
+     *
+     * @return residual or {@link Float#NaN} if not known
+     */
+    public float getResidual()
+    {
+        return residual;
+    }
+
+    /**
+     * Runs flow iterations.
+     *
+     * @param count
+     * @param measure whether to update {@link #residual}, engines that
+     *                need extra work to determine the residual will skip it otherwise
+     * @param engine
+     */
+    private void runFlow(int count,boolean measure,FlowEngine engine)
     {
         // Using JNA + copying Java arrays using Memory.write()/read()
         // 1000 - flow() time: 55 ms (total: 51616 ms)
@@ -291,156 +485,455 @@ public class Data implements Disposable
         // Using Java only with FloatBuffer
         // 1000 - flow() time: 17 ms (total: 18121 ms
 
-        switch( CALC_MODE )
+        if ( waterBalance != null && count > 1 && engine.isIterative() )
         {
-            case JAVA:
-                for ( int i = 0 ; i < count ; i++)
-                {
-                    barrier.reset();
-                    for (int threadNo = 0, runnablesLength = runnables.length; threadNo < runnablesLength; threadNo++)
-                    {
-                        threadPool.submit( runnables[threadNo] );
-                    }
-                    while( true )
-                    {
-                        try
-                        {
-                            barrier.await();
-                            break;
-                        }
-                        catch (Exception e)
-                        {
-                            e.printStackTrace();
-                        }
-                    }
-                }
-                break;
-            case NATIVE:
-                height.rewind();
-                water.rewind();
-                if ( count == 1 )
-                {
-                    FlowLibrary.INSTANCE.flow( size, height , water );
+            // check each iteration on its own
+            for ( int i = 0 ; i < count ; i++ ) {
+                runFlow( 1, measure && i == count-1, engine );
+            }
+            return;
+        }
+        if ( deviceResident != engine ) {
+            syncFromDevice();
+        }
+        final double totalBefore = waterBalance != null ? getTotalWater() : 0;
+        final float moved;
+        if ( engine.supportsStorage( storage ) ) {
+            moved = engine.flow( this, count, measure );
+        }
+        else
+        {
+            // let the engine work on float copies, terrain does not change while flowing
+            expandGrids();
+            try {
+                moved = engine.flow( this, count, measure );
+            } finally {
+                syncFromDevice();
+                if ( storage == Storage.HALF ) {
+                    copy( water, waterHalf );
                 } else {
-                    FlowLibrary.INSTANCE.flowRepeat( size, height , water , count);
+                    copy( water.array(), waterTiled, tiledLayout );
                 }
-                break;
-            case OPENCL:
-                for ( int i = 0 ; i < count ; i++ )
-                {
-                    openCLExecutor.flow( this );
-                }
-                break;
+            }
+        }
+        if ( deviceResident == null ) {
+            // engine changed the water buffers
+            waterVersion++;
+        }
+        if ( measure ) {
+            residual = moved;
+        }
+        if ( waterBalance != null ) {
+            waterBalance.record( totalBefore, getTotalWater() );
         }
         dirty = true;
     }
 
-    private static void setupSlices(int x0,int y0,int width,int height,Rectangle[] output)
+    /**
+     * Enables or disables checking whether flow iterations keep the total amount of water.
+     *
+     * While enabled, the total amount of water is computed before and after each step, which is slow.
+     * Iterative engines are run one iteration at a time, all other engines record a whole flow() call as a
+     * single step.
+     *
+     * @param enabled
+     * @see #getWaterBalance()
+     */
+    public void setConservationCheck(boolean enabled)
     {
-        final int slices = output.length;
-        int sliceWidth = Math.max(1,width/slices);
-        int additionalLastSliceWidth = width - slices*sliceWidth;
+        if ( ! enabled ) {
+            waterBalance = null;
+        } else if ( waterBalance == null ) {
+            waterBalance = new WaterBalance();
+        }
+    }
+
+    /**
+     * Returns the net changes of the total amount of water since
+     * the conservation check got enabled.
+     *
+     * @return balance or <code>null</code> if the conservation check is disabled
+     * @see #setConservationCheck(boolean)
+     */
+    public WaterBalance getWaterBalance()
+    {
+        return waterBalance;
+    }
+
+    /**
+     * Marks the water buffers as outdated, to be called by engines that leave the
+     * result of a {@link FlowEngine#flow(Data, int, boolean) flow()} call in device memory.
+     *
+     * The water gets copied back on demand, when it is accessed
+     * through this class or when the height map is used with another engine.
+     *
+     * @param owner
+     * @see #syncFromDevice()
+     */
+    void setDeviceResident(DeviceResident owner)
+    {
+        this.deviceResident = owner;
+    }
 
-        int x=x0;
-        int w = sliceWidth;
-        for ( int i = 0 ; i < slices ; i++, x+= sliceWidth )
+    /**
+     * Copies water that only exists in device memory back into {@link #water}.
+     *
+     * Accessor methods of this class do this automatically, code accessing
+     * {@link #water} directly must call this method first.
+     */
+    public void syncFromDevice()
+    {
+        if ( deviceResident != null )
         {
-            if ( (i+1) == slices ) {
-                w += additionalLastSliceWidth;
-            }
-            output[i].setBounds( x,y0,w,height);
+            final DeviceResident owner = deviceResident;
+            deviceResident = null;
+            owner.readBack( this );
         }
     }
 
-    private void flow(Rectangle rect, int trueSize, float[] height, float[] water)
+    /**
+     * Enables or disables reading snapshots of water that only exists in device memory.
+     *
+     * While enabled, engines keeping water on a device take a snapshot after each flow() call and copy it to
+     * the host while the next call is already running. Reading water then returns the most recent snapshot
+     * received by {@link #pollDeviceSnapshot()} instead of waiting for the device. Changing water, saving, computing
+     * totals and using another engine still wait for the current state.
+     *
+     * @param enabled
+     * @throws IllegalArgumentException if enabling snapshots while they are not {@link #supportsDeviceSnapshots() supported}
+     */
+    public void setDeviceSnapshots(boolean enabled)
     {
-        // 1000 - flow() time: 15 ms (total: 17217 ms)
-        // 1000 - flow() time: 16 ms (total: 16102 ms)
-        // 1000 - flow() time: 14 ms (total: 15903 ms)
-        // --
-        // 1000 - flow() time: 14 ms (total: 15754 ms
+        if ( enabled && ! supportsDeviceSnapshots() ) {
+            throw new IllegalArgumentException("Device snapshots are not supported with "+storage+" storage");
+        }
+        this.deviceSnapshots = enabled;
+    }
 
-        // relative offsets to direct neightbours of current cell
-        final int[] relNeighbourOffsets = {-trueSize-1,-trueSize,-trueSize+1,-1,1,trueSize-1,trueSize,trueSize+1};
+    /**
+     * Returns whether {@link #setDeviceSnapshots(boolean) device snapshots} can be used.
+     *
+     * Snapshots get copied into the float {@link #water} grid, which {@link Storage#HALF}
+     * and {@link Storage#TILED} storage do not read from.
+     *
+     * @return
+     */
+    public boolean supportsDeviceSnapshots()
+    {
+        return storage == Storage.HEAP || storage == Storage.DIRECT;
+    }
 
-        // array holding list of direct
-        // neighbours whose level (water+height) is
-        // below the current node's level (water+height)
-        // so water needs to be re-distributed there
-        final int[] neighbours = new int[8];
-        int ptr;
-        // TODO: Code currently cheats and ignores the border area as
-        // TODO: we'd need to do lots of additional comparisons to detect
-        // TODO: those boundary cases (OR duplicate the loop and
-        // TODO: deal with the first/last row/column separately)
-        for (int y = rect.y, ymax = rect.y + rect.height; y < ymax ; y++)
+    public boolean isDeviceSnapshots()
+    {
+        return deviceSnapshots;
+    }
+
+    /**
+     * Updates {@link #water} with the most recent snapshot that arrived from the device, if any.
+     *
+     * @return whether the water changed, also sets {@link #dirty} in that case
+     * @see #setDeviceSnapshots(boolean)
+     */
+    public boolean pollDeviceSnapshot()
+    {
+        if ( deviceResident != null && deviceSnapshots && deviceResident.readSnapshot( this ) )
         {
-            ptr = y*trueSize+rect.x;
-            for ( int x = rect.x, xmax = rect.x + rect.width ; x < xmax ; x++,ptr++ )
-            {
-                final float currentWater = water[ptr];
-                if ( currentWater == 0 ) {
-                    // no water in this cell
-                    continue;
-                }
-                // true height (ground height + water height)
-                final float currentHeight = currentWater + height[ptr];
-                int pointCount = 0;
-                float heightSum = 0;
-                for (int relOffset : relNeighbourOffsets )
-                {
-                    final int offset = ptr + relOffset;
-                    final float otherHeight = water[offset]+height[offset];
-                    if ( otherHeight < currentHeight )
-                    {
-                        // ok, downstream
-                        heightSum += otherHeight;
-                        neighbours[pointCount++] = offset;
-                    }
-                }
+            dirty = true;
+            return true;
+        }
+        return false;
+    }
 
-                if ( pointCount > 0 )
-                {
-                    final float avgHeight = heightSum / pointCount;
-                    final float h = currentHeight - avgHeight;
-                    final float excessWater = Math.min(currentWater,h);
-
-                    final float fraction = excessWater / pointCount;
-                    final float newValue = currentWater - excessWater;
-                    water[ptr] = newValue < EPSILON ? 0 : newValue;
-                    for ( int i = pointCount-1 ; i >= 0 ; i-- )
-                    {
-                        final int offset = neighbours[i];
-                        final float newW = water[offset]+fraction;
-                        water[offset] = newW;
-                    }
-                }
+    /**
+     * Swaps {@link #water} and {@link #waterNext}, called by engines
+     * that write the next iteration into a separate buffer.
+     */
+    void swapWaterBuffers()
+    {
+        final FloatBuffer tmp = water;
+        water = waterNext;
+        waterNext = tmp;
+
+        final short[] tmpHalf = waterHalf;
+        waterHalf = waterNextHalf;
+        waterNextHalf = tmpHalf;
+
+        final float[] tmpTiled = waterTiled;
+        waterTiled = waterNextTiled;
+        waterNextTiled = tmpTiled;
+    }
+
+    // creates row-by-row float copies of HALF or TILED grids
+    private void expandGrids()
+    {
+        if ( height == null )
+        {
+            height = newFloatBuffer( size*size );
+            water = newFloatBuffer( size*size );
+        }
+        if ( storage == Storage.HALF )
+        {
+            copy( heightHalf, height );
+            copy( waterHalf, water );
+        }
+        else
+        {
+            copy( heightTiled, tiledLayout, height.array() );
+            copy( waterTiled, tiledLayout, water.array() );
+        }
+    }
+
+    /**
+     * Returns the temporal blocking state for the current depth.
+     *
+     * @param parallelism number of threads that will process tiles concurrently
+     * @return
+     */
+    TemporalBlocking getTemporalBlocking(int parallelism)
+    {
+        if ( temporalBlocking == null || temporalBlocking.depth != temporalBlockingDepth || temporalBlocking.getParallelism() != parallelism )
+        {
+            // temporal tiles keep their default size ratio to regular tiles
+            final int temporalTileSize = tileSize * TemporalBlocking.DEFAULT_TILE_SIZE / TileScheduler.DEFAULT_TILE_SIZE;
+            temporalBlocking = new TemporalBlocking( size, temporalTileSize, temporalBlockingDepth, parallelism );
+        }
+        return temporalBlocking;
+    }
+
+    /**
+     * Flags all tiles of the temporal blocking scheduler as wet
+     * after water got moved without it.
+     */
+    void invalidateTemporalTiles()
+    {
+        if ( temporalBlocking != null ) {
+            temporalBlocking.activeTiles.markAllWet();
+        }
+    }
+
+    /**
+     * Flags all tiles as wet, to be called whenever water got changed
+     * by something that does not keep track of wet tiles.
+     */
+    void markAllWet()
+    {
+        activeTiles.markAllWet();
+        invalidateTemporalTiles();
+    }
+
+    private void markWet(int x,int y)
+    {
+        activeTiles.markWet( x, y );
+        if ( temporalBlocking != null ) {
+            temporalBlocking.activeTiles.markWet( x, y );
+        }
+    }
+
+    /**
+     * Returns the engine used by {@link #flow(int)}.
+     *
+     * @return
+     * @see FlowEngines#getDefault()
+     */
+    public FlowEngine getFlowEngine()
+    {
+        if ( flowEngine == null ) {
+            flowEngine = FlowEngines.getDefault();
+        }
+        return flowEngine;
+    }
+
+    /**
+     * Changes the engine used by {@link #flow(int)}.
+     *
+     * @param engine
+     * @throws IllegalArgumentException if the engine is not available
+     * @see FlowEngines#get(String)
+     */
+    public void setFlowEngine(FlowEngine engine)
+    {
+        if ( ! engine.isAvailable() ) {
+            throw new IllegalArgumentException("Flow engine "+engine.getName()+" is not available");
+        }
+        this.flowEngine = engine;
+        markAllWet();
+    }
+
+    public int getTemporalBlockingDepth()
+    {
+        return temporalBlockingDepth;
+    }
+
+    /**
+     * Sets the number of iterations the {@link GatherFlowEngine} and {@link VectorFlowEngine}
+     * run on a tile before synchronizing with other threads.
+     *
+     * Larger values mean less memory traffic at the cost of redundantly computing
+     * the <code>2*depth</code> cells surrounding each tile. Results do not depend on this setting.
+     *
+     * @param depth iterations per tile, 1 disables temporal blocking
+     * @see TemporalBlocking
+     */
+    public void setTemporalBlockingDepth(int depth)
+    {
+        if ( depth < 1 ) {
+            throw new IllegalArgumentException("Depth must be >= 1");
+        }
+        this.temporalBlockingDepth = depth;
+    }
+
+    public int getTileSize()
+    {
+        return tileSize;
+    }
+
+    /**
+     * Sets the edge length of the tiles the Java engines split the height map into.
+     *
+     * Smaller tiles allow skipping more dry terrain and balance load better,
+     * larger tiles reduce scheduling overhead. Results do not depend on this setting.
+     *
+     * @param tileSize tile size in cells
+     * @see TileScheduler
+     */
+    public void setTileSize(int tileSize)
+    {
+        if ( tileSize < 1 ) {
+            throw new IllegalArgumentException("Tile size must be >= 1");
+        }
+        if ( tileSize != this.tileSize )
+        {
+            this.tileSize = tileSize;
+            this.tileScheduler = createTileScheduler( size, tileSize );
+            this.activeTiles = new ActiveTileSet( tileScheduler );
+            this.temporalBlocking = null;
+        }
+    }
+
+    void setupGatherBuffers()
+    {
+        if ( storage == Storage.HALF )
+        {
+            // only the temporal blocking path supports HALF storage, it does not need the outflow grid
+            if ( waterNextHalf == null ) {
+                waterNextHalf = new short[ size*size ];
             }
         }
+        else if ( storage == Storage.TILED )
+        {
+            // same as for HALF storage
+            if ( waterNextTiled == null ) {
+                waterNextTiled = new float[ tiledLayout.getLength() ];
+            }
+        }
+        else if ( waterNext == null )
+        {
+            waterNext = newFloatBuffer( size*size, storage );
+            outflow = new float[ size*size ];
+        }
     }
 
     public void clearWater() {
         dirty = true;
-        Arrays.fill(water.array(),(float) 0);
+        fillWater( 0 );
+        markAllWet();
     }
 
     public float height(int idx) {
+        if ( storage == Storage.HALF ) {
+            return HalfFloat.toFloat( heightHalf[idx] );
+        }
+        if ( storage == Storage.TILED ) {
+            return heightTiled[ tiledLayout.index( idx ) ];
+        }
         return height.get(idx);
     }
 
     public float water(int idx) {
+        if ( deviceResident != null && ! deviceSnapshots ) {
+            syncFromDevice();
+        }
+        if ( storage == Storage.HALF ) {
+            return HalfFloat.toFloat( waterHalf[idx] );
+        }
+        if ( storage == Storage.TILED ) {
+            return waterTiled[ tiledLayout.index( idx ) ];
+        }
         return water.get(idx);
     }
 
     public float water(int x,int y) {
-        return water.get(y*size+x);
+        if ( deviceResident != null && ! deviceSnapshots ) {
+            syncFromDevice();
+        }
+        if ( storage == Storage.TILED ) {
+            return waterTiled[ tiledLayout.index( x, y ) ];
+        }
+        return water(y*size+x);
+    }
+
+    private void putHeight(int idx,float value)
+    {
+        if ( deviceResident != null ) {
+            // zero-copy device buffers must not be written while owned by the device
+            syncFromDevice();
+        }
+        heightVersion++;
+        if ( storage == Storage.HALF ) {
+            heightHalf[idx] = HalfFloat.toHalf( value );
+        } else if ( storage == Storage.TILED ) {
+            heightTiled[ tiledLayout.index( idx ) ] = value;
+        } else {
+            height.put( idx, value );
+        }
+    }
+
+    private void putWater(int idx,float value)
+    {
+        if ( deviceResident != null ) {
+            syncFromDevice();
+        }
+        waterVersion++;
+        if ( storage == Storage.HALF ) {
+            waterHalf[idx] = HalfFloat.toHalf( value );
+        } else if ( storage == Storage.TILED ) {
+            waterTiled[ tiledLayout.index( idx ) ] = value;
+        } else {
+            water.put( idx, value );
+        }
+    }
+
+    private void fillHeight(float value)
+    {
+        syncFromDevice();
+        heightVersion++;
+        if ( storage == Storage.HALF ) {
+            Arrays.fill( heightHalf, HalfFloat.toHalf( value ) );
+        } else if ( storage == Storage.TILED ) {
+            Arrays.fill( heightTiled, value );
+        } else {
+            fill( height, value );
+        }
+    }
+
+    private void fillWater(float value)
+    {
+        syncFromDevice();
+        waterVersion++;
+        if ( storage == Storage.HALF ) {
+            Arrays.fill( waterHalf, HalfFloat.toHalf( value ) );
+        } else if ( storage == Storage.TILED ) {
+            Arrays.fill( waterTiled, value );
+        } else {
+            fill( water, value );
+        }
     }
 
     public Data initHeights(long seed, float randomRange) {
 
         final RandomGen rnd = new RandomGen(seed,randomRange);
 
-        Arrays.fill(height.array(),0f);
+        fillHeight( 0 );
 
         final float[] tmp = new float[4];
         for ( int i = 0 ; i < tmp.length ; i++ )
@@ -465,7 +958,7 @@ public class Data implements Disposable
         float min = 10000000;
         float max = -10000000;
         for ( int i =0, len= size*size ; i < len; i++) {
-            float v = height.get(i);
+            float v = height(i);
             if ( v < min ) {
                 min = v;
             }
@@ -474,11 +967,10 @@ public class Data implements Disposable
             }
         }
         float scale = 255f/(max-min);
-        height.rewind();
         for ( int i =0, len= size*size ; i < len; i++)
         {
-            float v = height.get();
-            height.put( i, (v-min)*scale );
+            float v = height(i);
+            putHeight( i, (v-min)*scale );
         }
         this.dirty = true;
         return this;
@@ -488,7 +980,10 @@ public class Data implements Disposable
 
         dirty = true;
 
-        final float[] copy = Arrays.copyOf( this.height.array(), this.height.array().length );
+        final float[] copy = new float[ size*size ];
+        for ( int i = 0 ; i < copy.length ; i++ ) {
+            copy[i] = height(i);
+        }
         for ( int iz = 1 ; iz < size-1; iz++)
         {
             for ( int ix = 1 ; ix < size-1; ix++) {
@@ -507,7 +1002,9 @@ public class Data implements Disposable
                 copy[ ix + iz*size ] = avg;
             }
         }
-        System.arraycopy( copy, 0, this.height.array(),0, copy.length );
+        for ( int i = 0 ; i < copy.length ; i++ ) {
+            putHeight( i, copy[i] );
+        }
     }
 
     private static float clamp(float v) {
@@ -617,7 +1114,7 @@ public class Data implements Disposable
             while ( ry < 0 ) {
                 ry += size;
             }
-            return height.get((ry%size) * size + (rx%size) );
+            return height((ry%size) * size + (rx%size) );
         }
         catch(ArrayIndexOutOfBoundsException e) {
             System.out.flush();
@@ -629,21 +1126,52 @@ public class Data implements Disposable
     }
 
     public float getWaterSum() {
-        return getWaterSum(water.array());
+        return (float) getTotalWater();
+    }
+
+    /**
+     * Returns the total amount of water, computed in parallel
+     * using compensated summation.
+     *
+     * @return
+     * @see WaterBalance#sum(Data)
+     */
+    public double getTotalWater() {
+        return WaterBalance.sum( this );
     }
 
-    private float getWaterSum(float[] water) {
-        float sum = 0f;
+    /**
+     * Replaces the height of all cells.
+     *
+     * @param values height per cell, stored row by row
+     */
+    void setHeight(float[] values)
+    {
         for ( int i = 0 ; i < size*size ; i++ ) {
-            sum += water[i];
+            putHeight( i, values[i] );
         }
-        return sum;
+        dirty = true;
+    }
+
+    /**
+     * Replaces the amount of water in all cells.
+     *
+     * @param values amount of water per cell, stored row by row
+     */
+    void setWater(float[] values)
+    {
+        for ( int i = 0 ; i < size*size ; i++ ) {
+            putWater( i, values[i] );
+        }
+        markAllWet();
+        dirty = true;
     }
 
     public void setWater(int x,int y,float value)
     {
         dirty = true;
-        water.put(x+y*size,value);
+        putWater(x+y*size,value);
+        markWet( x, y );
     }
 
     public void incHeight(int x,int y,int increment) {
@@ -658,7 +1186,7 @@ public class Data implements Disposable
     {
         while ( x < 0 ) {  x += size; }
         while ( y < 0 ) {  y += size; }
-        this.height.put( (y%size)*size + (x%size) , value);
+        putHeight( (y%size)*size + (x%size) , value);
     }
 
     public void setHeight(int x, int y, int value)
@@ -675,11 +1203,87 @@ public class Data implements Disposable
         }
     }
 
-    private static void writeArray(float[] array,OutputStream out) throws IOException
+    private static void writeBuffer(FloatBuffer buffer,OutputStream out) throws IOException
     {
-        writeInt(array.length,out);
-        for ( float value : array ) {
-            writeFloat(value,out);
+        writeInt(buffer.capacity(),out);
+        for ( int i = 0, len = buffer.capacity() ; i < len ; i++ ) {
+            writeFloat(buffer.get(i),out);
+        }
+    }
+
+    private static void writeArray(short[] halfFloats,OutputStream out) throws IOException
+    {
+        writeInt(halfFloats.length,out);
+        for ( short value : halfFloats ) {
+            writeFloat( HalfFloat.toFloat( value ), out );
+        }
+    }
+
+    private static void writeArray(float[] tiled,TiledLayout layout,OutputStream out) throws IOException
+    {
+        writeInt(layout.size*layout.size,out);
+        for ( int y = 0 ; y < layout.size ; y++ )
+        {
+            for ( int x = 0 ; x < layout.size ; x++ ) {
+                writeFloat( tiled[ layout.index( x, y ) ], out );
+            }
+        }
+    }
+
+    // copies a grid stored row by row into a TILED grid
+    private static void copy(float[] src,float[] dst,TiledLayout layout)
+    {
+        for ( int y = 0, ptr = 0 ; y < layout.size ; y++ )
+        {
+            for ( int x = 0 ; x < layout.size ; x++ ) {
+                dst[ layout.index( x, y ) ] = src[ ptr++ ];
+            }
+        }
+    }
+
+    // copies a TILED grid into a grid stored row by row
+    private static void copy(float[] src,TiledLayout layout,float[] dst)
+    {
+        for ( int y = 0, ptr = 0 ; y < layout.size ; y++ )
+        {
+            for ( int x = 0 ; x < layout.size ; x++ ) {
+                dst[ ptr++ ] = src[ layout.index( x, y ) ];
+            }
+        }
+    }
+
+    private static void copy(float[] src,FloatBuffer dst)
+    {
+        final FloatBuffer tmp = dst.duplicate();
+        tmp.clear();
+        tmp.put( src, 0, Math.min( src.length, tmp.capacity() ) );
+    }
+
+    private static void copy(float[] src,short[] dst)
+    {
+        for ( int i = 0, len = Math.min( src.length, dst.length ) ; i < len ; i++ ) {
+            dst[i] = HalfFloat.toHalf( src[i] );
+        }
+    }
+
+    private static void copy(short[] src,FloatBuffer dst)
+    {
+        for ( int i = 0 ; i < src.length ; i++ ) {
+            dst.put( i, HalfFloat.toFloat( src[i] ) );
+        }
+    }
+
+    private static void copy(FloatBuffer src,short[] dst)
+    {
+        for ( int i = 0 ; i < dst.length ; i++ ) {
+            dst[i] = HalfFloat.toHalf( src.get( i ) );
+        }
+    }
+
+    private static void fill(FloatBuffer buffer,float value)
+    {
+        for ( int i = 0, len = buffer.capacity() ; i < len ; i++ ) {
+            buffer.put( i, value );
         }
     }
 
@@ -741,8 +1345,18 @@ public class Data implements Disposable
 
     public static FloatBuffer newFloatBuffer(int n)
     {
-        return FloatBuffer.allocate( n );
-//        final ByteBuffer byteBuffer = ByteBuffer.allocateDirect(n * Sizeof.cl_float);
-//        return byteBuffer.order( ByteOrder.nativeOrder()).asFloatBuffer();
+        return newFloatBuffer( n, Storage.HEAP );
+    }
+
+    public static FloatBuffer newFloatBuffer(int n,Storage storage)
+    {
+        if ( storage == Storage.HEAP ) {
+            return FloatBuffer.allocate( n );
+        }
+        // alignedSlice() rounds both ends to page boundaries, so allocate whole pages plus one extra
+        final int pages = (n * Sizeof.cl_float + PAGE_SIZE - 1) / PAGE_SIZE;
+        final ByteBuffer byteBuffer = ByteBuffer.allocateDirect( (pages+1) * PAGE_SIZE ).alignedSlice( PAGE_SIZE );
+        byteBuffer.limit( n * Sizeof.cl_float );
+        return byteBuffer.order( ByteOrder.nativeOrder()).asFloatBuffer();
     }
 }
\ No newline at end of file
@@ -0,0 +1,489 @@
+package de.codesourcery.terrain;
+
+import java.util.Arrays;
+
+/**
+ * Computes the state the iterative engines converge to (flat lakes in depressions of the terrain)
+ * directly instead of simulating the flow of water.
+ *
+ * The terrain is split into basins by flooding it from its local minima (priority-flood), basins get
+ * merged into a tree in order of the elevation of the pass connecting them. The water currently present
+ * in each basin is then distributed top-down, a basin that is full overflows into its neighbour through
+ * the pass. Runs in <code>O(n log n)</code> for <code>n</code> cells, regardless of the number of iterations requested.
+ *
+ * Differences to the iterative engines:
+ * <ul>
+ * <li>water on a slope is routed to the basin the slope belongs to, while the iterative engines split it between all lower neighbours</li>
+ * <li>tiny amounts of water are never dropped (see {@link Data#EPSILON})</li>
+ * </ul>
+ */
+public class EquilibriumFlowEngine implements FlowEngine
+{
+    public static final String NAME = "EQUILIBRIUM";
+
+    // water that may get lost when subtracting sums of doubles, relative to the total
+    private static final double ROUNDING_TOLERANCE = 1e-9;
+
+    @Override
+    public String getName()
+    {
+        return NAME;
+    }
+
+    @Override
+    public boolean isAvailable()
+    {
+        return true;
+    }
+
+    @Override
+    public boolean isIterative()
+    {
+        return false;
+    }
+
+    @Override
+    public boolean supportsStorage(Data.Storage storage)
+    {
+        return true;
+    }
+
+    @Override
+    public float flow(Data data, int count, boolean measure)
+    {
+        if ( count > 0 ) {
+            data.setWater( computeEquilibrium( data ) );
+        }
+        // nothing moves once the equilibrium has been reached
+        return 0;
+    }
+
+    /**
+     * Computes the water grid at equilibrium.
+     *
+     * @param data
+     * @return amount of water per cell, stored row by row
+     */
+    public static float[] computeEquilibrium(Data data)
+    {
+        final int cellCount = data.size * data.size;
+        final float[] height = new float[ cellCount ];
+        final float[] water = new float[ cellCount ];
+        for ( int i = 0 ; i < cellCount ; i++ )
+        {
+            height[i] = data.height( i );
+            water[i] = data.water( i );
+        }
+        return new Solver( data, height, water ).solve();
+    }
+
+    /**
+     * State of a single computation.
+     */
+    private static final class Solver
+    {
+        private final Data data;
+        private final int size;
+        private final float[] height;
+        private final float[] water;
+
+        // basin each cell belongs to, negative while not assigned yet
+        private final int[] basin;
+        private int basinCount;
+
+        // passes between basins, sort keys of the pass elevations + the cells on either side
+        private long[] passKeys = new long[ 1024 ];
+        private int[] passCells = new int[ 2*1024 ];
+        private int passCount;
+
+        // nodes of the merge tree, basins are leaves 0...basinCount-1, followed by merges
+        private int nodeCount;
+        private int[] childA;
+        private int[] childB;
+        private int[] passA; // pass cell on childA's side
+        private int[] passB; // pass cell on childB's side
+        private float[] spill;
+        private double[] capacityA; // water childA holds when filled up to the spill elevation
+        private double[] capacityB;
+        private int[] cellsBelow; // number of cells below the current/spill elevation
+        private double[] heightSum; // sum of heights of those cells
+        private double[] inflow; // water originally present in the node's cells
+        private int[] leafCount;
+        private int[] firstLeaf; // position of the first leaf in leafOrder
+
+        private int[] leafOrder;
+
+        // cells of each basin
+        private int[] basinStart;
+        private int[] basinCells;
+
+        private final float[] result;
+
+        public Solver(Data data,float[] height,float[] water)
+        {
+            this.data = data;
+            this.size = data.size;
+            this.height = height;
+            this.water = water;
+            this.basin = new int[ height.length ];
+            this.result = new float[ height.length ];
+        }
+
+        public float[] solve()
+        {
+            final long[] sorted = new long[ height.length ];
+            for ( int i = 0 ; i < height.length ; i++ ) {
+                sorted[i] = sortKey( height[i], i );
+            }
+            Arrays.sort( sorted );
+
+            findBasins();
+            groupCellsByBasin();
+            buildMergeTree( sorted );
+            assignLeafRanges();
+            distribute( sorted );
+            return result;
+        }
+
+        /**
+         * Assigns each cell to the basin of a local minimum by flooding the
+         * terrain from all minima at once, always continuing at the lowest cell.
+         */
+        private void findBasins()
+        {
+            Arrays.fill( basin, -1 );
+            final CellHeap heap = new CellHeap( 1024 );
+            final int[] plateau = new int[ height.length ];
+            // cells of plateaus that are not a minimum, to be assigned while flooding
+            final int notMinimum = -2;
+            for ( int cell = 0 ; cell < height.length ; cell++ )
+            {
+                if ( basin[cell] != -1 ) {
+                    continue;
+                }
+                // collect all connected cells of the same elevation
+                final float h = height[cell];
+                int plateauSize = 0;
+                int ptr = 0;
+                boolean minimum = true;
+                plateau[plateauSize++] = cell;
+                basin[cell] = notMinimum;
+                while ( ptr < plateauSize )
+                {
+                    final int current = plateau[ptr++];
+                    for ( int offset : data.getNeighbourOffsets( current % size, current / size ) )
+                    {
+                        final int neighbour = current + offset;
+                        final float other = height[neighbour];
+                        if ( other < h ) {
+                            minimum = false;
+                        }
+                        else if ( other == h && basin[neighbour] == -1 )
+                        {
+                            basin[neighbour] = notMinimum;
+                            plateau[plateauSize++] = neighbour;
+                        }
+                    }
+                }
+                if ( minimum )
+                {
+                    final int label = basinCount++;
+                    for ( int i = 0 ; i < plateauSize ; i++ )
+                    {
+                        basin[ plateau[i] ] = label;
+                        heap.push( plateau[i], h );
+                    }
+                }
+            }
+
+            final boolean[] done = new boolean[ height.length ];
+            while ( ! heap.isEmpty() )
+            {
+                final int cell = heap.pop();
+                final int label = basin[cell];
+                for ( int offset : data.getNeighbourOffsets( cell % size, cell / size ) )
+                {
+                    final int neighbour = cell + offset;
+                    if ( basin[neighbour] < 0 )
+                    {
+                        basin[neighbour] = label;
+                        heap.push( neighbour, height[neighbour] );
+                    }
+                    else if ( done[neighbour] && basin[neighbour] != label )
+                    {
+                        // recorded once per pair of cells, by whichever got popped last
+                        addPass( cell, neighbour );
+                    }
+                }
+                done[cell] = true;
+            }
+        }
+
+        private void addPass(int cell1,int cell2)
+        {
+            if ( passCount == passKeys.length )
+            {
+                passKeys = Arrays.copyOf( passKeys, passCount * 2 );
+                passCells = Arrays.copyOf( passCells, passCount * 4 );
+            }
+            passKeys[passCount] = sortKey( Math.max( height[cell1], height[cell2] ), passCount );
+            passCells[2*passCount] = cell1;
+            passCells[2*passCount+1] = cell2;
+            passCount++;
+        }
+
+        private void groupCellsByBasin()
+        {
+            basinStart = new int[ basinCount + 1 ];
+            for ( int b : basin ) {
+                basinStart[b+1]++;
+            }
+            for ( int i = 1 ; i <= basinCount ; i++ ) {
+                basinStart[i] += basinStart[i-1];
+            }
+            basinCells = new int[ basin.length ];
+            final int[] next = Arrays.copyOf( basinStart, basinCount );
+            for ( int cell = 0 ; cell < basin.length ; cell++ ) {
+                basinCells[ next[ basin[cell] ]++ ] = cell;
+            }
+        }
+
+        /**
+         * Merges basins in ascending order of the elevation of the
+         * lowest pass between them (Kruskal), keeping track of how
+         * much water each side holds until it spills over.
+         */
+        private void buildMergeTree(long[] sortedCells)
+        {
+            final int maxNodes = 2*basinCount - 1;
+            childA = new int[ maxNodes ];
+            childB = new int[ maxNodes ];
+            passA = new int[ maxNodes ];
+            passB = new int[ maxNodes ];
+            spill = new float[ maxNodes ];
+            capacityA = new double[ maxNodes ];
+            capacityB = new double[ maxNodes ];
+            cellsBelow = new int[ maxNodes ];
+            heightSum = new double[ maxNodes ];
+            inflow = new double[ maxNodes ];
+            for ( int cell = 0 ; cell < water.length ; cell++ ) {
+                inflow[ basin[cell] ] += water[cell];
+            }
+            nodeCount = basinCount;
+
+            // union-find on basins, with the tree node each set currently is
+            final int[] parent = new int[ basinCount ];
+            final int[] nodeOfSet = new int[ basinCount ];
+            for ( int i = 0 ; i < basinCount ; i++ )
+            {
+                parent[i] = i;
+                nodeOfSet[i] = i;
+            }
+
+            final long[] keys = Arrays.copyOf( passKeys, passCount );
+            Arrays.sort( keys );
+            int nextCell = 0;
+            for ( long key : keys )
+            {
+                final int pass = (int) key;
+                final int cell1 = passCells[2*pass];
+                final int cell2 = passCells[2*pass+1];
+                final float elevation = Math.max( height[cell1], height[cell2] );
+
+                // account for all cells below the pass
+                for ( ; nextCell < sortedCells.length ; nextCell++ )
+                {
+                    final int cell = (int) sortedCells[nextCell];
+                    if ( height[cell] >= elevation ) {
+                        break;
+                    }
+                    final int node = nodeOfSet[ find( parent, basin[cell] ) ];
+                    cellsBelow[node]++;
+                    heightSum[node] += height[cell];
+                }
+
+                final int set1 = find( parent, basin[cell1] );
+                final int set2 = find( parent, basin[cell2] );
+                if ( set1 == set2 ) {
+                    continue;
+                }
+                final int a = nodeOfSet[set1];
+                final int b = nodeOfSet[set2];
+                final int node = nodeCount++;
+                childA[node] = a;
+                childB[node] = b;
+                passA[node] = cell1;
+                passB[node] = cell2;
+                spill[node] = elevation;
+                capacityA[node] = (double) cellsBelow[a] * elevation - heightSum[a];
+                capacityB[node] = (double) cellsBelow[b] * elevation - heightSum[b];
+                cellsBelow[node] = cellsBelow[a] + cellsBelow[b];
+                heightSum[node] = heightSum[a] + heightSum[b];
+                inflow[node] = inflow[a] + inflow[b];
+
+                parent[set2] = set1;
+                nodeOfSet[set1] = node;
+            }
+            if ( nodeCount != maxNodes ) {
+                throw new IllegalStateException("Basins not connected, expected "+maxNodes+" nodes but got "+nodeCount);
+            }
+        }
+
+        private static int find(int[] parent,int set)
+        {
+            while ( parent[set] != set )
+            {
+                parent[set] = parent[ parent[set] ];
+                set = parent[set];
+            }
+            return set;
+        }
+
+        /**
+         * Orders leaves so that the leaves below each node form a contiguous range.
+         */
+        private void assignLeafRanges()
+        {
+            // children always have a lower index than their parent
+            leafCount = new int[ nodeCount ];
+            Arrays.fill( leafCount, 0, basinCount, 1 );
+            for ( int node = basinCount ; node < nodeCount ; node++ ) {
+                leafCount[node] = leafCount[ childA[node] ] + leafCount[ childB[node] ];
+            }
+            firstLeaf = new int[ nodeCount ];
+            for ( int node = nodeCount - 1 ; node >= basinCount ; node-- )
+            {
+                firstLeaf[ childA[node] ] = firstLeaf[node];
+                firstLeaf[ childB[node] ] = firstLeaf[node] + leafCount[ childA[node] ];
+            }
+            leafOrder = new int[ basinCount ];
+            for ( int leaf = 0 ; leaf < basinCount ; leaf++ ) {
+                leafOrder[ firstLeaf[leaf] ] = leaf;
+            }
+        }
+
+        private boolean containsLeaf(int node,int leaf)
+        {
+            final int position = firstLeaf[leaf];
+            return position >= firstLeaf[node] && position < firstLeaf[node] + leafCount[node];
+        }
+
+        /**
+         * Distributes water from the root of the merge tree downwards. Nodes that hold
+         * enough water to cover both children become a single lake, otherwise each child keeps
+         * its own water plus whatever flowed in from outside, overflowing into its sibling.
+         */
+        private void distribute(long[] scratch)
+        {
+            final int root = nodeCount - 1;
+            final double tolerance = inflow[root] * ROUNDING_TOLERANCE;
+
+            // nodes to visit, with the water they hold and the basin extra water entered through
+            final int[] stackNode = new int[ nodeCount ];
+            final double[] stackWater = new double[ nodeCount ];
+            final int[] stackEntry = new int[ nodeCount ];
+            int stackSize = 0;
+            stackNode[stackSize] = root;
+            stackWater[stackSize] = inflow[root];
+            stackEntry[stackSize++] = -1;
+            while ( stackSize > 0 )
+            {
+                stackSize--;
+                final int node = stackNode[stackSize];
+                final double w = stackWater[stackSize];
+                final int entry = stackEntry[stackSize];
+                if ( w <= 0 ) {
+                    continue;
+                }
+                if ( node < basinCount || w >= capacityA[node] + capacityB[node] ) {
+                    fillLake( node, w, scratch );
+                    continue;
+                }
+                final int a = childA[node];
+                final int b = childB[node];
+                double waterA = inflow[a];
+                double waterB = inflow[b];
+                int entryA = -1;
+                int entryB = -1;
+                final double extra = w - waterA - waterB;
+                if ( extra < -tolerance ) {
+                    // less water than the children started with, only happens if both are full anyway
+                    fillLake( node, w, scratch );
+                    continue;
+                }
+                if ( extra > 0 )
+                {
+                    if ( entry == -1 || containsLeaf( a, entry ) ) {
+                        waterA += extra;
+                        entryA = entry;
+                    } else {
+                        waterB += extra;
+                        entryB = entry;
+                    }
+                }
+                if ( waterA > capacityA[node] )
+                {
+                    waterB += waterA - capacityA[node];
+                    waterA = capacityA[node];
+                    entryB = basin[ passB[node] ];
+                }
+                else if ( waterB > capacityB[node] )
+                {
+                    waterA += waterB - capacityB[node];
+                    waterB = capacityB[node];
+                    entryA = basin[ passA[node] ];
+                }
+                stackNode[stackSize] = a;
+                stackWater[stackSize] = waterA;
+                stackEntry[stackSize++] = entryA;
+                stackNode[stackSize] = b;
+                stackWater[stackSize] = waterB;
+                stackEntry[stackSize++] = entryB;
+            }
+        }
+
+        /**
+         * Fills the lowest cells of a node up to a common level.
+         */
+        private void fillLake(int node,double w,long[] scratch)
+        {
+            int count = 0;
+            for ( int i = firstLeaf[node], end = i + leafCount[node] ; i < end ; i++ )
+            {
+                final int leaf = leafOrder[i];
+                for ( int ptr = basinStart[leaf] ; ptr < basinStart[leaf+1] ; ptr++ )
+                {
+                    final int cell = basinCells[ptr];
+                    scratch[count++] = sortKey( height[cell], cell );
+                }
+            }
+            Arrays.sort( scratch, 0, count );
+
+            // find the number of cells below the water level
+            double sum = 0;
+            double level = 0;
+            int flooded = 0;
+            while ( flooded < count )
+            {
+                sum += height[ (int) scratch[flooded++] ];
+                level = ( w + sum ) / flooded;
+                if ( flooded == count || level <= height[ (int) scratch[flooded] ] ) {
+                    break;
+                }
+            }
+            for ( int i = 0 ; i < flooded ; i++ )
+            {
+                final int cell = (int) scratch[i];
+                result[cell] = (float) ( level - height[cell] );
+            }
+        }
+
+        // sorts by value first, then by index
+        private static long sortKey(float value,int index)
+        {
+            int bits = Float.floatToIntBits( value );
+            bits ^= ( bits >> 31 ) & 0x7fffffff;
+            return ( (long) bits << 32 ) | ( index & 0xffffffffL );
+        }
+    }
+}
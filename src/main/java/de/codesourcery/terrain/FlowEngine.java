@@ -0,0 +1,74 @@
+package de.codesourcery.terrain;
+
+import com.badlogic.gdx.utils.Disposable;
+
+/**
+ * An implementation of the water flow simulation.
+ *
+ * Engines get discovered through {@link java.util.ServiceLoader} (see {@link FlowEngines}) and
+ * are shared by all {@link Data} instances, so implementations must be thread-safe and should
+ * acquire expensive resources (threads, native libraries, OpenCL contexts) lazily on first use.
+ */
+public interface FlowEngine extends Disposable
+{
+    /**
+     * Returns a unique name used to select this engine.
+     *
+     * @return
+     */
+    String getName();
+
+    /**
+     * Returns whether this engine can be used in the current environment.
+     *
+     * Must be cheap to call repeatedly and must not acquire any resources
+     * besides loading (but not initializing) native libraries.
+     *
+     * @return
+     */
+    boolean isAvailable();
+
+    /**
+     * Runs flow iterations.
+     *
+     * @param data
+     * @param count number of iterations to run
+     * @param measure whether the total amount of water moved during the last iteration
+     *                is needed, engines that need extra work to determine it may skip it otherwise
+     * @return amount of water moved during the last iteration, {@link Float#NaN} if not measured
+     */
+    float flow(Data data,int count,boolean measure);
+
+    /**
+     * Returns whether this engine works on grids using a given storage directly.
+     *
+     * {@link Data} passes float copies of the grids, stored row by row, to engines that don't.
+     *
+     * @param storage
+     * @return
+     */
+    default boolean supportsStorage(Data.Storage storage) {
+        return storage == Data.Storage.HEAP || storage == Data.Storage.DIRECT;
+    }
+
+    /**
+     * Returns whether this engine simulates individual flow iterations.
+     *
+     * Engines that compute the final state directly ignore the number of iterations
+     * requested and are not considered when looking for the fastest engine.
+     *
+     * @return
+     * @see AutoTuner
+     */
+    default boolean isIterative() {
+        return true;
+    }
+
+    /**
+     * Releases all resources held by this engine, the engine
+     * re-acquires them when being used again.
+     */
+    @Override
+    default void dispose() {
+    }
+}
@@ -0,0 +1,152 @@
+package de.codesourcery.terrain;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
+
+/**
+ * Registry of all {@link FlowEngine}s found on the classpath.
+ *
+ * Engines are registered in <code>META-INF/services/de.codesourcery.terrain.FlowEngine</code>. The
+ * default engine can be chosen using the {@link #ENGINE_PROPERTY} system property, otherwise the
+ * first available engine in order of expected performance is used.
+ */
+public final class FlowEngines
+{
+    /**
+     * System property holding the name of the default engine.
+     */
+    public static final String ENGINE_PROPERTY = "terrain.flowEngine";
+
+    // engines to try (in this order) if no default engine got configured
+    private static final String[] PREFERRED = {
+            OpenCLFlowEngine.NAME,
+            NativeFlowEngine.NAME,
+            VectorFlowEngine.NAME,
+            GatherFlowEngine.NAME,
+            JavaFlowEngine.NAME
+    };
+
+    private static List<FlowEngine> engines;
+    private static FlowEngine defaultEngine;
+
+    private FlowEngines() {
+    }
+
+    /**
+     * Returns all engines, including the ones not available in the current environment.
+     *
+     * @return
+     */
+    public static synchronized List<FlowEngine> getEngines()
+    {
+        if ( engines == null )
+        {
+            final List<FlowEngine> result = new ArrayList<>();
+            final Iterator<FlowEngine> it = ServiceLoader.load( FlowEngine.class ).iterator();
+            while ( true )
+            {
+                try
+                {
+                    if ( ! it.hasNext() ) {
+                        break;
+                    }
+                    result.add( it.next() );
+                }
+                catch(ServiceConfigurationError e)
+                {
+                    // skip broken providers so that a single missing class
+                    // or dependency does not take down all other engines
+                    System.err.println("Failed to load flow engine: "+e.getMessage());
+                }
+            }
+            engines = Collections.unmodifiableList( result );
+        }
+        return engines;
+    }
+
+    /**
+     * Looks up an engine by name.
+     *
+     * @param name
+     * @return engine or <code>null</code> if no engine with this name exists
+     */
+    public static FlowEngine find(String name)
+    {
+        for ( FlowEngine engine : getEngines() )
+        {
+            if ( engine.getName().equals( name ) ) {
+                return engine;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns an engine that is available in the current environment.
+     *
+     * @param name
+     * @return
+     * @throws IllegalArgumentException if there is no engine with this name or it is not available
+     */
+    public static FlowEngine get(String name)
+    {
+        final FlowEngine engine = find( name );
+        if ( engine == null ) {
+            throw new IllegalArgumentException("Unknown flow engine: "+name);
+        }
+        if ( ! engine.isAvailable() ) {
+            throw new IllegalArgumentException("Flow engine "+name+" is not available");
+        }
+        return engine;
+    }
+
+    /**
+     * Returns the engine to use for new {@link Data} instances.
+     *
+     * @return
+     * @throws IllegalStateException if no engine is available at all
+     */
+    public static synchronized FlowEngine getDefault()
+    {
+        if ( defaultEngine == null )
+        {
+            final String configured = System.getProperty( ENGINE_PROPERTY );
+            if ( configured != null ) {
+                defaultEngine = get( configured );
+            }
+            for ( int i = 0 ; defaultEngine == null && i < PREFERRED.length ; i++ )
+            {
+                final FlowEngine engine = find( PREFERRED[i] );
+                if ( engine != null && engine.isAvailable() ) {
+                    defaultEngine = engine;
+                }
+            }
+            for ( Iterator<FlowEngine> it = getEngines().iterator() ; defaultEngine == null && it.hasNext() ; )
+            {
+                final FlowEngine engine = it.next();
+                if ( engine.isAvailable() ) {
+                    defaultEngine = engine;
+                }
+            }
+            if ( defaultEngine == null ) {
+                throw new IllegalStateException("No flow engine available");
+            }
+            System.out.println("Using flow engine "+defaultEngine.getName());
+        }
+        return defaultEngine;
+    }
+
+    /**
+     * Releases the resources held by all engines.
+     */
+    public static synchronized void disposeAll()
+    {
+        if ( engines != null ) {
+            engines.forEach( FlowEngine::dispose );
+        }
+    }
+}
@@ -1,17 +1,69 @@
 package de.codesourcery.terrain;
 
+import com.sun.jna.Callback;
 import com.sun.jna.Library;
 import com.sun.jna.Native;
 import com.sun.jna.Pointer;
 
 import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
 
+/**
+ * Functions exported by <code>libflow.so</code>.
+ *
+ * {@link #INSTANCE} calls them through JNA, see {@link NativeFlowEngine} for alternatives.
+ */
 public interface FlowLibrary extends Library
 {
     FlowLibrary INSTANCE = (FlowLibrary)
-            Native.load(("flow"),FlowLibrary.class);
+            Native.load(NativeFlowEngine.getLibraryName(),FlowLibrary.class);
 
-    void flowRepeat(int size, FloatBuffer height,FloatBuffer water,int repeat);
+    /**
+     * @return total amount of water moved during the last iteration
+     */
+    float flowRepeat(int size, FloatBuffer height,FloatBuffer water,int repeat);
 
-    void flow(int size, FloatBuffer height, FloatBuffer water);
+    /**
+     * @return total amount of water moved
+     */
+    float flow(int size, FloatBuffer height, FloatBuffer water);
+
+    /**
+     * Race-free, multi-threaded variant of {@link #flowRepeat(int, FloatBuffer, FloatBuffer, int)} that gives
+     * the same results as {@link GatherFlowEngine}, regardless of the number of threads.
+     *
+     * Missing from libraries built from older versions of <code>flow.c</code>.
+     *
+     * @return total amount of water moved during the last iteration, -1 if running out of memory or threads
+     * @throws UnsatisfiedLinkError if the library does not export this function
+     */
+    float flowRepeatParallel(int size, FloatBuffer height, FloatBuffer water, int repeat, int threadCount);
+
+    /**
+     * Progress callback of {@link #flowRepeatParallelCancel(int, FloatBuffer, FloatBuffer, int, int, int, ProgressCallback, IntBuffer)},
+     * invoked from the calling thread. Must not throw exceptions.
+     */
+    interface ProgressCallback extends Callback
+    {
+        /**
+         * @param iteration number of iterations done so far
+         * @param moved total amount of water moved during the last iteration
+         * @return <code>false</code> to stop
+         */
+        boolean invoke(int iteration,float moved);
+    }
+
+    /**
+     * Same as {@link #flowRepeatParallel(int, FloatBuffer, FloatBuffer, int, int)} but invokes a callback every
+     * <code>progressInterval</code> iterations and once more with the number of iterations actually run after stopping.
+     *
+     * Also stops once the first element of <code>cancel</code> is non-zero, which gets checked after each iteration
+     * and may be set by any thread while running.
+     *
+     * @param cancel direct buffer
+     * @return total amount of water moved during the last iteration, -1 if running out of memory or threads
+     * @throws UnsatisfiedLinkError if the library does not export this function
+     */
+    float flowRepeatParallelCancel(int size, FloatBuffer height, FloatBuffer water, int repeat, int threadCount,
+                                   int progressInterval, ProgressCallback callback, IntBuffer cancel);
 }
@@ -0,0 +1,52 @@
+package de.codesourcery.terrain;
+
+/**
+ * Flow engine settings found by the {@link AutoTuner}.
+ */
+public final class FlowProfile
+{
+    public final String engine;
+    public final int threadCount;
+    public final int tileSize;
+    public final int temporalBlockingDepth;
+    // measured time per flow iteration
+    public final float millisPerIteration;
+
+    public FlowProfile(String engine,int threadCount,int tileSize,int temporalBlockingDepth,float millisPerIteration)
+    {
+        if ( engine == null ) {
+            throw new IllegalArgumentException("Engine must not be null");
+        }
+        if ( threadCount < 1 || tileSize < 1 || temporalBlockingDepth < 1 ) {
+            throw new IllegalArgumentException("Thread count, tile size and depth must be >= 1");
+        }
+        this.engine = engine;
+        this.threadCount = threadCount;
+        this.tileSize = tileSize;
+        this.temporalBlockingDepth = temporalBlockingDepth;
+        this.millisPerIteration = millisPerIteration;
+    }
+
+    /**
+     * Configures a {@link Data} instance to use these settings.
+     *
+     * Note that the thread count is shared by all instances, see {@link AbstractJavaFlowEngine#setThreadCount(int)}.
+     *
+     * @param data
+     * @throws IllegalArgumentException if the engine is not available
+     */
+    public void apply(Data data)
+    {
+        data.setFlowEngine( FlowEngines.get( engine ) );
+        data.setTileSize( tileSize );
+        data.setTemporalBlockingDepth( temporalBlockingDepth );
+        AbstractJavaFlowEngine.setThreadCount( threadCount );
+    }
+
+    @Override
+    public String toString()
+    {
+        return engine+" (threads: "+threadCount+", tile size: "+tileSize+", depth: "+temporalBlockingDepth+
+                ", "+millisPerIteration+" ms/iteration)";
+    }
+}
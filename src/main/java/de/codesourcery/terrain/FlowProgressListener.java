@@ -0,0 +1,19 @@
+package de.codesourcery.terrain;
+
+/**
+ * Receives progress reports of long-running flow computations.
+ *
+ * @see NativeFlowEngine#flowAsync(Data, int, int, FlowProgressListener)
+ */
+@FunctionalInterface
+public interface FlowProgressListener
+{
+    /**
+     * Invoked after a number of iterations.
+     *
+     * @param iteration number of iterations done so far
+     * @param moved total amount of water moved during the last iteration
+     * @return <code>false</code> to stop
+     */
+    boolean progress(int iteration,float moved);
+}
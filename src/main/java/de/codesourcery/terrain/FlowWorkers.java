@@ -0,0 +1,234 @@
+package de.codesourcery.terrain;
+
+import com.badlogic.gdx.utils.Disposable;
+
+import java.util.concurrent.Phaser;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A fixed set of long-lived worker threads that execute multi-step, multi-iteration
+ * jobs, synchronizing between steps using a {@link Phaser} (that spins for a short while before
+ * parking waiting threads).
+ *
+ * The thread invoking {@link #execute(Job, int)} takes part in the computation as
+ * well, so a pool with a parallelism of <code>n</code> only starts <code>n-1</code> threads.
+ *
+ * Any exception thrown by a job aborts the remaining steps and gets re-thrown
+ * to the caller of {@link #execute(Job, int)}.
+ */
+public final class FlowWorkers implements Disposable
+{
+    /**
+     * A job that consists of a number of iterations with a fixed
+     * number of steps each.
+     */
+    public interface Job
+    {
+        /**
+         * Returns the number of steps per iteration.
+         *
+         * @return
+         */
+        int getStepCount();
+
+        /**
+         * Invoked by exactly one thread before any thread starts working on a step.
+         *
+         * @param iteration
+         * @param step
+         */
+        default void beforeStep(int iteration,int step) {
+        }
+
+        /**
+         * Invoked by all threads concurrently, returns
+         * once this thread is done with its share of the work.
+         *
+         * @param iteration
+         * @param step
+         * @param workerIndex index of invoking thread, 0...{@link #getParallelism()}-1
+         */
+        void runStep(int iteration,int step,int workerIndex);
+
+        /**
+         * Invoked by exactly one thread after all threads finished working on a step.
+         *
+         * @param iteration
+         * @param step
+         */
+        default void afterStep(int iteration,int step) {
+        }
+    }
+
+    private final int parallelism;
+    private final Thread[] threads;
+    private final StepPhaser phaser;
+    private final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+    // current job, only changed by execute() while all workers
+    // are waiting for the next job to start
+    private Job job;
+    private int totalSteps;
+    private volatile boolean shutdown;
+
+    private final class StepPhaser extends Phaser
+    {
+        // number of steps completed in the current job, -1 while waiting for the job to start
+        private int completedSteps = -1;
+
+        public StepPhaser(int parties)
+        {
+            super(parties);
+        }
+
+        @Override
+        protected boolean onAdvance(int phase, int registeredParties)
+        {
+            if ( shutdown ) {
+                return true;
+            }
+            if ( completedSteps >= 0 && completedSteps < totalSteps )
+            {
+                final int stepCount = job.getStepCount();
+                final int next = completedSteps+1;
+                try
+                {
+                    if ( failure.get() == null ) {
+                        job.afterStep( completedSteps / stepCount, completedSteps % stepCount );
+                    }
+                    if ( failure.get() == null && next < totalSteps ) {
+                        job.beforeStep( next / stepCount, next % stepCount );
+                    }
+                }
+                catch(Throwable t)
+                {
+                    failure.compareAndSet( null, t );
+                }
+            }
+            completedSteps++;
+            return false;
+        }
+    }
+
+    /**
+     * Create instance.
+     *
+     * @param parallelism total number of threads (including the one calling {@link #execute(Job, int)}) to work on a job
+     * @param name prefix for thread names
+     */
+    public FlowWorkers(int parallelism,String name)
+    {
+        if ( parallelism < 1 ) {
+            throw new IllegalArgumentException("Parallelism must be >= 1");
+        }
+        this.parallelism = parallelism;
+        this.phaser = new StepPhaser( parallelism );
+        this.threads = new Thread[ parallelism-1 ];
+        for ( int i = 0 ; i < threads.length ; i++ )
+        {
+            final int workerIndex = i+1;
+            threads[i] = new Thread( () -> workerLoop( workerIndex ), name+"-"+workerIndex );
+            threads[i].setDaemon( true );
+            threads[i].start();
+        }
+    }
+
+    public int getParallelism()
+    {
+        return parallelism;
+    }
+
+    private void workerLoop(int workerIndex)
+    {
+        while ( true )
+        {
+            // wait for next job
+            phaser.arriveAndAwaitAdvance();
+            if ( shutdown ) {
+                return;
+            }
+            runSteps( workerIndex );
+        }
+    }
+
+    private void runSteps(int workerIndex)
+    {
+        // read shared state only once, the caller may already be starting the next
+        // job while this thread is still returning from the last step
+        final Job job = this.job;
+        final int stepCount = job.getStepCount();
+        final int totalSteps = this.totalSteps;
+        for ( int i = 0 ; i < totalSteps ; i++ )
+        {
+            if ( failure.get() == null )
+            {
+                try
+                {
+                    job.runStep( i / stepCount, i % stepCount, workerIndex );
+                }
+                catch(Throwable t)
+                {
+                    failure.compareAndSet( null, t );
+                }
+            }
+            phaser.arriveAndAwaitAdvance();
+        }
+    }
+
+    /**
+     * Runs a job and waits for it to complete.
+     *
+     * Not thread-safe, only one job may be executed at any time.
+     *
+     * @param job
+     * @param iterations number of iterations to run
+     * @throws RuntimeException if the job failed
+     */
+    public void execute(Job job,int iterations)
+    {
+        if ( shutdown ) {
+            throw new IllegalStateException("Already disposed");
+        }
+        if ( iterations < 1 || job.getStepCount() < 1 ) {
+            return;
+        }
+        this.job = job;
+        this.totalSteps = iterations * job.getStepCount();
+        this.phaser.completedSteps = -1;
+        failure.set( null );
+        try
+        {
+            job.beforeStep( 0, 0 );
+        }
+        catch(Throwable t)
+        {
+            failure.set( t );
+        }
+
+        // start workers
+        phaser.arriveAndAwaitAdvance();
+        runSteps( 0 );
+        this.job = null;
+
+        final Throwable t = failure.getAndSet( null );
+        if ( t instanceof RuntimeException ) {
+            throw (RuntimeException) t;
+        }
+        if ( t instanceof Error ) {
+            throw (Error) t;
+        }
+        if ( t != null ) {
+            throw new RuntimeException( t );
+        }
+    }
+
+    @Override
+    public void dispose()
+    {
+        if ( ! shutdown )
+        {
+            shutdown = true;
+            phaser.forceTermination();
+        }
+    }
+}
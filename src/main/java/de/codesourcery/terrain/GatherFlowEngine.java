@@ -0,0 +1,308 @@
+package de.codesourcery.terrain;
+
+import java.awt.Rectangle;
+
+/**
+ * Race-free Java implementation that reads the current water grid and
+ * writes into a second buffer, every cell pulling its inflow from the
+ * neighbours that drain into it. Results do not depend on the
+ * number of threads used.
+ *
+ * Supports temporal blocking, see {@link Data#setTemporalBlockingDepth(int)}. Grids using
+ * {@link Data.Storage#DIRECT off-heap}, {@link Data.Storage#HALF half-precision} or {@link Data.Storage#TILED tiled}
+ * storage are always processed that way (if necessary with a depth of 1) as the kernels work on float arrays
+ * stored row by row and temporal blocking copies tiles into such per-thread arrays anyway.
+ */
+public class GatherFlowEngine extends AbstractJavaFlowEngine
+{
+    public static final String NAME = "JAVA_GATHER";
+
+    private final String name;
+    private final GatherKernel kernel;
+
+    public GatherFlowEngine()
+    {
+        this( NAME, ScalarGatherKernel.INSTANCE );
+    }
+
+    /**
+     * Create instance.
+     *
+     * @param name
+     * @param kernel kernel to use, <code>null</code> if not available
+     */
+    protected GatherFlowEngine(String name,GatherKernel kernel)
+    {
+        this.name = name;
+        this.kernel = kernel;
+    }
+
+    @Override
+    public String getName()
+    {
+        return name;
+    }
+
+    @Override
+    public boolean isAvailable()
+    {
+        return kernel != null;
+    }
+
+    @Override
+    public boolean supportsStorage(Data.Storage storage)
+    {
+        return true;
+    }
+
+    @Override
+    protected float flow(Data data, FlowWorkers workers, int count, boolean measure)
+    {
+        if ( data.getTemporalBlockingDepth() > 1 || data.getStorage() != Data.Storage.HEAP ) {
+            return flowTemporal( data, workers, count, measure );
+        }
+        data.setupGatherBuffers();
+        final int size = data.size;
+        final TileScheduler tileScheduler = data.tileScheduler;
+        final ActiveTileSet activeTiles = data.activeTiles;
+        final TileTask outflowTask = tile ->
+        {
+            if ( activeTiles.isWet( tile ) )
+            {
+                activeTiles.setScratchCleared( tile, false );
+                return kernel.computeOutflow( tile.area, size, data.height.array(), data.water.array(), data.outflow, data.waterNext.array() );
+            }
+            // tile just ran dry, make sure it neither
+            // passes on nor receives stale water
+            fill( tile.area, size, data.outflow, 0 );
+            fill( tile.area, size, data.waterNext.array(), 0 );
+            activeTiles.setScratchCleared( tile, true );
+            return 0;
+        };
+        final TileTask inflowTask = tile ->
+        {
+            final boolean hasWater = kernel.gatherInflow( tile.area, size, data.height.array(), data.water.array(), data.outflow, data.waterNext.array() );
+            activeTiles.setWetNext( tile, hasWater );
+            return 0;
+        };
+        final boolean[] borderHasWater = new boolean[1];
+        final float[] borderMoved = new float[1];
+        final CellVisitor borderOutflow = (x,y) ->
+        {
+            borderHasWater[0] |= data.water.get( y*size+x ) != 0;
+            borderMoved[0] += computeBorderOutflow( data, x, y, data.height.array(), data.water.array(), data.outflow, data.waterNext.array() );
+        };
+        final CellVisitor borderInflow = (x,y) -> gatherBorderInflow( data, x, y, data.height.array(), data.water.array(), data.outflow, data.waterNext.array() );
+
+        workers.execute( new FlowWorkers.Job()
+        {
+            @Override
+            public int getStepCount()
+            {
+                return 2;
+            }
+
+            @Override
+            public void beforeStep(int iteration, int step)
+            {
+                if ( step == 0 ) {
+                    borderHasWater[0] = false;
+                    borderMoved[0] = 0;
+                    clearMoved();
+                    tileScheduler.reset( TileScheduler.ALL_COLORS, tile -> activeTiles.isWet( tile ) || ! activeTiles.isScratchCleared( tile ) );
+                } else {
+                    tileScheduler.reset( TileScheduler.ALL_COLORS, activeTiles::isWetOrHasWetNeighbour );
+                }
+            }
+
+            @Override
+            public void runStep(int iteration, int step, int workerIndex)
+            {
+                // the outermost ring of cells is processed by the first
+                // worker before it joins the others working on the tiles
+                if ( step == 0 )
+                {
+                    if ( workerIndex == 0 ) {
+                        visitBorder( size, borderOutflow );
+                    }
+                    addMoved( workerIndex, processTiles( tileScheduler, outflowTask ) );
+                }
+                else
+                {
+                    if ( workerIndex == 0 ) {
+                        visitBorder( size, borderInflow );
+                    }
+                    processTiles( tileScheduler, inflowTask );
+                }
+            }
+
+            @Override
+            public void afterStep(int iteration, int step)
+            {
+                if ( step == 0 ) {
+                    activeTiles.setBorderWet( borderHasWater[0] );
+                    return;
+                }
+                activeTiles.swap();
+                data.swapWaterBuffers();
+            }
+        }, count );
+        data.invalidateTemporalTiles();
+        return sumMoved() + borderMoved[0];
+    }
+
+    private float flowTemporal(Data data, FlowWorkers workers, int count, boolean measure)
+    {
+        data.setupGatherBuffers();
+        final TemporalBlocking blocking = data.getTemporalBlocking( workers.getParallelism() );
+        final ActiveTileSet tiles = blocking.activeTiles;
+        final TileScheduler scheduler = blocking.scheduler;
+        final int depth = blocking.depth;
+        final int blocks = (count + depth - 1) / depth;
+
+        workers.execute( new FlowWorkers.Job()
+        {
+            @Override
+            public int getStepCount()
+            {
+                return 1;
+            }
+
+            @Override
+            public void beforeStep(int block, int step)
+            {
+                clearMoved();
+                scheduler.reset( TileScheduler.ALL_COLORS, tile -> tiles.isWetOrHasWetNeighbour( tile ) || ! tiles.isScratchCleared( tile ) );
+            }
+
+            @Override
+            public void runStep(int block, int step, int workerIndex)
+            {
+                // the last block may have less iterations
+                final int iterations = Math.min( depth, count - block*depth );
+                TileScheduler.Tile tile;
+                float moved = 0;
+                while ( ( tile = scheduler.next() ) != null )
+                {
+                    if ( tiles.isWetOrHasWetNeighbour( tile ) )
+                    {
+                        moved += process( blocking, data, tile, iterations, measure, workerIndex );
+                        tiles.setScratchCleared( tile, false );
+                    } else {
+                        // no water can reach this tile within this block
+                        clearWaterNext( data, tile.area );
+                        tiles.setScratchCleared( tile, true );
+                    }
+                }
+                addMoved( workerIndex, moved );
+            }
+
+            @Override
+            public void afterStep(int block, int step)
+            {
+                tiles.swap();
+                data.swapWaterBuffers();
+            }
+        }, blocks );
+        data.activeTiles.markAllWet();
+        return measure ? sumMoved() : Float.NaN;
+    }
+
+    private float process(TemporalBlocking blocking, Data data, TileScheduler.Tile tile, int iterations, boolean measure, int workerIndex)
+    {
+        switch( data.getStorage() )
+        {
+            case HALF:
+                return blocking.process( tile, iterations, kernel, data.heightHalf, data.waterHalf, data.waterNextHalf, measure, workerIndex );
+            case TILED:
+                return blocking.process( tile, iterations, kernel, data.tiledLayout, data.heightTiled, data.waterTiled, data.waterNextTiled, measure, workerIndex );
+            default:
+                return blocking.process( tile, iterations, kernel, data.height, data.water, data.waterNext, measure, workerIndex );
+        }
+    }
+
+    private static void clearWaterNext(Data data, Rectangle area)
+    {
+        switch( data.getStorage() )
+        {
+            case HALF:
+                fill( area, data.size, data.waterNextHalf, HalfFloat.ZERO );
+                break;
+            case TILED:
+                fill( area, data.tiledLayout, data.waterNextTiled, 0 );
+                break;
+            default:
+                fill( area, data.size, data.waterNext, 0 );
+        }
+    }
+
+    /**
+     * First phase for a single cell in the outermost ring of the height map.
+     *
+     * @return amount of water that flows out of the cell
+     * @see GatherKernel#computeOutflow(Rectangle, int, float[], float[], float[], float[])
+     */
+    private static float computeBorderOutflow(Data data,int x,int y,float[] height, float[] water, float[] outflow, float[] waterNext)
+    {
+        final int ptr = y*data.size+x;
+        final float currentWater = water[ptr];
+        if ( currentWater == 0 ) {
+            // no water in this cell
+            outflow[ptr] = 0;
+            waterNext[ptr] = 0;
+            return 0;
+        }
+        // true height (ground height + water height)
+        final float currentHeight = currentWater + height[ptr];
+        int pointCount = 0;
+        float heightSum = 0;
+        for (int relOffset : data.getNeighbourOffsets( x, y ) )
+        {
+            final int offset = ptr + relOffset;
+            final float otherHeight = water[offset]+height[offset];
+            if ( otherHeight < currentHeight )
+            {
+                // ok, downstream
+                heightSum += otherHeight;
+                pointCount++;
+            }
+        }
+
+        if ( pointCount > 0 )
+        {
+            final float avgHeight = heightSum / pointCount;
+            final float h = currentHeight - avgHeight;
+            final float excessWater = Math.min(currentWater,h);
+
+            final float newValue = currentWater - excessWater;
+            outflow[ptr] = excessWater / pointCount;
+            waterNext[ptr] = newValue < Data.EPSILON ? 0 : newValue;
+            return excessWater;
+        }
+        outflow[ptr] = 0;
+        waterNext[ptr] = currentWater;
+        return 0;
+    }
+
+    /**
+     * Second phase for a single cell in the outermost ring of the height map.
+     *
+     * @see GatherKernel#gatherInflow(Rectangle, int, float[], float[], float[], float[])
+     */
+    private static void gatherBorderInflow(Data data,int x,int y,float[] height, float[] water, float[] outflow, float[] waterNext)
+    {
+        final int ptr = y*data.size+x;
+        final float currentHeight = water[ptr] + height[ptr];
+        float inflow = 0;
+        for (int relOffset : data.getNeighbourOffsets( x, y ) )
+        {
+            final int offset = ptr + relOffset;
+            if ( water[offset]+height[offset] > currentHeight )
+            {
+                // upstream
+                inflow += outflow[offset];
+            }
+        }
+        waterNext[ptr] += inflow;
+    }
+}
@@ -0,0 +1,51 @@
+package de.codesourcery.terrain;
+
+import java.awt.Rectangle;
+
+/**
+ * The two phases of one iteration of the gather-based (double-buffered) flow calculation.
+ *
+ * Implementations must produce bit-identical results so that
+ * they can be used interchangeably.
+ *
+ * @see ScalarGatherKernel
+ */
+public interface GatherKernel
+{
+    /**
+     * First phase.
+     *
+     * Determines how much water each cell inside the given area passes on to
+     * <b>each</b> of its downstream neighbours and stores the amount of water remaining
+     * in the cell into <code>waterNext</code>. Only reads from <code>height</code> and
+     * <code>water</code> so it's safe to run concurrently on any number of areas.
+     *
+     * @param area cells to process, must not include the outermost ring of cells of the height map
+     * @param trueSize size of the height map
+     * @param height
+     * @param water
+     * @param outflow receives amount of water each cell passes on to each of its downstream neighbours
+     * @param waterNext receives the water remaining in each cell
+     * @return total amount of water flowing out of the area's cells (the summation order is
+     *         implementation-specific so this value is <b>not</b> necessarily bit-identical)
+     */
+    float computeOutflow(Rectangle area, int trueSize, float[] height, float[] water, float[] outflow, float[] waterNext);
+
+    /**
+     * Second phase.
+     *
+     * Adds the water each cell inside the given area receives from its
+     * upstream neighbours to <code>waterNext</code>. A neighbour is upstream
+     * if its level (water+height) is above the cell's level, exactly mirroring
+     * the test done in the first phase.
+     *
+     * @param area cells to process, must not include the outermost ring of cells of the height map
+     * @param trueSize size of the height map
+     * @param height
+     * @param water
+     * @param outflow
+     * @param waterNext
+     * @return <code>true</code> if any cell inside the area has water afterwards
+     */
+    boolean gatherInflow(Rectangle area, int trueSize, float[] height, float[] water, float[] outflow, float[] waterNext);
+}
@@ -0,0 +1,96 @@
+package de.codesourcery.terrain;
+
+/**
+ * Conversion between <code>float</code> and IEEE 754 half-precision (binary16) values
+ * stored in a <code>short</code>.
+ *
+ * Half-precision values have an 11-bit significand (about 3 decimal digits) and
+ * a max. finite value of 65504, conversions round to nearest even.
+ *
+ * @see Data.Storage#HALF
+ */
+public final class HalfFloat
+{
+    /**
+     * Half-precision representation of <code>0.0f</code>.
+     */
+    public static final short ZERO = 0;
+
+    private HalfFloat() {
+    }
+
+    /**
+     * Converts a half-precision value to float, this conversion is exact.
+     *
+     * @param half
+     * @return
+     */
+    public static float toFloat(short half)
+    {
+        final int bits = half & 0xffff;
+        final int sign = (bits & 0x8000) << 16;
+        final int exponent = (bits >>> 10) & 0x1f;
+        final int mantissa = bits & 0x3ff;
+        if ( exponent == 0x1f ) {
+            // infinity or NaN
+            return Float.intBitsToFloat( sign | 0x7f800000 | (mantissa << 13) );
+        }
+        if ( exponent == 0 )
+        {
+            // zero or subnormal, value = mantissa * 2^-24
+            final float value = mantissa * 0x1p-24f;
+            return sign != 0 ? -value : value;
+        }
+        return Float.intBitsToFloat( sign | ((exponent + 127 - 15) << 23) | (mantissa << 13) );
+    }
+
+    /**
+     * Converts a float to the nearest half-precision value.
+     *
+     * Values too large to be represented become infinite, values
+     * too small to be represented become zero.
+     *
+     * @param value
+     * @return
+     */
+    public static short toHalf(float value)
+    {
+        final int bits = Float.floatToRawIntBits( value );
+        final int sign = (bits >>> 16) & 0x8000;
+        final int exponent = (bits >>> 23) & 0xff;
+        int mantissa = bits & 0x7fffff;
+        if ( exponent == 0xff ) {
+            // infinity or NaN, keep NaNs quiet
+            return (short) (sign | 0x7c00 | (mantissa != 0 ? 0x200 | (mantissa >>> 13) : 0));
+        }
+        final int halfExponent = exponent - 127 + 15;
+        if ( halfExponent >= 0x1f ) {
+            return (short) (sign | 0x7c00);
+        }
+        if ( halfExponent <= 0 )
+        {
+            if ( halfExponent < -10 ) {
+                // less than half of the smallest subnormal
+                return (short) sign;
+            }
+            // subnormal, make the implicit leading bit explicit
+            mantissa |= 0x800000;
+            final int shift = 14 - halfExponent;
+            final int remainder = mantissa & ((1 << shift) - 1);
+            final int halfway = 1 << (shift - 1);
+            int result = mantissa >>> shift;
+            if ( remainder > halfway || ( remainder == halfway && (result & 1) != 0 ) ) {
+                // may carry into the exponent, yielding the smallest normal value
+                result++;
+            }
+            return (short) (sign | result);
+        }
+        int result = (halfExponent << 10) | (mantissa >>> 13);
+        final int remainder = mantissa & 0x1fff;
+        if ( remainder > 0x1000 || ( remainder == 0x1000 && (result & 1) != 0 ) ) {
+            // may carry into the exponent, rounding up to infinity
+            result++;
+        }
+        return (short) (sign | result);
+    }
+}
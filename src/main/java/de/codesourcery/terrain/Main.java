@@ -7,16 +7,24 @@ import java.awt.event.KeyEvent;
 import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
 import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.lang.reflect.InvocationTargetException;
 import java.util.Properties;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 
 public class Main extends JFrame
 {
     private static final File CONFIG_FILE = new File(".terraincfg");
+    private static final File PROFILE_FILE = new File(".terrainprofile");
 
     private static final boolean COLORIZE = false;
 
@@ -315,8 +323,10 @@ public class Main extends JFrame
                                 try (FileInputStream in = new FileInputStream( selectedFile ) ) {
                                     System.out.println("Reading data from "+ selectedFile );
                                     data = Data.read( in );
+                                    data.setDeviceSnapshots( data.supportsDeviceSnapshots() );
                                     mostRecentFile = selectedFile;
                                     saveConfig();
+                                    applyFlowProfile();
                                 }
                                 catch (IOException e1)
                                 {
@@ -378,6 +388,8 @@ public class Main extends JFrame
                 timer.start();
             }
             final long t1 = System.currentTimeMillis();
+            // don't wait for iterations still running on an OpenCL device
+            data.pollDeviceSnapshot();
             if ( RENDER_OPENGL && data.dirty )
             {
                 glFrame.renderer.setData( data );
@@ -531,6 +543,85 @@ public class Main extends JFrame
         }
     }
 
+    /**
+     * Configures the current height map with the fastest flow settings
+     * for its size, tuning them in the background first if necessary.
+     *
+     * The simulation is paused while tuning as calibration changes the shared thread count.
+     */
+    private void applyFlowProfile()
+    {
+        if ( System.getProperty( FlowEngines.ENGINE_PROPERTY ) != null ) {
+            // explicitly chosen engine takes precedence
+            return;
+        }
+        if ( tuning != null )
+        {
+            // height map got replaced
+            tuning.cancel( true );
+            tuning = null;
+        }
+        final AutoTuner tuner = new AutoTuner( PROFILE_FILE );
+        final FlowProfile profile = tuner.load( data.size );
+        if ( profile != null )
+        {
+            System.out.println("Using flow profile: "+profile);
+            profile.apply( data );
+            return;
+        }
+        // calibrate on a copy, the height map may get edited meanwhile
+        final Data target = data;
+        final Data copy;
+        try
+        {
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            data.save( out );
+            copy = Data.read( new ByteArrayInputStream( out.toByteArray() ), data.getStorage() );
+        }
+        catch(IOException e)
+        {
+            e.printStackTrace();
+            return;
+        }
+        final FutureTask<FlowProfile> task = new FutureTask<FlowProfile>( () ->
+        {
+            try {
+                return tuner.getProfile( copy );
+            } finally {
+                copy.dispose();
+            }
+        })
+        {
+            @Override
+            protected void done()
+            {
+                SwingUtilities.invokeLater( () -> tuningFinished( this, target ) );
+            }
+        };
+        tuning = task;
+        tuningExecutor.execute( task );
+    }
+
+    private void tuningFinished(Future<FlowProfile> task,Data target)
+    {
+        if ( task != tuning ) {
+            // cancelled
+            return;
+        }
+        tuning = null;
+        try
+        {
+            final FlowProfile profile = task.get();
+            if ( target == data ) {
+                profile.apply( data );
+            }
+        }
+        catch(InterruptedException | ExecutionException e)
+        {
+            e.printStackTrace();
+        }
+    }
+
     private final MyPanel panel = new MyPanel();
 
     private long tickCnt = 0;
@@ -538,9 +629,19 @@ public class Main extends JFrame
 
     private boolean waterSimulationRunning = false;
 
+    // calibration of the current height map, null if not running
+    private Future<FlowProfile> tuning;
+
+    private final ExecutorService tuningExecutor = Executors.newSingleThreadExecutor( r ->
+    {
+        final Thread thread = new Thread( r, "flow-tuning" );
+        thread.setDaemon( true );
+        return thread;
+    });
+
     private final Timer timer = new Timer((int) (1000f/FPS), ev ->
     {
-        if ( !waterSimulationRunning ) {
+        if ( !waterSimulationRunning || tuning != null ) {
             panel.repaint();
             return;
         }
@@ -575,6 +676,8 @@ public class Main extends JFrame
         } catch(Exception e) {
             e.printStackTrace();
         }
+        data.setDeviceSnapshots( data.supportsDeviceSnapshots() );
+        applyFlowProfile();
         setTitle( "Terrain" );
         setDefaultCloseOperation( JFrame.EXIT_ON_CLOSE );
         panel.setPreferredSize( new Dimension( 640, 480 ) );
@@ -0,0 +1,149 @@
+package de.codesourcery.terrain;
+
+/**
+ * Speeds up {@link Data#flowUntilStable(float, int)} on large height maps by first letting
+ * the water settle on coarser copies of the map.
+ *
+ * As water moves at most one cell per iteration, crossing a valley takes as many iterations as
+ * the valley is wide. Each level of the pyramid has half the edge length of the level below
+ * (height maps of size <code>2^k+1</code> divide cleanly), so water travels twice as far per
+ * iteration. Levels are processed coarsest first, the water surface of each level is used as starting
+ * point for the next finer level, leaving mostly local corrections for the finer levels.
+ */
+public final class Multigrid
+{
+    /**
+     * Height maps are not coarsened below this size.
+     */
+    public static final int DEFAULT_MIN_SIZE = 33;
+
+    private final int minSize;
+
+    public Multigrid()
+    {
+        this( DEFAULT_MIN_SIZE );
+    }
+
+    /**
+     * Create instance.
+     *
+     * @param minSize size of the coarsest level
+     */
+    public Multigrid(int minSize)
+    {
+        if ( minSize < 3 ) {
+            throw new IllegalArgumentException("Min. size must be >= 3");
+        }
+        this.minSize = minSize;
+    }
+
+    /**
+     * Runs flow iterations until the water is stable, using the engine of the given height map
+     * on all levels.
+     *
+     * @param data
+     * @param tolerance see {@link Data#flowUntilStable(float, int)}
+     * @param maxIterations max. number of iterations to run per level
+     * @return number of iterations that were run on <code>data</code> itself
+     */
+    public int flowUntilStable(Data data,float tolerance,int maxIterations)
+    {
+        if ( data.size < 2*minSize - 1 || ( data.size - 1 ) % 2 != 0 ) {
+            return data.flowUntilStable( tolerance, maxIterations );
+        }
+        final Data coarse = restrict( data );
+        try
+        {
+            coarse.setFlowEngine( data.getFlowEngine() );
+            flowUntilStable( coarse, tolerance, maxIterations );
+            prolongate( coarse, data );
+        }
+        finally
+        {
+            coarse.dispose();
+        }
+        return data.flowUntilStable( tolerance, maxIterations );
+    }
+
+    /**
+     * Creates a height map with half the edge length, each cell holding
+     * the average height and water depth of a block of 2x2 cells.
+     *
+     * @param data height map of size <code>2n+1</code>
+     * @return height map of size <code>n+1</code>
+     */
+    static Data restrict(Data data)
+    {
+        final int size = data.size;
+        final int coarseSize = ( size + 1 ) / 2;
+        final float[] height = new float[ coarseSize * coarseSize ];
+        final float[] water = new float[ coarseSize * coarseSize ];
+        final int[] cells = new int[ coarseSize * coarseSize ];
+        for ( int y = 0 ; y < size ; y++ )
+        {
+            for ( int x = 0 ; x < size ; x++ )
+            {
+                final int src = y*size + x;
+                final int dst = (y/2) * coarseSize + x/2;
+                height[dst] += data.height( src );
+                water[dst] += data.water( src );
+                cells[dst]++;
+            }
+        }
+        for ( int i = 0 ; i < cells.length ; i++ )
+        {
+            height[i] /= cells[i];
+            water[i] /= cells[i];
+        }
+        final Data result = new Data( coarseSize, Data.Storage.HEAP );
+        result.setHeight( height );
+        result.setWater( water );
+        return result;
+    }
+
+    /**
+     * Fills cells of a height map up to the water surface of the corresponding
+     * cell of a coarser copy, keeping the total amount of water.
+     *
+     * @param coarse
+     * @param data height map to update
+     */
+    static void prolongate(Data coarse,Data data)
+    {
+        final int size = data.size;
+        final float[] water = new float[ size * size ];
+        double expected = 0;
+        double actual = 0;
+        for ( int y = 0 ; y < size ; y++ )
+        {
+            for ( int x = 0 ; x < size ; x++ )
+            {
+                final int ptr = y*size + x;
+                expected += data.water( ptr );
+                final int src = (y/2) * coarse.size + x/2;
+                final float coarseWater = coarse.water( src );
+                if ( coarseWater > 0 )
+                {
+                    final float level = coarse.height( src ) + coarseWater;
+                    final float h = data.height( ptr );
+                    if ( level > h )
+                    {
+                        water[ptr] = level - h;
+                        actual += water[ptr];
+                    }
+                }
+            }
+        }
+        if ( actual == 0 ) {
+            // nothing to start from, keep the current state
+            return;
+        }
+        // cells within a block differ in height so the
+        // amount of water does not match exactly
+        final float scale = (float) ( expected / actual );
+        for ( int i = 0 ; i < water.length ; i++ ) {
+            water[i] *= scale;
+        }
+        data.setWater( water );
+    }
+}
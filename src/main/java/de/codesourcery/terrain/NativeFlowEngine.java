@@ -0,0 +1,357 @@
+package de.codesourcery.terrain;
+
+import java.io.File;
+import java.lang.ref.Reference;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Runs the C implementation in <code>flow.c</code>.
+ *
+ * Uses the multi-threaded, race-free <code>flowRepeatParallel()</code> with the thread count of the Java
+ * engines (see {@link AbstractJavaFlowEngine#setThreadCount(int)}), giving the same results as {@link GatherFlowEngine}.
+ * Older libraries without it get called through the original single-threaded
+ * <code>flow()</code>/<code>flowRepeat()</code> functions instead.
+ *
+ * Calls the library through the foreign function API when running on JDK 22+ and the
+ * <code>panama</code> profile got compiled in (see <code>PanamaFlowLibrary</code>), otherwise through JNA.
+ * The library gets loaded from the path given by {@link #LIBRARY_PROPERTY} or, if not set,
+ * from <code>lib/libflow.so</code> or the JNA library path.
+ */
+public class NativeFlowEngine implements FlowEngine
+{
+    public static final String NAME = "NATIVE";
+
+    /**
+     * System property holding the path to <code>libflow.so</code>.
+     */
+    public static final String LIBRARY_PROPERTY = "terrain.flowLibrary";
+
+    private static final String PANAMA_LIBRARY_CLASS = "de.codesourcery.terrain.PanamaFlowLibrary";
+
+    private Boolean available;
+    private FlowLibrary library;
+    // whether the library exports flowRepeatParallel() / flowRepeatParallelCancel()
+    private volatile boolean parallel = true;
+    private volatile boolean progress = true;
+
+    // runs flowAsync(), lazily created
+    private ExecutorService executor;
+
+    @Override
+    public String getName()
+    {
+        return NAME;
+    }
+
+    @Override
+    public synchronized boolean isAvailable()
+    {
+        if ( available == null )
+        {
+            library = loadLibrary();
+            available = library != null;
+        }
+        return available;
+    }
+
+    private synchronized FlowLibrary getLibrary()
+    {
+        if ( ! isAvailable() ) {
+            throw new IllegalStateException("Flow library not available");
+        }
+        return library;
+    }
+
+    private static FlowLibrary loadLibrary()
+    {
+        try {
+            return (FlowLibrary) Class.forName( PANAMA_LIBRARY_CLASS ).getDeclaredConstructor().newInstance();
+        }
+        catch(ClassNotFoundException e) {
+            // not compiled in
+        }
+        catch(Exception | LinkageError e) {
+            System.err.println("Foreign function API not usable, falling back to JNA: "+e);
+        }
+        try {
+            return FlowLibrary.INSTANCE;
+        } catch(LinkageError e) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns the name of the library as understood by JNA.
+     *
+     * @return
+     */
+    static String getLibraryName()
+    {
+        final String path = System.getProperty( LIBRARY_PROPERTY );
+        return path != null ? path : "flow";
+    }
+
+    /**
+     * Looks for <code>libflow.so</code>.
+     *
+     * @return path to the library or <code>null</code> if not found
+     */
+    static Path findLibrary()
+    {
+        final String configured = System.getProperty( LIBRARY_PROPERTY );
+        if ( configured != null ) {
+            return Paths.get( configured );
+        }
+        final String fileName = System.mapLibraryName( "flow" );
+        final Path local = Paths.get( "lib", fileName );
+        if ( Files.isRegularFile( local ) ) {
+            return local;
+        }
+        final String searchPath = System.getProperty( "jna.library.path" );
+        if ( searchPath != null )
+        {
+            for ( String dir : searchPath.split( File.pathSeparator ) )
+            {
+                final Path candidate = Paths.get( dir, fileName );
+                if ( Files.isRegularFile( candidate ) ) {
+                    return candidate;
+                }
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public float flow(Data data, int count, boolean measure)
+    {
+        // Using JNA + copying Java arrays using Memory.write()/read()
+        // 1000 - flow() time: 55 ms (total: 51616 ms)
+
+        // Using JNA + FloatBuffer
+        // 1000 - flow() time: 16 ms (total: 14736 ms)
+        final float moved = run( getLibrary(), data, count );
+        data.markAllWet();
+        return moved;
+    }
+
+    private float run(FlowLibrary library,Data data,int count)
+    {
+        data.height.rewind();
+        data.water.rewind();
+        if ( parallel )
+        {
+            try
+            {
+                return checkResult( library.flowRepeatParallel( data.size, data.height, data.water, count, AbstractJavaFlowEngine.getThreadCount() ) );
+            }
+            catch(UnsatisfiedLinkError e)
+            {
+                System.err.println("Native flow library does not export flowRepeatParallel() (outdated libflow.so?), falling back to a single thread");
+                parallel = false;
+            }
+        }
+        if ( count == 1 ) {
+            return library.flow( data.size, data.height , data.water );
+        }
+        return library.flowRepeat( data.size, data.height , data.water , count);
+    }
+
+    private static float checkResult(float moved)
+    {
+        if ( moved < 0 ) {
+            throw new IllegalStateException("Failed to allocate memory or start threads");
+        }
+        return moved;
+    }
+
+    /**
+     * Future returned by {@link #flowAsync(Data, int, int, FlowProgressListener)}.
+     *
+     * Cancelling only asks the native code to stop, the future gets cancelled once the native call returned.
+     */
+    private static final class FlowFuture extends CompletableFuture<Integer>
+    {
+        // read by the native code after each iteration
+        public final IntBuffer cancelFlag = ByteBuffer.allocateDirect( Integer.BYTES ).order( ByteOrder.nativeOrder() ).asIntBuffer();
+
+        /**
+         * Asks the run to stop after the current iteration.
+         *
+         * @param mayInterruptIfRunning ignored
+         * @return <code>false</code> if the run already completed
+         */
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning)
+        {
+            if ( isDone() ) {
+                return false;
+            }
+            cancelFlag.put( 0, 1 );
+            return true;
+        }
+
+        public boolean isCancelRequested()
+        {
+            return cancelFlag.get( 0 ) != 0;
+        }
+
+        // called by the flow thread after the native call returned
+        public void finishCancelled()
+        {
+            super.cancel( false );
+        }
+    }
+
+    /**
+     * Runs flow iterations on a dedicated thread, with all iterations done by a single call into the native library.
+     *
+     * The listener gets invoked on the flow thread every <code>progressInterval</code> iterations and once more
+     * after the last iteration (the return value of that last call is ignored). Returning <code>false</code> or throwing
+     * an exception stops the run at that progress report.
+     *
+     * Cancelling the returned future stops the run after the current iteration. The future does not
+     * complete right away but only once the run actually stopped, so the height map may be used again
+     * as soon as the future is done - no matter whether it completed normally, exceptionally or got cancelled.
+     *
+     * The height map must not be modified or flowed otherwise until the returned future is done. Does not
+     * take part in {@link Data#setConservationCheck(boolean) conservation checks}.
+     *
+     * @param data height map using {@link #supportsStorage(Data.Storage) supported} storage
+     * @param count number of iterations to run
+     * @param progressInterval number of iterations between progress reports
+     * @param listener
+     * @return future completing with the number of iterations actually run
+     * @throws IllegalArgumentException if the height map's storage is not supported
+     * @throws IllegalStateException if the native library is not available
+     */
+    public CompletableFuture<Integer> flowAsync(Data data,int count,int progressInterval,FlowProgressListener listener)
+    {
+        if ( ! supportsStorage( data.getStorage() ) ) {
+            throw new IllegalArgumentException("Unsupported storage: "+data.getStorage());
+        }
+        if ( progressInterval < 1 ) {
+            throw new IllegalArgumentException("Progress interval must be >= 1");
+        }
+        final FlowLibrary library = getLibrary();
+        data.syncFromDevice();
+        final FlowFuture result = new FlowFuture();
+        getExecutor().execute( () ->
+        {
+            if ( result.isCancelRequested() )
+            {
+                result.finishCancelled();
+                return;
+            }
+            final int[] iterations = {0};
+            final Throwable[] failure = {null};
+            final FlowLibrary.ProgressCallback callback = (iteration,moved) ->
+            {
+                iterations[0] = iteration;
+                if ( failure[0] != null ) {
+                    return false;
+                }
+                try {
+                    return listener.progress( iteration, moved );
+                }
+                catch(RuntimeException | Error e)
+                {
+                    // must not propagate into native code
+                    failure[0] = e;
+                    return false;
+                }
+            };
+            try
+            {
+                runWithProgress( library, data, count, progressInterval, callback, result.cancelFlag );
+                data.markAllWet();
+                data.waterVersion++;
+                data.dirty = true;
+                // only now the native code is done with the height map
+                if ( failure[0] != null ) {
+                    result.completeExceptionally( failure[0] );
+                } else if ( result.isCancelRequested() ) {
+                    result.finishCancelled();
+                } else {
+                    result.complete( iterations[0] );
+                }
+            }
+            catch(RuntimeException | Error e) {
+                result.completeExceptionally( e );
+            }
+            finally {
+                // JNA does not keep the callback reachable while native code uses it
+                Reference.reachabilityFence( callback );
+            }
+        });
+        return result;
+    }
+
+    private void runWithProgress(FlowLibrary library,Data data,int count,int progressInterval,FlowLibrary.ProgressCallback callback,
+                                 IntBuffer cancelFlag)
+    {
+        if ( parallel && progress )
+        {
+            data.height.rewind();
+            data.water.rewind();
+            try
+            {
+                checkResult( library.flowRepeatParallelCancel( data.size, data.height, data.water, count,
+                        AbstractJavaFlowEngine.getThreadCount(), progressInterval, callback, cancelFlag ) );
+                return;
+            }
+            catch(UnsatisfiedLinkError e)
+            {
+                System.err.println("Native flow library does not export flowRepeatParallelCancel() (outdated libflow.so?), reporting progress from Java");
+                progress = false;
+            }
+        }
+        // one call per iteration so cancelling still stops after the current iteration
+        int done = 0;
+        float moved = 0;
+        while ( done < count && cancelFlag.get( 0 ) == 0 )
+        {
+            moved = run( library, data, 1 );
+            done++;
+            if ( done < count && done % progressInterval == 0 && ! callback.invoke( done, moved ) ) {
+                break;
+            }
+        }
+        callback.invoke( done, moved );
+    }
+
+    private synchronized ExecutorService getExecutor()
+    {
+        if ( executor == null )
+        {
+            executor = Executors.newSingleThreadExecutor( runnable ->
+            {
+                final Thread thread = new Thread( runnable, "native-flow" );
+                thread.setDaemon( true );
+                return thread;
+            });
+        }
+        return executor;
+    }
+
+    /**
+     * Stops the thread used by {@link #flowAsync(Data, int, int, FlowProgressListener)}
+     * once all pending runs are done.
+     */
+    @Override
+    public synchronized void dispose()
+    {
+        if ( executor != null )
+        {
+            executor.shutdown();
+            executor = null;
+        }
+    }
+}
@@ -2,47 +2,104 @@ package de.codesourcery.terrain;
 
 import com.badlogic.gdx.utils.Disposable;
 import org.jocl.CL;
+import org.jocl.CLException;
 import org.jocl.Pointer;
 import org.jocl.Sizeof;
 import org.jocl.cl_command_queue;
 import org.jocl.cl_context;
 import org.jocl.cl_context_properties;
 import org.jocl.cl_device_id;
+import org.jocl.cl_event;
 import org.jocl.cl_kernel;
 import org.jocl.cl_mem;
 import org.jocl.cl_platform_id;
 import org.jocl.cl_program;
+import org.jocl.cl_queue_properties;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.nio.FloatBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.function.Consumer;
 
+import static org.jocl.CL.CL_COMPLETE;
 import static org.jocl.CL.CL_CONTEXT_PLATFORM;
+import static org.jocl.CL.CL_DEVICE_MAX_WORK_ITEM_SIZES;
+import static org.jocl.CL.CL_DEVICE_NAME;
+import static org.jocl.CL.CL_DEVICE_TYPE;
 import static org.jocl.CL.CL_DEVICE_TYPE_ALL;
-import static org.jocl.CL.CL_MEM_COPY_HOST_PTR;
+import static org.jocl.CL.CL_DEVICE_TYPE_CPU;
+import static org.jocl.CL.CL_DEVICE_VERSION;
+import static org.jocl.CL.CL_DRIVER_VERSION;
+import static org.jocl.CL.CL_EVENT_COMMAND_EXECUTION_STATUS;
+import static org.jocl.CL.CL_FALSE;
+import static org.jocl.CL.CL_KERNEL_WORK_GROUP_SIZE;
+import static org.jocl.CL.CL_MAP_READ;
+import static org.jocl.CL.CL_MAP_WRITE;
 import static org.jocl.CL.CL_MEM_READ_ONLY;
 import static org.jocl.CL.CL_MEM_READ_WRITE;
+import static org.jocl.CL.CL_MEM_USE_HOST_PTR;
 import static org.jocl.CL.CL_MEM_WRITE_ONLY;
+import static org.jocl.CL.CL_PROGRAM_BINARIES;
+import static org.jocl.CL.CL_PROGRAM_BINARY_SIZES;
 import static org.jocl.CL.CL_TRUE;
 import static org.jocl.CL.clBuildProgram;
 import static org.jocl.CL.clCreateBuffer;
 import static org.jocl.CL.clCreateCommandQueue;
+import static org.jocl.CL.clCreateCommandQueueWithProperties;
 import static org.jocl.CL.clCreateContext;
 import static org.jocl.CL.clCreateKernel;
+import static org.jocl.CL.clCreateProgramWithBinary;
 import static org.jocl.CL.clCreateProgramWithSource;
+import static org.jocl.CL.clEnqueueCopyBuffer;
+import static org.jocl.CL.clEnqueueMapBuffer;
 import static org.jocl.CL.clEnqueueNDRangeKernel;
 import static org.jocl.CL.clEnqueueReadBuffer;
+import static org.jocl.CL.clEnqueueUnmapMemObject;
 import static org.jocl.CL.clFinish;
+import static org.jocl.CL.clFlush;
 import static org.jocl.CL.clGetCommandQueueInfo;
 import static org.jocl.CL.clGetDeviceIDs;
+import static org.jocl.CL.clGetDeviceInfo;
+import static org.jocl.CL.clGetEventInfo;
+import static org.jocl.CL.clGetKernelWorkGroupInfo;
 import static org.jocl.CL.clGetPlatformIDs;
+import static org.jocl.CL.clGetProgramInfo;
+import static org.jocl.CL.clReleaseEvent;
 import static org.jocl.CL.clSetKernelArg;
-
+import static org.jocl.CL.clWaitForEvents;
+
+/**
+ * Runs the flow kernels on the first device of the first OpenCL platform.
+ *
+ * Each iteration runs the two passes of the gather-based flow calculation (see {@link GatherKernel} and
+ * <code>kernel.c</code>), reading from one water buffer and writing to another one. Work-items never write
+ * to the same cell, so results are deterministic and match the {@link GatherFlowEngine}.
+ *
+ * On CPU devices, height maps using {@link Data.Storage#DIRECT off-heap storage} are shared with the device
+ * instead of being copied before and after each iteration: the OpenCL buffers get created
+ * with <code>CL_MEM_USE_HOST_PTR</code> on top of the height map's own buffers and stay
+ * mapped (= owned by the host) except while kernels are running.
+ *
+ * Buffers stay on the device between calls: heights only get uploaded after the terrain changed and
+ * water only after it got changed on the host. {@link #flow(Data, int, boolean)} leaves the result in device memory
+ * until {@link #readBack(Data)} is called.
+ *
+ * Batches may also end with a snapshot of the water that gets copied to the host while the next batch
+ * is already running: the water buffer is first copied into one of two device-side snapshot buffers, a second
+ * command queue then reads that buffer into host memory without blocking. {@link #readSnapshot(Data)}
+ * returns the most recent snapshot that has arrived.
+ *
+ * Compiled kernels are kept in a {@link ProgramCache} so later runs can skip compiling them from source.
+ */
 public class OpenCLExecutor implements Disposable
 {
     private static final boolean DEBUG = false;
 
+    // max. number of work-items per 2D work-group, must be a power of two
+    private static final int TILE_ITEMS = 256;
+
     static {
         if ( DEBUG ) {
             CL.setLogLevel( CL.LogLevel.LOG_DEBUGTRACE );
@@ -53,14 +110,58 @@ public class OpenCLExecutor implements Disposable
 
     private cl_context context;
     private cl_command_queue commandQueue;
+    // reads snapshots while commandQueue runs the next batch
+    private cl_command_queue transferQueue;
     private cl_program program;
-    private cl_kernel kernel;
+    private cl_kernel outflowKernel;
+    private cl_kernel inflowKernel;
+    // whether the device shares main memory with the host
+    private boolean cpuDevice;
 
     private int bufferSize;
+    // whether heightBuffer and waterBuffer use the host buffers below as storage
+    private boolean zeroCopy;
+    private FloatBuffer boundHeight;
+    private FloatBuffer boundWater;
+    // host pointers of zero-copy buffers while mapped, null while owned by the device
+    private ByteBuffer mappedHeight;
+    private ByteBuffer mappedWater;
+
+    // height map whose grids are currently on the device
+    private Data boundData;
+    // Data#heightVersion and Data#waterVersion of the grids on the device
+    private int deviceHeightVersion;
+    private int deviceWaterVersion;
+
+    // double-buffered snapshots of waterBuffer, lazily allocated
+    private final cl_mem[] snapshotBuffers = new cl_mem[2];
+    private final FloatBuffer[] snapshots = new FloatBuffer[2];
+    // completion of the read into snapshots[i], null if never used
+    private final cl_event[] snapshotEvents = new cl_event[2];
+    // batch number each snapshot was taken after
+    private final long[] snapshotSequence = new long[2];
+    private long batchSequence;
+    // most recent batch whose water the host already has
+    private long consumedSequence;
+    private int nextSnapshot;
 
-    private cl_mem relNeighbourOffsetBuffer;
     private cl_mem heightBuffer;
+    // holds the current water between flow() calls
     private cl_mem waterBuffer;
+    // receives the next iteration, swapped with waterBuffer while flowing
+    private cl_mem waterNextBuffer;
+    // water passed on to each downstream neighbour, see compute_outflow() in kernel.c
+    private cl_mem outflowBuffer;
+
+    // amount of water moved per work-group, see reduce_moved() in kernel.c
+    private cl_mem movedBuffer;
+    private float[] movedPartial;
+    // 2D work-group size
+    private int tileWidth;
+    private int tileHeight;
+    private int groupCountX;
+    private int groupCountY;
+    private int groupCount;
 
     public static void main(String[] args) throws Exception {
 
@@ -78,6 +179,26 @@ public class OpenCLExecutor implements Disposable
         executor.dispose();
     }
 
+    /**
+     * Checks whether the OpenCL native libraries can be loaded
+     * and at least one OpenCL platform is installed.
+     *
+     * @return
+     */
+    public static boolean isAvailable()
+    {
+        try
+        {
+            final int numPlatformsArray[] = new int[1];
+            clGetPlatformIDs( 0, null, numPlatformsArray );
+            return numPlatformsArray[0] > 0;
+        }
+        catch(Exception | LinkageError e)
+        {
+            return false;
+        }
+    }
+
     private static void dumpBuffer(FloatBuffer buffer,int rowSize)
     {
         buffer.rewind();
@@ -129,30 +250,56 @@ public class OpenCLExecutor implements Disposable
             clGetDeviceIDs( platform, deviceType, numDevices, devices, null );
             final cl_device_id device = devices[deviceIndex];
 
+            final long[] type = new long[1];
+            clGetDeviceInfo( device, CL_DEVICE_TYPE, Sizeof.cl_long, Pointer.to( type ), null );
+            cpuDevice = ( type[0] & CL_DEVICE_TYPE_CPU ) != 0;
+
             // Create a context for the selected device
             context = clCreateContext(
                     contextProperties, 1, new cl_device_id[]{device},
                     null, null, null );
 
             // Create a command-queue for the selected device
-            commandQueue = clCreateCommandQueue( context, device, 0, null );
+            commandQueue = createCommandQueue( device );
+            transferQueue = createCommandQueue( device );
 
-            // Create the program from the source code
-            program = clCreateProgramWithSource( context,
-                    1, new String[]{getKernelSource()}, null, null );
+            program = createProgram( device );
 
-            // Build the program
-            clBuildProgram( program, 0, null, null, null, null );
+            // Create the kernels
+            outflowKernel = clCreateKernel( program, "compute_outflow", null );
+            inflowKernel = clCreateKernel( program, "gather_inflow", null );
 
-            // Create the kernel
-            kernel = clCreateKernel( program, "flow", null );
+            // largest power of two supported by both kernels
+            final long[] maxSize = new long[1];
+            long limit = TILE_ITEMS;
+            for ( cl_kernel k : new cl_kernel[]{ outflowKernel, inflowKernel } )
+            {
+                clGetKernelWorkGroupInfo( k, device, CL_KERNEL_WORK_GROUP_SIZE, Sizeof.size_t, Pointer.to( maxSize ), null );
+                limit = Math.min( limit, maxSize[0] );
+            }
+            // devices may also limit the size of each dimension
+            final long[] maxItems = new long[3];
+            clGetDeviceInfo( device, CL_DEVICE_MAX_WORK_ITEM_SIZES, 3 * Sizeof.size_t, Pointer.to( maxItems ), null );
+            final int[] tileSize = getTileSize( limit, maxItems[0], maxItems[1] );
+            tileWidth = tileSize[0];
+            tileHeight = tileSize[1];
 
             initDone = true;
         }
 
+        if ( boundData != null && boundData != data )
+        {
+            // the water of the previous height map may only exist on the device
+            boundData.syncFromDevice();
+            // snapshots belong to the previous height map
+            consumedSequence = batchSequence;
+        }
+
         // Allocate the memory objects for the input- and output data
         final int elements = data.size*data.size;
-        final boolean allocNeeded = waterBuffer == null || bufferSize != data.size;
+        final boolean useHostPtr = cpuDevice && data.height.isDirect() && data.water.isDirect();
+        final boolean allocNeeded = waterBuffer == null || bufferSize != data.size || useHostPtr != zeroCopy ||
+                ( useHostPtr && ( boundHeight != data.height || boundWater != data.water ) );
         if ( allocNeeded )
         {
             if ( waterBuffer != null ) {
@@ -160,43 +307,341 @@ public class OpenCLExecutor implements Disposable
                 disposeDynamicMemory();
             }
 
-            final int[] relNeighbourOffsets = {-data.size -1,
-                    -data.size,
-                    -data.size +1,
-                    -1,
-                    1,
-                    data.size -1,
-                    data.size,
-                    data.size +1};
-
-            relNeighbourOffsetBuffer = clCreateBuffer( context, CL_MEM_READ_ONLY |
-                            CL_MEM_COPY_HOST_PTR,
-                    Sizeof.cl_int * 8, Pointer.to(relNeighbourOffsets), null );
-
-            waterBuffer = clCreateBuffer( context, CL_MEM_READ_WRITE,
+            if ( useHostPtr )
+            {
+                waterBuffer = clCreateBuffer( context, CL_MEM_READ_WRITE | CL_MEM_USE_HOST_PTR,
+                        Sizeof.cl_float * elements, Pointer.to( data.water ), null );
+                heightBuffer = clCreateBuffer( context, CL_MEM_READ_ONLY | CL_MEM_USE_HOST_PTR,
+                        Sizeof.cl_float * elements, Pointer.to( data.height ), null );
+                boundHeight = data.height;
+                boundWater = data.water;
+                // hand memory back to the host until the next iteration
+                mapHostBuffers( elements );
+            }
+            else
+            {
+                waterBuffer = clCreateBuffer( context, CL_MEM_READ_WRITE,
+                        Sizeof.cl_float * elements, null, null );
+                heightBuffer = clCreateBuffer( context, CL_MEM_READ_ONLY,
+                        Sizeof.cl_float * elements, null, null );
+            }
+            waterNextBuffer = clCreateBuffer( context, CL_MEM_READ_WRITE,
                     Sizeof.cl_float * elements, null, null );
-            heightBuffer = clCreateBuffer( context, CL_MEM_READ_ONLY,
+            outflowBuffer = clCreateBuffer( context, CL_MEM_READ_WRITE,
                     Sizeof.cl_float * elements, null, null );
+            zeroCopy = useHostPtr;
+
+            groupCountX = (data.size + tileWidth - 1) / tileWidth;
+            groupCountY = (data.size + tileHeight - 1) / tileHeight;
+            groupCount = groupCountX * groupCountY;
+            movedPartial = new float[ groupCount ];
+            movedBuffer = clCreateBuffer( context, CL_MEM_WRITE_ONLY,
+                    Sizeof.cl_float * movedPartial.length, null, null );
 
             bufferSize = data.size;
 
-            // Set the arguments for the kernel
             /*
-             * __kernel void flow(__global const float *height,
+             * __kernel void compute_outflow(__global const float *height,
+             *                   __global const float *water,
+             *                   const int rowSize,
+             *                   __global float *outflow,
+             *                   __global float *waterNext,
+             *                   __global float *movedPartial,
+             *                   __local float *movedScratch,
+             *                   __local float *surfaceTile)
+             *
+             * __kernel void gather_inflow(__global const float *height,
              *                   __global const float *water,
-             *                   __global const int *relNeighbourOffsets,
-             *                   const int rowSize)
+             *                   const int rowSize,
+             *                   __global const float *outflow,
+             *                   __global float *waterNext,
+             *                   __local float *surfaceTile,
+             *                   __local float *outflowTile)
+             *
+             * water and waterNext are set before each iteration
              */
-            clSetKernelArg(kernel, 0, Sizeof.cl_mem, Pointer.to(heightBuffer));
-            clSetKernelArg(kernel, 1, Sizeof.cl_mem, Pointer.to(waterBuffer));
-            clSetKernelArg(kernel, 2, Sizeof.cl_mem, Pointer.to(relNeighbourOffsetBuffer));
-            clSetKernelArg(kernel, 3, Sizeof.cl_int, Pointer.to(new int[]{data.size} ) );
+            final int tileBytes = Sizeof.cl_float * (tileWidth+2) * (tileHeight+2);
+            clSetKernelArg(outflowKernel, 0, Sizeof.cl_mem, Pointer.to(heightBuffer));
+            clSetKernelArg(outflowKernel, 2, Sizeof.cl_int, Pointer.to(new int[]{data.size} ) );
+            clSetKernelArg(outflowKernel, 3, Sizeof.cl_mem, Pointer.to(outflowBuffer));
+            clSetKernelArg(outflowKernel, 5, Sizeof.cl_mem, Pointer.to(movedBuffer));
+            clSetKernelArg(outflowKernel, 6, Sizeof.cl_float * tileWidth * tileHeight, null );
+            clSetKernelArg(outflowKernel, 7, tileBytes, null );
+
+            clSetKernelArg(inflowKernel, 0, Sizeof.cl_mem, Pointer.to(heightBuffer));
+            clSetKernelArg(inflowKernel, 2, Sizeof.cl_int, Pointer.to(new int[]{data.size} ) );
+            clSetKernelArg(inflowKernel, 3, Sizeof.cl_mem, Pointer.to(outflowBuffer));
+            clSetKernelArg(inflowKernel, 5, tileBytes, null );
+            clSetKernelArg(inflowKernel, 6, tileBytes, null );
+        }
+        final boolean uploadAll = allocNeeded || boundData != data;
+        if ( zeroCopy ) {
+            unmapHostBuffers();
+        }
+        else
+        {
+            if ( uploadAll || deviceHeightVersion != data.heightVersion ) {
+                CL.clEnqueueWriteBuffer( commandQueue, heightBuffer,true,0,
+                        Sizeof.cl_float * elements,Pointer.to(data.height),0,null,null);
+            }
+            if ( uploadAll || deviceWaterVersion != data.waterVersion ) {
+                CL.clEnqueueWriteBuffer( commandQueue, waterBuffer,true,0,
+                        Sizeof.cl_float * elements,Pointer.to(data.water),0,null,null);
+            }
+        }
+        boundData = data;
+        deviceHeightVersion = data.heightVersion;
+        deviceWaterVersion = data.waterVersion;
+    }
+
+    /**
+     * Copies the water computed by {@link #flow(Data, int, boolean)} back into the water buffer of a height map.
+     *
+     * Blocks until all iterations are done, does nothing if the height map is no longer on the device.
+     *
+     * @param data
+     */
+    public void readBack(Data data)
+    {
+        if ( data != boundData || waterBuffer == null ) {
+            return;
+        }
+        final int elements = data.size*data.size;
+        if ( zeroCopy ) {
+            mapHostBuffers( elements );
+        } else {
+            clEnqueueReadBuffer(commandQueue, waterBuffer, CL_TRUE, 0,
+                    elements * Sizeof.cl_float, Pointer.to(data.water), 0, null, null);
         }
-        CL.clEnqueueWriteBuffer( commandQueue, heightBuffer,true,0,
-                Sizeof.cl_float * elements,Pointer.to(data.height),0,null,null);
+        // host and device agree again, older snapshots must no longer be used
+        deviceWaterVersion = data.waterVersion;
+        consumedSequence = batchSequence;
+    }
 
-        CL.clEnqueueWriteBuffer( commandQueue, waterBuffer,true,0,
-                Sizeof.cl_float * elements,Pointer.to(data.water),0,null,null);
+    /**
+     * Copies the most recent snapshot of a height map's water that has arrived on the host
+     * into its water buffer, without waiting for the device.
+     *
+     * The water on the device stays the current state, the next {@link #readBack(Data)} overwrites the snapshot.
+     * Zero-copy buffers are shared with the host and can't take a snapshot, so they are
+     * {@link Data#syncFromDevice() synchronized} instead.
+     *
+     * @param data
+     * @return whether the water buffer got updated
+     */
+    public boolean readSnapshot(Data data)
+    {
+        if ( data != boundData || waterBuffer == null ) {
+            return false;
+        }
+        if ( zeroCopy )
+        {
+            data.syncFromDevice();
+            return true;
+        }
+        int latest = -1;
+        for ( int i = 0 ; i < 2 ; i++ )
+        {
+            if ( snapshotSequence[i] > consumedSequence && isComplete( snapshotEvents[i] ) &&
+                    ( latest == -1 || snapshotSequence[i] > snapshotSequence[latest] ) )
+            {
+                latest = i;
+            }
+        }
+        if ( latest == -1 ) {
+            return false;
+        }
+        final FloatBuffer src = snapshots[latest].duplicate();
+        src.rewind();
+        final FloatBuffer dst = data.water.duplicate();
+        dst.rewind();
+        dst.put( src );
+        consumedSequence = snapshotSequence[latest];
+        return true;
+    }
+
+    private static boolean isComplete(cl_event event)
+    {
+        if ( event == null ) {
+            return false;
+        }
+        final int[] status = new int[1];
+        clGetEventInfo( event, CL_EVENT_COMMAND_EXECUTION_STATUS, Sizeof.cl_int, Pointer.to( status ), null );
+        return status[0] == CL_COMPLETE;
+    }
+
+    // copies the water into the next snapshot buffer and starts reading it on the transfer queue
+    private void enqueueSnapshot(int elements)
+    {
+        final int slot = nextSnapshot;
+        nextSnapshot = 1 - slot;
+        if ( snapshotBuffers[slot] == null )
+        {
+            snapshotBuffers[slot] = clCreateBuffer( context, CL_MEM_READ_WRITE,
+                    Sizeof.cl_float * elements, null, null );
+            // non-blocking reads need direct buffers
+            snapshots[slot] = Data.newFloatBuffer( elements, Data.Storage.DIRECT );
+        }
+        else if ( snapshotEvents[slot] != null )
+        {
+            // only blocks if the previous read into this slot (two batches ago) has not finished yet
+            clWaitForEvents( 1, new cl_event[]{ snapshotEvents[slot] } );
+            clReleaseEvent( snapshotEvents[slot] );
+            snapshotEvents[slot] = null;
+        }
+
+        final cl_event copied = new cl_event();
+        clEnqueueCopyBuffer( commandQueue, waterBuffer, snapshotBuffers[slot], 0, 0,
+                Sizeof.cl_float * elements, 0, null, copied );
+        clFlush( commandQueue );
+
+        final cl_event read = new cl_event();
+        clEnqueueReadBuffer( transferQueue, snapshotBuffers[slot], CL_FALSE, 0, Sizeof.cl_float * elements,
+                Pointer.to( snapshots[slot] ), 1, new cl_event[]{ copied }, read );
+        clFlush( transferQueue );
+        clReleaseEvent( copied );
+
+        snapshotEvents[slot] = read;
+        snapshotSequence[slot] = batchSequence;
+    }
+
+    private void disposeSnapshots()
+    {
+        for ( int i = 0 ; i < 2 ; i++ )
+        {
+            if ( snapshotEvents[i] != null )
+            {
+                clWaitForEvents( 1, new cl_event[]{ snapshotEvents[i] } );
+                snapshotEvents[i] = safeRelease( snapshotEvents[i], CL::clReleaseEvent );
+            }
+            snapshotBuffers[i] = safeRelease( snapshotBuffers[i], CL::clReleaseMemObject );
+            snapshots[i] = null;
+            snapshotSequence[i] = 0;
+        }
+        consumedSequence = batchSequence;
+        nextSnapshot = 0;
+    }
+
+    // blocks until the host may access the zero-copy buffers,
+    // on CPU devices mapping returns the host pointers without copying anything
+    private void mapHostBuffers(int elements)
+    {
+        if ( mappedWater != null ) {
+            return;
+        }
+        mappedHeight = clEnqueueMapBuffer( commandQueue, heightBuffer, CL_TRUE, CL_MAP_READ | CL_MAP_WRITE,
+                0, Sizeof.cl_float * elements, 0, null, null, null );
+        mappedWater = clEnqueueMapBuffer( commandQueue, waterBuffer, CL_TRUE, CL_MAP_READ | CL_MAP_WRITE,
+                0, Sizeof.cl_float * elements, 0, null, null, null );
+    }
+
+    private void unmapHostBuffers()
+    {
+        if ( mappedHeight != null )
+        {
+            clEnqueueUnmapMemObject( commandQueue, heightBuffer, mappedHeight, 0, null, null );
+            mappedHeight = null;
+        }
+        if ( mappedWater != null )
+        {
+            clEnqueueUnmapMemObject( commandQueue, waterBuffer, mappedWater, 0, null, null );
+            mappedWater = null;
+        }
+    }
+
+    private cl_program createProgram(cl_device_id device)
+    {
+        final String source = getKernelSource();
+        final ProgramCache cache = ProgramCache.getDefault();
+        final String key = cache == null ? null :
+                ProgramCache.key( getDeviceInfo( device, CL_DEVICE_NAME ), getDeviceInfo( device, CL_DRIVER_VERSION ), source );
+
+        final byte[] binary = cache == null ? null : cache.load( key );
+        if ( binary != null )
+        {
+            cl_program result = null;
+            try
+            {
+                result = clCreateProgramWithBinary( context, 1, new cl_device_id[]{ device },
+                        new long[]{ binary.length }, new byte[][]{ binary }, new int[1], null );
+                clBuildProgram( result, 0, null, null, null, null );
+                return result;
+            }
+            catch(CLException e)
+            {
+                // e.g. written by a different driver build reporting the same version
+                System.err.println("Cached OpenCL program binary is not usable, compiling from source: "+e.getMessage());
+                safeRelease( result, CL::clReleaseProgram );
+            }
+        }
+
+        // Create the program from the source code
+        final cl_program result = clCreateProgramWithSource( context,
+                1, new String[]{source}, null, null );
+
+        // Build the program
+        clBuildProgram( result, 0, null, null, null, null );
+
+        if ( cache != null )
+        {
+            final long[] size = new long[1];
+            clGetProgramInfo( result, CL_PROGRAM_BINARY_SIZES, Sizeof.size_t, Pointer.to( size ), null );
+            if ( size[0] > 0 )
+            {
+                final byte[] compiled = new byte[ (int) size[0] ];
+                clGetProgramInfo( result, CL_PROGRAM_BINARIES, Sizeof.POINTER, Pointer.to( Pointer.to( compiled ) ), null );
+                cache.store( key, compiled );
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the work-group size to run the kernels with.
+     *
+     * @param workGroupLimit max. number of work-items per work-group
+     * @param maxWidth max. number of work-items in the first dimension
+     * @param maxHeight max. number of work-items in the second dimension
+     * @return width and height, powers of two whose product does not exceed {@link #TILE_ITEMS} or <code>workGroupLimit</code>
+     */
+    static int[] getTileSize(long workGroupLimit,long maxWidth,long maxHeight)
+    {
+        final int tileItems = (int) Long.highestOneBit( Math.max( 1, Math.min( TILE_ITEMS, workGroupLimit ) ) );
+        final int widthLimit = (int) Long.highestOneBit( Math.max( 1, Math.min( tileItems, maxWidth ) ) );
+        final int heightLimit = (int) Long.highestOneBit( Math.max( 1, Math.min( tileItems, maxHeight ) ) );
+        // square tiles if possible, otherwise twice as wide as high
+        int width = Math.min( widthLimit, 1 << ( ( Integer.numberOfTrailingZeros( tileItems ) + 1 ) / 2 ) );
+        final int height = Math.min( heightLimit, tileItems / width );
+        // use up the remaining work-items in the first dimension
+        width = Math.min( widthLimit, tileItems / height );
+        return new int[]{ width, height };
+    }
+
+    private cl_command_queue createCommandQueue(cl_device_id device)
+    {
+        // "OpenCL <major>.<minor> <vendor-specific information>"
+        final String version = getDeviceInfo( device, CL_DEVICE_VERSION );
+        if ( ! version.startsWith( "OpenCL 1." ) ) {
+            return clCreateCommandQueueWithProperties( context, device, new cl_queue_properties(), null );
+        }
+        return createCommandQueue1x( device );
+    }
+
+    // OpenCL 1.x devices do not support clCreateCommandQueueWithProperties(), which was added by OpenCL 2.0
+    @SuppressWarnings("deprecation")
+    private cl_command_queue createCommandQueue1x(cl_device_id device)
+    {
+        return clCreateCommandQueue( context, device, 0, null );
+    }
+
+    private static String getDeviceInfo(cl_device_id device,int param)
+    {
+        final long[] size = new long[1];
+        clGetDeviceInfo( device, param, 0, null, size );
+        final byte[] buffer = new byte[ (int) size[0] ];
+        clGetDeviceInfo( device, param, buffer.length, Pointer.to( buffer ), null );
+        // without the trailing NUL
+        return new String( buffer, 0, Math.max( 0, buffer.length-1 ), StandardCharsets.UTF_8 );
     }
 
     private String getKernelSource() {
@@ -223,43 +668,151 @@ public class OpenCLExecutor implements Disposable
 
     private void disposeDynamicMemory()
     {
+        if ( boundData != null )
+        {
+            boundData.syncFromDevice();
+            boundData = null;
+        }
+        if ( commandQueue != null )
+        {
+            unmapHostBuffers();
+            clFinish( commandQueue );
+        }
+        disposeSnapshots();
+        boundHeight = boundWater = null;
+        zeroCopy = false;
         waterBuffer = safeRelease(waterBuffer, CL::clReleaseMemObject );
+        waterNextBuffer = safeRelease(waterNextBuffer, CL::clReleaseMemObject );
+        outflowBuffer = safeRelease(outflowBuffer, CL::clReleaseMemObject );
+        movedBuffer = safeRelease(movedBuffer, CL::clReleaseMemObject );
         heightBuffer = safeRelease(heightBuffer, CL::clReleaseMemObject );
-        relNeighbourOffsetBuffer = safeRelease(relNeighbourOffsetBuffer, CL::clReleaseMemObject );
     }
 
     public void dispose()
     {
         disposeDynamicMemory();
 
-        kernel = safeRelease( kernel, CL::clReleaseKernel );
+        outflowKernel = safeRelease( outflowKernel, CL::clReleaseKernel );
+        inflowKernel = safeRelease( inflowKernel, CL::clReleaseKernel );
         program = safeRelease( program, CL::clReleaseProgram );
         commandQueue = safeRelease( commandQueue, CL::clReleaseCommandQueue );
+        transferQueue = safeRelease( transferQueue, CL::clReleaseCommandQueue );
         context = safeRelease( context, CL::clReleaseContext );
 
         initDone = false;
     }
 
     public void flow(Data data) {
+        flow( data, false );
+    }
+
+    /**
+     * Runs one iteration and reads back the result.
+     *
+     * @param data
+     * @param measure whether to read back the amount of water moved
+     * @return total amount of water moved or {@link Float#NaN} if not measured
+     */
+    public float flow(Data data,boolean measure) {
+
+        final float moved = flow( data, 1, measure );
+        readBack( data );
+        return moved;
+    }
+
+    /**
+     * Runs iterations, leaving the result in device memory.
+     *
+     * Callers must either invoke {@link #readBack(Data)} or {@link Data#setDeviceResident(Data.DeviceResident) flag}
+     * the water of the height map as outdated afterwards.
+     *
+     * @param data
+     * @param count number of iterations to run
+     * @param measure whether to read back the amount of water moved during the last iteration
+     * @return total amount of water moved during the last iteration or {@link Float#NaN} if not measured
+     */
+    public float flow(Data data,int count,boolean measure) {
+        return flow( data, count, measure, false );
+    }
 
+    /**
+     * Runs iterations, leaving the result in device memory.
+     *
+     * @param data
+     * @param count number of iterations to run
+     * @param measure whether to read back the amount of water moved during the last iteration
+     * @param snapshot whether to take a snapshot for {@link #readSnapshot(Data)} after the last iteration. If set
+     *                 and not measuring, returns right after submitting all work to the device.
+     * @return total amount of water moved during the last iteration or {@link Float#NaN} if not measured
+     * @throws IllegalArgumentException if taking a snapshot while the height map does not {@link Data#supportsDeviceSnapshots() support} them
+     * @see #flow(Data, int, boolean)
+     */
+    public float flow(Data data,int count,boolean measure,boolean snapshot) {
+
+        if ( snapshot && ! data.supportsDeviceSnapshots() ) {
+            throw new IllegalArgumentException("Device snapshots are not supported with "+data.getStorage()+" storage");
+        }
         setup( data );
+        batchSequence++;
 
-        // for performance reasons we're ignore a 1x1 border around the
-        // height map so we don't have to deal with the lower neighbour count
-        // of boundary cells inside the OpenCL kernel
-        final int elementsWithoutBorder = (data.size-2)*(data.size-2);
-        final long global_work_size[] = new long[]{elementsWithoutBorder};
-        final long local_work_size[] = new long[]{1};
+        // Work sizes are rounded up to whole work-groups, the kernels ignore surplus work-items
+        final long tile_size[] = new long[]{ tileWidth, tileHeight };
+        final long global_work_size[] = new long[]{ (long) groupCountX * tileWidth, (long) groupCountY * tileHeight };
 
-        // Execute the kernel
-        clEnqueueNDRangeKernel(commandQueue, kernel, 1, null,
-                global_work_size, local_work_size, 0, null, null);
+        // Execute the kernels, the queue runs them in order
+        cl_mem src = waterBuffer;
+        cl_mem dst = waterNextBuffer;
+        for ( int i = 0 ; i < count ; i++ )
+        {
+            clSetKernelArg( outflowKernel, 1, Sizeof.cl_mem, Pointer.to( src ) );
+            clSetKernelArg( outflowKernel, 4, Sizeof.cl_mem, Pointer.to( dst ) );
+            clEnqueueNDRangeKernel( commandQueue, outflowKernel, 2, null,
+                    global_work_size, tile_size, 0, null, null );
+
+            clSetKernelArg( inflowKernel, 1, Sizeof.cl_mem, Pointer.to( src ) );
+            clSetKernelArg( inflowKernel, 4, Sizeof.cl_mem, Pointer.to( dst ) );
+            clEnqueueNDRangeKernel( commandQueue, inflowKernel, 2, null,
+                    global_work_size, tile_size, 0, null, null );
+
+            final cl_mem tmp = src;
+            src = dst;
+            dst = tmp;
+        }
+        if ( src != waterBuffer )
+        {
+            if ( zeroCopy ) {
+                // the buffer sharing memory with the host must hold the result
+                clEnqueueCopyBuffer( commandQueue, src, waterBuffer, 0, 0,
+                        Sizeof.cl_float * data.size * data.size, 0, null, null );
+            } else {
+                waterNextBuffer = waterBuffer;
+                waterBuffer = src;
+            }
+        }
 
-        final int elements = data.size*data.size;
+        if ( snapshot && ! zeroCopy ) {
+            enqueueSnapshot( data.size*data.size );
+        }
 
-        // Read the result
-        clEnqueueReadBuffer(commandQueue, waterBuffer, CL_TRUE, 0,
-                elements * Sizeof.cl_float, Pointer.to(data.water), 0, null, null);
+        if ( ! measure )
+        {
+            if ( snapshot ) {
+                clFlush( commandQueue );
+            } else {
+                clFinish( commandQueue );
+            }
+            return Float.NaN;
+        }
+        if ( count == 0 ) {
+            return 0;
+        }
+        clEnqueueReadBuffer(commandQueue, movedBuffer, CL_TRUE, 0,
+                groupCount * Sizeof.cl_float, Pointer.to(movedPartial), 0, null, null);
+        float moved = 0;
+        for ( int i = 0 ; i < groupCount ; i++ ) {
+            moved += movedPartial[i];
+        }
+        return moved;
     }
 
     private static <T> T safeRelease(T value, Consumer<T> func) {
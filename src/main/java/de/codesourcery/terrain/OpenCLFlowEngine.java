@@ -0,0 +1,69 @@
+package de.codesourcery.terrain;
+
+/**
+ * Runs the OpenCL kernels in <code>opencl/kernel.c</code> on the first device of the first platform.
+ *
+ * The OpenCL context is created on first use and shared by all {@link Data} instances.
+ *
+ * Water stays in device memory after running iterations and only gets copied back when it is
+ * accessed through {@link Data}, see {@link Data#syncFromDevice()}. With {@link Data#setDeviceSnapshots(boolean) snapshots}
+ * enabled, flow() returns without waiting for the device.
+ */
+public class OpenCLFlowEngine implements FlowEngine, Data.DeviceResident
+{
+    public static final String NAME = "OPENCL";
+
+    private Boolean available;
+    private OpenCLExecutor executor;
+
+    @Override
+    public String getName()
+    {
+        return NAME;
+    }
+
+    @Override
+    public synchronized boolean isAvailable()
+    {
+        if ( available == null ) {
+            available = OpenCLExecutor.isAvailable();
+        }
+        return available;
+    }
+
+    @Override
+    public synchronized float flow(Data data, int count, boolean measure)
+    {
+        if ( executor == null ) {
+            executor = new OpenCLExecutor();
+        }
+        final float moved = executor.flow( data, count, measure, data.isDeviceSnapshots() );
+        data.setDeviceResident( this );
+        data.markAllWet();
+        return moved;
+    }
+
+    @Override
+    public synchronized void readBack(Data data)
+    {
+        if ( executor != null ) {
+            executor.readBack( data );
+        }
+    }
+
+    @Override
+    public synchronized boolean readSnapshot(Data data)
+    {
+        return executor != null && executor.readSnapshot( data );
+    }
+
+    @Override
+    public synchronized void dispose()
+    {
+        if ( executor != null )
+        {
+            executor.dispose();
+            executor = null;
+        }
+    }
+}
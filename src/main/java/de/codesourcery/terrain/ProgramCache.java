@@ -0,0 +1,143 @@
+package de.codesourcery.terrain;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Stores compiled OpenCL program binaries on disk, so the kernels don't need to be
+ * compiled from source each time the process starts.
+ *
+ * Binaries are only valid for the exact device, driver and source code they got compiled for. All three
+ * are part of the file name, so any change simply misses the cache (stale files are never deleted).
+ *
+ * @see OpenCLExecutor
+ */
+public final class ProgramCache
+{
+    /**
+     * System property holding the directory to store binaries in, an empty value disables the cache.
+     */
+    public static final String DIRECTORY_PROPERTY = "terrain.openclCache";
+
+    /**
+     * Directory used if {@link #DIRECTORY_PROPERTY} is not set.
+     */
+    public static final String DEFAULT_DIRECTORY = ".terrainclcache";
+
+    private final File directory;
+
+    /**
+     * Create instance.
+     *
+     * @param directory directory to store binaries in, created when storing the first binary
+     */
+    public ProgramCache(File directory)
+    {
+        this.directory = directory;
+    }
+
+    /**
+     * Returns the cache configured through {@link #DIRECTORY_PROPERTY}.
+     *
+     * @return cache or <code>null</code> if disabled
+     */
+    public static ProgramCache getDefault()
+    {
+        final String path = System.getProperty( DIRECTORY_PROPERTY, DEFAULT_DIRECTORY );
+        return path.trim().isEmpty() ? null : new ProgramCache( new File( path ) );
+    }
+
+    /**
+     * Returns the key a program binary gets stored under.
+     *
+     * @param deviceName
+     * @param driverVersion
+     * @param source program source code
+     * @return
+     */
+    public static String key(String deviceName,String driverVersion,String source)
+    {
+        final MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance( "SHA-256" );
+        }
+        catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException( e );
+        }
+        // separators keep different splits of the same characters apart
+        for ( String value : new String[]{ deviceName, driverVersion, source } )
+        {
+            digest.update( value.getBytes( StandardCharsets.UTF_8 ) );
+            digest.update( (byte) 0 );
+        }
+        final StringBuilder result = new StringBuilder();
+        for ( byte b : digest.digest() ) {
+            result.append( String.format( "%02x", b & 0xff ) );
+        }
+        return result.toString();
+    }
+
+    /**
+     * Returns a previously stored binary.
+     *
+     * @param key
+     * @return binary or <code>null</code> if none could be read
+     */
+    public byte[] load(String key)
+    {
+        final File file = file( key );
+        if ( ! file.isFile() ) {
+            return null;
+        }
+        try {
+            final byte[] binary = Files.readAllBytes( file.toPath() );
+            return binary.length > 0 ? binary : null;
+        }
+        catch (IOException e)
+        {
+            System.err.println("Failed to read OpenCL program binary from "+file+": "+e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Stores a binary, replacing any binary previously stored under the same key.
+     *
+     * Failures are only logged as the cache is just an optimization.
+     *
+     * @param key
+     * @param binary
+     */
+    public void store(String key,byte[] binary)
+    {
+        final File file = file( key );
+        try
+        {
+            Files.createDirectories( directory.toPath() );
+            // concurrently starting processes must never see partially written files
+            final File tmp = File.createTempFile( key, ".tmp", directory );
+            try
+            {
+                Files.write( tmp.toPath(), binary );
+                Files.move( tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE );
+            }
+            finally {
+                Files.deleteIfExists( tmp.toPath() );
+            }
+        }
+        catch (IOException e)
+        {
+            System.err.println("Failed to write OpenCL program binary to "+file+": "+e.getMessage());
+        }
+    }
+
+    private File file(String key)
+    {
+        return new File( directory, key+".bin" );
+    }
+}
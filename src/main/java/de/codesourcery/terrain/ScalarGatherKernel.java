@@ -0,0 +1,131 @@
+package de.codesourcery.terrain;
+
+import java.awt.Rectangle;
+
+/**
+ * Plain Java implementation of the gather-based flow calculation.
+ *
+ * Besides implementing {@link GatherKernel} this class also offers
+ * methods working on a single row of cells, to be used for the remainder cells
+ * that do not fill a complete vector in {@link GatherKernel}s using SIMD instructions.
+ */
+public final class ScalarGatherKernel implements GatherKernel
+{
+    public static final ScalarGatherKernel INSTANCE = new ScalarGatherKernel();
+
+    private ScalarGatherKernel() {
+    }
+
+    @Override
+    public float computeOutflow(Rectangle rect, int trueSize, float[] height, float[] water, float[] outflow, float[] waterNext)
+    {
+        float moved = 0;
+        for (int y = rect.y, ymax = rect.y + rect.height; y < ymax ; y++)
+        {
+            moved += computeOutflow( y*trueSize+rect.x, rect.width, trueSize, height, water, outflow, waterNext );
+        }
+        return moved;
+    }
+
+    @Override
+    public boolean gatherInflow(Rectangle rect, int trueSize, float[] height, float[] water, float[] outflow, float[] waterNext)
+    {
+        boolean hasWater = false;
+        for (int y = rect.y, ymax = rect.y + rect.height; y < ymax ; y++)
+        {
+            hasWater |= gatherInflow( y*trueSize+rect.x, rect.width, trueSize, height, water, outflow, waterNext );
+        }
+        return hasWater;
+    }
+
+    /**
+     * First phase for a consecutive run of cells within a single row.
+     *
+     * @param ptr offset of first cell
+     * @param count number of cells to process
+     * @return amount of water flowing out of the cells
+     * @see GatherKernel#computeOutflow(Rectangle, int, float[], float[], float[], float[])
+     */
+    public static float computeOutflow(int ptr, int count, int trueSize, float[] height, float[] water, float[] outflow, float[] waterNext)
+    {
+        // relative offsets to direct neightbours of current cell
+        final int[] relNeighbourOffsets = {-trueSize-1,-trueSize,-trueSize+1,-1,1,trueSize-1,trueSize,trueSize+1};
+
+        float moved = 0;
+        for ( final int end = ptr + count ; ptr < end ; ptr++ )
+        {
+            final float currentWater = water[ptr];
+            if ( currentWater == 0 ) {
+                // no water in this cell
+                outflow[ptr] = 0;
+                waterNext[ptr] = 0;
+                continue;
+            }
+            // true height (ground height + water height)
+            final float currentHeight = currentWater + height[ptr];
+            int pointCount = 0;
+            float heightSum = 0;
+            for (int relOffset : relNeighbourOffsets )
+            {
+                final int offset = ptr + relOffset;
+                final float otherHeight = water[offset]+height[offset];
+                if ( otherHeight < currentHeight )
+                {
+                    // ok, downstream
+                    heightSum += otherHeight;
+                    pointCount++;
+                }
+            }
+
+            if ( pointCount > 0 )
+            {
+                final float avgHeight = heightSum / pointCount;
+                final float h = currentHeight - avgHeight;
+                final float excessWater = Math.min(currentWater,h);
+
+                final float newValue = currentWater - excessWater;
+                outflow[ptr] = excessWater / pointCount;
+                waterNext[ptr] = newValue < Data.EPSILON ? 0 : newValue;
+                moved += excessWater;
+            } else {
+                outflow[ptr] = 0;
+                waterNext[ptr] = currentWater;
+            }
+        }
+        return moved;
+    }
+
+    /**
+     * Second phase for a consecutive run of cells within a single row.
+     *
+     * @param ptr offset of first cell
+     * @param count number of cells to process
+     * @return <code>true</code> if any of the cells has water afterwards
+     * @see GatherKernel#gatherInflow(Rectangle, int, float[], float[], float[], float[])
+     */
+    public static boolean gatherInflow(int ptr, int count, int trueSize, float[] height, float[] water, float[] outflow, float[] waterNext)
+    {
+        // relative offsets to direct neightbours of current cell
+        final int[] relNeighbourOffsets = {-trueSize-1,-trueSize,-trueSize+1,-1,1,trueSize-1,trueSize,trueSize+1};
+
+        boolean hasWater = false;
+        for ( final int end = ptr + count ; ptr < end ; ptr++ )
+        {
+            final float currentHeight = water[ptr] + height[ptr];
+            float inflow = 0;
+            for (int relOffset : relNeighbourOffsets )
+            {
+                final int offset = ptr + relOffset;
+                if ( water[offset]+height[offset] > currentHeight )
+                {
+                    // upstream
+                    inflow += outflow[offset];
+                }
+            }
+            final float newValue = waterNext[ptr] + inflow;
+            waterNext[ptr] = newValue;
+            hasWater |= newValue != 0;
+        }
+        return hasWater;
+    }
+}
@@ -0,0 +1,300 @@
+package de.codesourcery.terrain;
+
+import java.awt.Rectangle;
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+
+/**
+ * Runs several iterations of the gather-based flow calculation on a tile
+ * before writing the results back and synchronizing with other threads (temporal blocking).
+ *
+ * Every iteration reads cells up to two cells away (a neighbour's outflow depends on
+ * that neighbour's own neighbours), so a tile gets copied into thread-local scratch
+ * buffers together with a halo of <code>2*depth</code> cells. Each local iteration leaves
+ * the outermost two rings of the valid region stale, after <code>depth</code> iterations
+ * exactly the tile's own cells are still valid and get written back. Cells surrounding a tile are
+ * computed redundantly by all adjacent tiles, trading some arithmetic for touching main memory only once
+ * every <code>depth</code> iterations.
+ *
+ * Cells outside of the height map are represented by a ring of ghost cells with
+ * infinite height and no water, so tiles may cover the whole height map without any
+ * boundary checks while results stay bit-identical to running <code>depth</code> separate
+ * iterations of {@link GatherFlowEngine}.
+ */
+public final class TemporalBlocking
+{
+    /**
+     * Default tile size (in cells), larger than {@link TileScheduler#DEFAULT_TILE_SIZE} to
+     * keep the share of redundantly computed halo cells low.
+     */
+    public static final int DEFAULT_TILE_SIZE = 128;
+
+    public final int depth;
+    public final TileScheduler scheduler;
+    public final ActiveTileSet activeTiles;
+
+    private final int gridSize;
+    private final Scratch[] scratch;
+
+    // thread-local copy of a tile and its halo, surrounded by one ring of ghost cells
+    private static final class Scratch
+    {
+        public float[] height = new float[0];
+        public float[] water = new float[0];
+        public float[] waterNext = new float[0];
+        public float[] outflow = new float[0];
+
+        public void ensureCapacity(int elements)
+        {
+            if ( height.length < elements )
+            {
+                height = new float[ elements ];
+                water = new float[ elements ];
+                waterNext = new float[ elements ];
+                outflow = new float[ elements ];
+            }
+        }
+
+        public void swap()
+        {
+            final float[] tmp = water;
+            water = waterNext;
+            waterNext = tmp;
+        }
+    }
+
+    /**
+     * Create instance.
+     *
+     * @param gridSize size of the height map
+     * @param tileSize desired tile size, see {@link TileScheduler}
+     * @param depth number of iterations to run per tile
+     * @param parallelism max. number of threads that will call {@link #process(TileScheduler.Tile, int, GatherKernel, FloatBuffer, FloatBuffer, FloatBuffer, boolean, int)}
+     */
+    public TemporalBlocking(int gridSize,int tileSize,int depth,int parallelism)
+    {
+        if ( depth < 1 ) {
+            throw new IllegalArgumentException("Depth must be >= 1");
+        }
+        this.gridSize = gridSize;
+        this.depth = depth;
+        this.scheduler = new TileScheduler( new Rectangle(0,0,gridSize,gridSize), gridSize, tileSize, 2*depth );
+        this.activeTiles = new ActiveTileSet( scheduler );
+        this.scratch = new Scratch[ parallelism ];
+        for ( int i = 0 ; i < parallelism ; i++ ) {
+            scratch[i] = new Scratch();
+        }
+    }
+
+    /**
+     * Returns the max. number of threads this instance was set up for.
+     *
+     * @return
+     */
+    public int getParallelism()
+    {
+        return scratch.length;
+    }
+
+    /**
+     * Runs up to {@link #depth} iterations for a single tile and
+     * updates the tile's flag in {@link #activeTiles} accordingly.
+     *
+     * @param tile
+     * @param iterations number of iterations to run, 1...{@link #depth}
+     * @param kernel
+     * @param height
+     * @param water water levels, only read
+     * @param waterNext receives the new water levels of the tile's cells
+     * @param measure whether to determine the amount of water moved (costs an extra pass over the tile)
+     * @param workerIndex index of calling thread, used to pick scratch buffers
+     * @return amount of water that flowed out of the tile's cells during the last iteration, 0 if not measured
+     */
+    public float process(TileScheduler.Tile tile,int iterations,GatherKernel kernel,FloatBuffer height,FloatBuffer water,FloatBuffer waterNext,boolean measure,int workerIndex)
+    {
+        final Scratch local = scratch[ workerIndex ];
+        final Rectangle halo = tile.halo;
+        final int localSize = prepare( local, halo );
+
+        // load tile + halo, (0,0) in local coordinates is the
+        // ghost cell diagonally adjacent to the halo's top-left corner
+        for ( int ly = 0, gy = halo.y-1 ; ly < halo.height+2 ; ly++, gy++ )
+        {
+            for ( int lx = 0, gx = halo.x-1, ptr = ly*localSize ; lx < localSize ; lx++, gx++, ptr++ )
+            {
+                if ( gx >= 0 && gy >= 0 && gx < gridSize && gy < gridSize )
+                {
+                    local.height[ptr] = height.get( gy*gridSize+gx );
+                    local.water[ptr] = water.get( gy*gridSize+gx );
+                } else {
+                    local.height[ptr] = Float.POSITIVE_INFINITY;
+                    local.water[ptr] = 0;
+                }
+                // ghost cells are never written, keep them valid across swaps
+                local.waterNext[ptr] = local.water[ptr];
+            }
+        }
+
+        final float moved = run( tile, iterations, kernel, measure, local, localSize );
+
+        // write back tile
+        final Rectangle area = tile.area;
+        boolean hasWater = false;
+        for ( int y = area.y, ymax = area.y+area.height ; y < ymax ; y++ )
+        {
+            int src = (y-halo.y+1)*localSize + (area.x-halo.x+1);
+            for ( int dst = y*gridSize + area.x, end = dst + area.width ; dst < end ; dst++, src++ )
+            {
+                final float value = local.water[src];
+                waterNext.put( dst, value );
+                hasWater |= value != 0;
+            }
+        }
+        activeTiles.setWetNext( tile, hasWater );
+        return moved;
+    }
+
+    /**
+     * Same as {@link #process(TileScheduler.Tile, int, GatherKernel, FloatBuffer, FloatBuffer, FloatBuffer, boolean, int)}
+     * but for grids in half-precision, see {@link HalfFloat}.
+     *
+     * Computations use single precision, water levels only get rounded when being written back.
+     */
+    public float process(TileScheduler.Tile tile,int iterations,GatherKernel kernel,short[] height,short[] water,short[] waterNext,boolean measure,int workerIndex)
+    {
+        final Scratch local = scratch[ workerIndex ];
+        final Rectangle halo = tile.halo;
+        final int localSize = prepare( local, halo );
+
+        for ( int ly = 0, gy = halo.y-1 ; ly < halo.height+2 ; ly++, gy++ )
+        {
+            for ( int lx = 0, gx = halo.x-1, ptr = ly*localSize ; lx < localSize ; lx++, gx++, ptr++ )
+            {
+                if ( gx >= 0 && gy >= 0 && gx < gridSize && gy < gridSize )
+                {
+                    local.height[ptr] = HalfFloat.toFloat( height[ gy*gridSize+gx ] );
+                    local.water[ptr] = HalfFloat.toFloat( water[ gy*gridSize+gx ] );
+                } else {
+                    local.height[ptr] = Float.POSITIVE_INFINITY;
+                    local.water[ptr] = 0;
+                }
+                local.waterNext[ptr] = local.water[ptr];
+            }
+        }
+
+        final float moved = run( tile, iterations, kernel, measure, local, localSize );
+
+        final Rectangle area = tile.area;
+        boolean hasWater = false;
+        for ( int y = area.y, ymax = area.y+area.height ; y < ymax ; y++ )
+        {
+            int src = (y-halo.y+1)*localSize + (area.x-halo.x+1);
+            for ( int dst = y*gridSize + area.x, end = dst + area.width ; dst < end ; dst++, src++ )
+            {
+                final short value = HalfFloat.toHalf( local.water[src] );
+                waterNext[dst] = value;
+                hasWater |= value != HalfFloat.ZERO;
+            }
+        }
+        activeTiles.setWetNext( tile, hasWater );
+        return moved;
+    }
+
+    /**
+     * Same as {@link #process(TileScheduler.Tile, int, GatherKernel, FloatBuffer, FloatBuffer, FloatBuffer, boolean, int)}
+     * but for grids stored in blocks, see {@link TiledLayout}.
+     */
+    public float process(TileScheduler.Tile tile,int iterations,GatherKernel kernel,TiledLayout layout,float[] height,float[] water,float[] waterNext,boolean measure,int workerIndex)
+    {
+        final Scratch local = scratch[ workerIndex ];
+        final Rectangle halo = tile.halo;
+        final int localSize = prepare( local, halo );
+
+        for ( int ly = 0, gy = halo.y-1 ; ly < halo.height+2 ; ly++, gy++ )
+        {
+            for ( int lx = 0, gx = halo.x-1, ptr = ly*localSize ; lx < localSize ; lx++, gx++, ptr++ )
+            {
+                if ( gx >= 0 && gy >= 0 && gx < gridSize && gy < gridSize )
+                {
+                    final int idx = layout.index( gx, gy );
+                    local.height[ptr] = height[ idx ];
+                    local.water[ptr] = water[ idx ];
+                } else {
+                    local.height[ptr] = Float.POSITIVE_INFINITY;
+                    local.water[ptr] = 0;
+                }
+                local.waterNext[ptr] = local.water[ptr];
+            }
+        }
+
+        final float moved = run( tile, iterations, kernel, measure, local, localSize );
+
+        final Rectangle area = tile.area;
+        boolean hasWater = false;
+        for ( int y = area.y, ymax = area.y+area.height ; y < ymax ; y++ )
+        {
+            int src = (y-halo.y+1)*localSize + (area.x-halo.x+1);
+            for ( int x = area.x, xmax = area.x+area.width ; x < xmax ; x++, src++ )
+            {
+                final float value = local.water[src];
+                waterNext[ layout.index( x, y ) ] = value;
+                hasWater |= value != 0;
+            }
+        }
+        activeTiles.setWetNext( tile, hasWater );
+        return moved;
+    }
+
+    // returns the row length of the tile's scratch buffers
+    private static int prepare(Scratch local,Rectangle halo)
+    {
+        final int localSize = halo.width+2;
+        local.ensureCapacity( localSize * (halo.height+2) );
+        // ghost cells must never pass on water
+        Arrays.fill( local.outflow, 0, localSize * (halo.height+2), 0 );
+        return localSize;
+    }
+
+    // runs the iterations on a loaded tile, leaving the results in local.water
+    private float run(TileScheduler.Tile tile,int iterations,GatherKernel kernel,boolean measure,Scratch local,int localSize)
+    {
+        final Rectangle halo = tile.halo;
+
+        // sides where the halo got clipped to the height map
+        // never go stale as they are adjacent to ghost cells
+        final int left = halo.x > 0 ? 1 : 0;
+        final int top = halo.y > 0 ? 1 : 0;
+        final int right = halo.x + halo.width < gridSize ? 1 : 0;
+        final int bottom = halo.y + halo.height < gridSize ? 1 : 0;
+
+        final Rectangle area = tile.area;
+        final Rectangle rect = new Rectangle();
+        float moved = 0;
+        for ( int i = 1 ; i <= iterations ; i++ )
+        {
+            if ( measure && i == iterations )
+            {
+                // outflow of the tile's own cells, the redundantly computed
+                // cells around it are accounted for by adjacent tiles
+                rect.setBounds( area.x-halo.x+1, area.y-halo.y+1, area.width, area.height );
+                moved = kernel.computeOutflow( rect, localSize, local.height, local.water, local.outflow, local.waterNext );
+            }
+            // outflow is valid one cell inside the currently valid water levels,
+            // new water levels one cell inside the valid outflow
+            shrink( halo, 2*i-1, left, top, right, bottom, rect );
+            kernel.computeOutflow( rect, localSize, local.height, local.water, local.outflow, local.waterNext );
+            shrink( halo, 2*i, left, top, right, bottom, rect );
+            kernel.gatherInflow( rect, localSize, local.height, local.water, local.outflow, local.waterNext );
+            local.swap();
+        }
+        return moved;
+    }
+
+    private static void shrink(Rectangle halo,int amount,int left,int top,int right,int bottom,Rectangle result)
+    {
+        result.x = 1 + amount*left;
+        result.y = 1 + amount*top;
+        result.width = halo.width - amount*(left+right);
+        result.height = halo.height - amount*(top+bottom);
+    }
+}
@@ -0,0 +1,286 @@
+package de.codesourcery.terrain;
+
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Splits a rectangular area of a height map into square, cache-sized tiles
+ * and hands them out to worker threads on a first-come, first-served basis.
+ *
+ * Each tile has an explicit halo, the tile's area grown by a fixed number of cells
+ * (clipped to the height map) that processing a tile may read from or write to.
+ *
+ * Tiles are also assigned one of four colors in a checkerboard pattern so that no two
+ * tiles of the same color have overlapping halos, making it safe to process all tiles
+ * of one color concurrently even if processing writes into the halo.
+ */
+public class TileScheduler
+{
+    /**
+     * Default tile size (in cells), chosen so that all grids
+     * touched by a tile comfortably fit into the L2 cache.
+     */
+    public static final int DEFAULT_TILE_SIZE = 64;
+
+    /**
+     * Number of distinct tile colors.
+     */
+    public static final int COLOR_COUNT = 4;
+
+    /**
+     * Pseudo-color to use with {@link #reset(int)} to schedule all tiles.
+     */
+    public static final int ALL_COLORS = -1;
+
+    /**
+     * Decides whether a tile needs to be processed.
+     */
+    @FunctionalInterface
+    public interface TileFilter
+    {
+        boolean accept(Tile tile);
+    }
+
+    public static final class Tile
+    {
+        public final int index;
+        public final int color;
+        /**
+         * Cells owned by this tile.
+         */
+        public final Rectangle area;
+        /**
+         * Cells that may be accessed while processing this tile.
+         */
+        public final Rectangle halo;
+
+        public Tile(int index, int color, Rectangle area, Rectangle halo)
+        {
+            this.index = index;
+            this.color = color;
+            this.area = area;
+            this.halo = halo;
+        }
+
+        @Override
+        public String toString()
+        {
+            return "Tile #"+index+" [color: "+color+", area: "+area+", halo: "+halo+"]";
+        }
+    }
+
+    public final int gridSize;
+    public final int tileSize;
+    public final int haloSize;
+    public final int tilesX;
+    public final int tilesY;
+
+    private final Tile[] tiles;
+    private final Tile[][] tilesByColor = new Tile[COLOR_COUNT][];
+    // indices of all tiles adjacent to a tile (including diagonals)
+    private final int[][] neighbours;
+    // tile column/row for each x/y coordinate, -1 if not covered by any tile
+    private final int[] columnOfX;
+    private final int[] rowOfY;
+
+    private final Tile[] filtered;
+    private Tile[] scheduled;
+    private int scheduledCount;
+    private final AtomicInteger nextTile = new AtomicInteger();
+
+    /**
+     * Create instance.
+     *
+     * @param area area to split into tiles
+     * @param gridSize size of the height map, halos are clipped to (0,0)-(gridSize-1,gridSize-1)
+     * @param tileSize desired edge length of a tile in cells. Remaining cells that would form a tile
+     *                 too narrow to separate halos of the same color are merged with the last tile
+     *                 of the row or column
+     * @param haloSize width of the halo in cells
+     */
+    public TileScheduler(Rectangle area,int gridSize,int tileSize,int haloSize)
+    {
+        if ( tileSize < 1 ) {
+            throw new IllegalArgumentException("Tile size must be >= 1");
+        }
+        if ( haloSize < 0 ) {
+            throw new IllegalArgumentException("Halo size must be >= 0");
+        }
+        // same-colored tiles are separated by one other tile that
+        // needs to be wide enough to hold both their halos
+        final int minTileSize = 2*haloSize+1;
+        this.gridSize = gridSize;
+        this.tileSize = Math.max( tileSize, minTileSize );
+        this.haloSize = haloSize;
+
+        final int[] columns = split( area.x, area.width, this.tileSize, minTileSize );
+        final int[] rows = split( area.y, area.height, this.tileSize, minTileSize );
+        this.tilesX = columns.length-1;
+        this.tilesY = rows.length-1;
+
+        final Rectangle bounds = new Rectangle(0,0,gridSize,gridSize);
+        final List<List<Tile>> byColor = new ArrayList<>();
+        for ( int i = 0 ; i < COLOR_COUNT ; i++ ) {
+            byColor.add( new ArrayList<>() );
+        }
+        this.tiles = new Tile[ tilesX*tilesY ];
+        int index = 0;
+        for ( int ty = 0 ; ty < tilesY ; ty++ )
+        {
+            for ( int tx = 0 ; tx < tilesX ; tx++, index++ )
+            {
+                final Rectangle tileArea = new Rectangle( columns[tx], rows[ty], columns[tx+1]-columns[tx], rows[ty+1]-rows[ty] );
+                final Rectangle halo = new Rectangle( tileArea );
+                halo.grow( haloSize, haloSize );
+                final int color = (tx & 1) + 2*(ty & 1);
+                final Tile tile = new Tile( index, color, tileArea, halo.intersection( bounds ) );
+                tiles[index] = tile;
+                byColor.get( color ).add( tile );
+            }
+        }
+        for ( int i = 0 ; i < COLOR_COUNT ; i++ ) {
+            tilesByColor[i] = byColor.get(i).toArray( new Tile[0] );
+        }
+        this.filtered = new Tile[ tiles.length ];
+
+        this.neighbours = new int[ tiles.length ][];
+        for ( int ty = 0 ; ty < tilesY ; ty++ )
+        {
+            for ( int tx = 0 ; tx < tilesX ; tx++ )
+            {
+                final List<Integer> list = new ArrayList<>();
+                for ( int dy = -1 ; dy <= 1 ; dy++ )
+                {
+                    for ( int dx = -1 ; dx <= 1 ; dx++ )
+                    {
+                        final int nx = tx+dx;
+                        final int ny = ty+dy;
+                        if ( (dx != 0 || dy != 0) && nx >= 0 && ny >= 0 && nx < tilesX && ny < tilesY ) {
+                            list.add( ny*tilesX+nx );
+                        }
+                    }
+                }
+                neighbours[ ty*tilesX+tx ] = list.stream().mapToInt( Integer::intValue ).toArray();
+            }
+        }
+        this.columnOfX = lookupTable( columns, gridSize );
+        this.rowOfY = lookupTable( rows, gridSize );
+        reset( ALL_COLORS );
+    }
+
+    private static int[] lookupTable(int[] boundaries,int gridSize)
+    {
+        final int[] result = new int[ gridSize ];
+        Arrays.fill( result, -1 );
+        for ( int i = 0 ; i < boundaries.length-1 ; i++ )
+        {
+            for ( int j = boundaries[i] ; j < boundaries[i+1] ; j++ ) {
+                result[j] = i;
+            }
+        }
+        return result;
+    }
+
+    private static int[] split(int start,int length,int tileSize,int minTileSize)
+    {
+        int count = Math.max( 1, length / tileSize );
+        if ( length - count*tileSize >= minTileSize ) {
+            count++;
+        } // else: merge remainder into last tile
+        final int[] result = new int[ count+1 ];
+        for ( int i = 0 ; i < count ; i++ ) {
+            result[i] = start + i*tileSize;
+        }
+        result[count] = start+length;
+        return result;
+    }
+
+    /**
+     * Prepares the scheduler for handing out tiles.
+     *
+     * Must not be called while worker threads are still requesting tiles.
+     *
+     * @param color color of tiles to hand out or {@link #ALL_COLORS}
+     */
+    public void reset(int color)
+    {
+        scheduled = color == ALL_COLORS ? tiles : tilesByColor[color];
+        scheduledCount = scheduled.length;
+        nextTile.set( 0 );
+    }
+
+    /**
+     * Prepares the scheduler for handing out only the tiles accepted by a filter.
+     *
+     * Must not be called while worker threads are still requesting tiles.
+     *
+     * @param color color of tiles to hand out or {@link #ALL_COLORS}
+     * @param filter filter to apply, invoked on the calling thread only
+     * @return number of tiles that will be handed out
+     */
+    public int reset(int color,TileFilter filter)
+    {
+        final Tile[] candidates = color == ALL_COLORS ? tiles : tilesByColor[color];
+        int count = 0;
+        for ( Tile tile : candidates )
+        {
+            if ( filter.accept( tile ) ) {
+                filtered[count++] = tile;
+            }
+        }
+        scheduled = filtered;
+        scheduledCount = count;
+        nextTile.set( 0 );
+        return count;
+    }
+
+    /**
+     * Returns the next tile to process.
+     *
+     * @return tile or <code>null</code> if all tiles have been handed out
+     * @see #reset(int)
+     */
+    public Tile next()
+    {
+        final int idx = nextTile.getAndIncrement();
+        return idx < scheduledCount ? scheduled[idx] : null;
+    }
+
+    /**
+     * Returns the indices of all tiles adjacent to a tile.
+     *
+     * @param tile
+     * @return indices of horizontally, vertically or diagonally adjacent tiles
+     */
+    public int[] getNeighbours(Tile tile)
+    {
+        return neighbours[ tile.index ];
+    }
+
+    /**
+     * Returns the index of the tile that owns a given cell.
+     *
+     * @param x
+     * @param y
+     * @return tile index or -1 if the cell is not part of any tile
+     */
+    public int getTileIndex(int x,int y)
+    {
+        final int column = columnOfX[x];
+        final int row = rowOfY[y];
+        return column == -1 || row == -1 ? -1 : row*tilesX+column;
+    }
+
+    public int getTileCount()
+    {
+        return tiles.length;
+    }
+
+    public Tile getTile(int index)
+    {
+        return tiles[index];
+    }
+}
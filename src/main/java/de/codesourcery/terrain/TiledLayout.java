@@ -0,0 +1,69 @@
+package de.codesourcery.terrain;
+
+/**
+ * Maps cell coordinates to array indices for grids stored as square blocks of
+ * {@link #BLOCK_SIZE}x{@link #BLOCK_SIZE} cells, each block occupying a contiguous range of the array.
+ *
+ * Blocks are stored row by row, cells within a block as well. Compared to storing whole rows, cells above and below
+ * are usually in the same block (and thus the same few memory pages) instead of a whole row apart.
+ * Grids get padded to a multiple of the block size, padding cells are never read.
+ *
+ * @see Data.Storage#TILED
+ */
+public final class TiledLayout
+{
+    private static final int BLOCK_SHIFT = 6;
+
+    /**
+     * Edge length of a block in cells.
+     */
+    public static final int BLOCK_SIZE = 1 << BLOCK_SHIFT;
+
+    private static final int BLOCK_MASK = BLOCK_SIZE - 1;
+
+    public final int size;
+    public final int blocksPerRow;
+
+    public TiledLayout(int size)
+    {
+        if ( size < 1 ) {
+            throw new IllegalArgumentException("Size must be >= 1");
+        }
+        this.size = size;
+        this.blocksPerRow = (size + BLOCK_SIZE - 1) / BLOCK_SIZE;
+    }
+
+    /**
+     * Returns the number of array elements needed, including padding.
+     *
+     * @return
+     */
+    public int getLength()
+    {
+        return blocksPerRow * blocksPerRow * BLOCK_SIZE * BLOCK_SIZE;
+    }
+
+    /**
+     * Returns the array index of a cell.
+     *
+     * @param x
+     * @param y
+     * @return
+     */
+    public int index(int x,int y)
+    {
+        final int block = (y >> BLOCK_SHIFT) * blocksPerRow + (x >> BLOCK_SHIFT);
+        return (block << (2*BLOCK_SHIFT)) | ((y & BLOCK_MASK) << BLOCK_SHIFT) | (x & BLOCK_MASK);
+    }
+
+    /**
+     * Returns the array index of a cell.
+     *
+     * @param rowMajorIndex index of the cell in a grid stored row by row (<code>y*size+x</code>)
+     * @return
+     */
+    public int index(int rowMajorIndex)
+    {
+        return index( rowMajorIndex % size, rowMajorIndex / size );
+    }
+}
@@ -381,7 +381,6 @@ public class TriangleList
         int heightMapPtr = 0;
         int vertexPtr = this.vertexPtr;
         final float[] vertexArray = this.vertices;
-        final float[] heightMap = data.height.array();
 
         int iz=0;
         for ( float z = zStart ; iz < size; z+=squareSize,iz++)
@@ -389,7 +388,7 @@ public class TriangleList
             float x = xStart;
             for ( int ix = 0; ix < size; x+=squareSize,ix++)
             {
-                final float height = heightMap[heightMapPtr++];
+                final float height = data.height(heightMapPtr++);
                 final int color = colorGradient[ Math.max(0,(int) ((height - min)*gradHeightScale)) ];
 
                 vertexArray[vertexPtr  ] = x;
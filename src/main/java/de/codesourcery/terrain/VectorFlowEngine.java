@@ -0,0 +1,30 @@
+package de.codesourcery.terrain;
+
+/**
+ * Same as {@link GatherFlowEngine} but using SIMD instructions through the
+ * JDK Vector API, only available when running on JDK 16+ with
+ * <code>--add-modules jdk.incubator.vector</code> and the vector kernel
+ * got compiled in (see <code>vector</code> profile in pom.xml).
+ */
+public class VectorFlowEngine extends GatherFlowEngine
+{
+    public static final String NAME = "JAVA_VECTOR";
+
+    private static final String VECTOR_KERNEL_CLASS = "de.codesourcery.terrain.VectorGatherKernel";
+
+    public VectorFlowEngine()
+    {
+        super( NAME, loadKernel() );
+    }
+
+    private static GatherKernel loadKernel()
+    {
+        try {
+            return (GatherKernel) Class.forName( VECTOR_KERNEL_CLASS ).getDeclaredConstructor().newInstance();
+        }
+        catch(Exception | LinkageError e) {
+            System.err.println("Vector API flow kernel not available: "+e);
+            return null;
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package de.codesourcery.terrain;
+
+import java.util.stream.IntStream;
+
+/**
+ * Keeps track of how the total amount of water changes while flowing, see {@link Data#setConservationCheck(boolean)}.
+ *
+ * Water never leaves the height map, so the total amount of water should stay the same. Only the
+ * net change of the total during each step gets recorded, so water lost by clamping tiny amounts to zero
+ * (see {@link Data#EPSILON}) cannot be told apart from rounding errors or water lost or created by a buggy
+ * engine (for example threads racing each other at tile boundaries), and losses and gains within
+ * the same step cancel out.
+ *
+ * A step is a single iteration for {@link FlowEngine#isIterative() iterative} engines and a whole
+ * flow() call for all other engines.
+ *
+ * Totals are computed using a parallel, compensated (Kahan-Babuska) summation that stays exact
+ * to about 1e-15 relative to the total, regardless of the number of cells.
+ */
+public final class WaterBalance
+{
+    // number of rows summed up by a single task
+    private static final int ROWS_PER_TASK = 16;
+
+    private int steps;
+    private double netGain;
+    private double netLoss;
+    private double maxChange;
+
+    /**
+     * Records a single step.
+     *
+     * @param before total amount of water before the step
+     * @param after total amount of water after the step
+     */
+    void record(double before,double after)
+    {
+        final double change = after - before;
+        if ( change > 0 ) {
+            netGain += change;
+        } else {
+            netLoss -= change;
+        }
+        maxChange = Math.max( maxChange, Math.abs( change ) );
+        steps++;
+    }
+
+    public void reset()
+    {
+        steps = 0;
+        netGain = 0;
+        netLoss = 0;
+        maxChange = 0;
+    }
+
+    /**
+     * Returns the number of steps recorded.
+     *
+     * @return
+     */
+    public int getSteps()
+    {
+        return steps;
+    }
+
+    /**
+     * Returns the sum of the net increases of the total amount of water,
+     * taken over all steps that increased it.
+     *
+     * @return
+     */
+    public double getNetGain()
+    {
+        return netGain;
+    }
+
+    /**
+     * Returns the sum of the net decreases of the total amount of water,
+     * taken over all steps that decreased it.
+     *
+     * @return
+     */
+    public double getNetLoss()
+    {
+        return netLoss;
+    }
+
+    /**
+     * Returns the largest net change of the total amount of water during a single step.
+     *
+     * @return
+     */
+    public double getMaxChange()
+    {
+        return maxChange;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "steps: "+steps+", net gain: "+netGain+", net loss: "+netLoss+", max. net change per step: "+maxChange;
+    }
+
+    /**
+     * Returns the total amount of water.
+     *
+     * @param data
+     * @return
+     */
+    public static double sum(Data data)
+    {
+        // before reading cells in parallel
+        data.syncFromDevice();
+        final int size = data.size;
+        final int tasks = ( size + ROWS_PER_TASK - 1 ) / ROWS_PER_TASK;
+        // partial sums are combined in a fixed order so the result does not depend on the thread count
+        final double[] partials = new double[ 2*tasks ];
+        IntStream.range( 0, tasks ).parallel().forEach( task ->
+        {
+            double sum = 0;
+            double compensation = 0;
+            for ( int ptr = task * ROWS_PER_TASK * size, end = Math.min( size, (task+1) * ROWS_PER_TASK ) * size ; ptr < end ; ptr++ )
+            {
+                final double value = data.water( ptr );
+                final double t = sum + value;
+                if ( Math.abs( sum ) >= Math.abs( value ) ) {
+                    compensation += ( sum - t ) + value;
+                } else {
+                    compensation += ( value - t ) + sum;
+                }
+                sum = t;
+            }
+            partials[2*task] = sum;
+            partials[2*task+1] = compensation;
+        });
+
+        double sum = 0;
+        double compensation = 0;
+        for ( double value : partials )
+        {
+            final double t = sum + value;
+            if ( Math.abs( sum ) >= Math.abs( value ) ) {
+                compensation += ( sum - t ) + value;
+            } else {
+                compensation += ( value - t ) + sum;
+            }
+            sum = t;
+        }
+        return sum + compensation;
+    }
+}
@@ -1,51 +1,167 @@
-#define EPSILON 0.0001
+#define EPSILON 0.0001f
 
-__kernel void flow(__global const float *height, __global float *water,
-__constant const int *relNeighbourOffsets, const int rowSize)
+// keep a*b+c from being fused so results match the Java engines
+#pragma OPENCL FP_CONTRACT OFF
+
+/*
+ * One iteration takes two passes over all cells, mirroring GatherKernel:
+ *
+ * compute_outflow() determines how much water each cell passes on to each of its downstream
+ * neighbours and the water remaining in the cell, gather_inflow() then adds the water each cell receives
+ * from its upstream neighbours. Both passes only read the current water and write to
+ * a separate buffer, so work-items never race each other and every amount of water leaving
+ * a cell arrives at exactly one neighbour. The host swaps water and waterNext after each iteration.
+ *
+ * Both kernels use one work-item per cell, the global work size may be rounded up to multiples of
+ * the work-group size. Work-groups first load the water surface (height + water) of their cells plus
+ * a one-cell halo into a __local tile holding (local size x + 2) * (local size y + 2) floats.
+ */
+
+/*
+ * Sums up the amount of water moved by each work-item of a work-group and stores
+ * the result in partialSums[ group index ], with work-groups numbered row by row.
+ * The work-group size must be a power of two.
+ */
+void reduce_moved(float moved, __local float *scratch, __global float *partialSums)
+{
+    int lid = get_local_id(1) * get_local_size(0) + get_local_id(0);
+    int groupSize = get_local_size(0) * get_local_size(1);
+    scratch[lid] = moved;
+    barrier(CLK_LOCAL_MEM_FENCE);
+    for ( int i = groupSize/2 ; i > 0 ; i >>= 1 )
+    {
+        if ( lid < i ) {
+            scratch[lid] += scratch[lid+i];
+        }
+        barrier(CLK_LOCAL_MEM_FENCE);
+    }
+    if ( lid == 0 ) {
+        partialSums[ get_group_id(1) * get_num_groups(0) + get_group_id(0) ] = scratch[0];
+    }
+}
+
+/*
+ * Loads a tile of src (or of src + src2 if src2 is not NULL) including a one-cell halo into local memory.
+ * Cells outside of the height map get the given value.
+ */
+void load_tile(__global const float *src, __global const float *src2, const int rowSize,
+__local float *tile, const float outside)
 {
-    int ptr = get_global_id(0)+1+rowSize;
-    
-    float currentWater = water[ptr];
-    if ( currentWater == 0 ) {
-        return;
+    const int tileWidth = get_local_size(0) + 2;
+    const int tileHeight = get_local_size(1) + 2;
+    // top-left cell of the tile including the halo
+    const int x0 = get_group_id(0) * get_local_size(0) - 1;
+    const int y0 = get_group_id(1) * get_local_size(1) - 1;
+    for ( int i = get_local_id(1) * get_local_size(0) + get_local_id(0) ; i < tileWidth * tileHeight ;
+          i += get_local_size(0) * get_local_size(1) )
+    {
+        const int x = x0 + i % tileWidth;
+        const int y = y0 + i / tileWidth;
+        if ( x >= 0 && y >= 0 && x < rowSize && y < rowSize )
+        {
+            const int ptr = y * rowSize + x;
+            tile[i] = src2 ? src2[ptr] + src[ptr] : src[ptr];
+        } else {
+            tile[i] = outside;
+        }
     }
-    // true height (ground height + water height)
-    float currentHeight = currentWater + height[ptr];
-    float heightSum = 0;
-    int pointCount = 0;
-    for (int idx = 0 ; idx < 8 ; idx++)
+}
+
+/*
+ * First pass, writes outflow[] (amount of water passed on to each downstream neighbour) and waterNext[]
+ * (water remaining in the cell). Work-groups store the water they moved in movedPartial.
+ */
+__kernel void compute_outflow(__global const float *height, __global const float *water, const int rowSize,
+__global float *outflow, __global float *waterNext,
+__global float *movedPartial, __local float *movedScratch, __local float *surfaceTile)
+{
+    // cells outside of the height map are never downstream
+    load_tile( height, water, rowSize, surfaceTile, INFINITY );
+    barrier(CLK_LOCAL_MEM_FENCE);
+
+    const int x = get_global_id(0);
+    const int y = get_global_id(1);
+    float moved = 0;
+    if ( x < rowSize && y < rowSize )
     {
-        int offset = ptr + relNeighbourOffsets[idx];
-        float otherHeight = water[offset]+height[offset];
-        if ( otherHeight < currentHeight )
+        const int ptr = y * rowSize + x;
+        const float currentWater = water[ptr];
+        float out = 0;
+        float remaining = currentWater;
+        if ( currentWater != 0 )
         {
-            // ok, downstream
-            heightSum += otherHeight;
-            pointCount++;
+            const int tileWidth = get_local_size(0) + 2;
+            const int center = ( get_local_id(1) + 1 ) * tileWidth + get_local_id(0) + 1;
+            // true height (ground height + water height)
+            const float currentHeight = surfaceTile[center];
+            float heightSum = 0;
+            int pointCount = 0;
+            // neighbours in ascending order of their offsets, just like the Java engines
+            for ( int dy = -1 ; dy <= 1 ; dy++ )
+            {
+                for ( int dx = -1 ; dx <= 1 ; dx++ )
+                {
+                    const float otherHeight = surfaceTile[ center + dy * tileWidth + dx ];
+                    if ( ( dx != 0 || dy != 0 ) && otherHeight < currentHeight )
+                    {
+                        // ok, downstream
+                        heightSum += otherHeight;
+                        pointCount++;
+                    }
+                }
+            }
+            if ( pointCount > 0 )
+            {
+                const float avgHeight = heightSum / pointCount;
+                const float h = currentHeight - avgHeight;
+                const float excessWater = currentWater < h ? currentWater : h;
+                const float newValue = currentWater - excessWater;
+                out = excessWater / pointCount;
+                remaining = newValue < EPSILON ? 0 : newValue;
+                moved = excessWater;
+            }
         }
+        outflow[ptr] = out;
+        waterNext[ptr] = remaining;
     }
-    
-    if ( pointCount != 0 )
+    reduce_moved( moved, movedScratch, movedPartial );
+}
+
+/*
+ * Second pass, adds the water each cell receives from its upstream neighbours to waterNext[].
+ * A neighbour is upstream if its level is above the cell's level, exactly mirroring the test done
+ * in compute_outflow().
+ */
+__kernel void gather_inflow(__global const float *height, __global const float *water, const int rowSize,
+__global const float *outflow, __global float *waterNext,
+__local float *surfaceTile, __local float *outflowTile)
+{
+    // cells outside of the height map pass on no water
+    load_tile( height, water, rowSize, surfaceTile, -INFINITY );
+    load_tile( outflow, 0, rowSize, outflowTile, 0 );
+    barrier(CLK_LOCAL_MEM_FENCE);
+
+    const int x = get_global_id(0);
+    const int y = get_global_id(1);
+    if ( x < rowSize && y < rowSize )
     {
-        float avgHeight = heightSum / pointCount;
-        float h = currentHeight - avgHeight;
-        float excessWater = currentWater < h ? currentWater : h; 
-        
-        float fraction = excessWater / pointCount;
-        float newValue = currentWater - excessWater;
-        water[ptr] = newValue < EPSILON ? 0 : newValue;
-
-//        if ( fraction > EPSILON )
-//        {
-            for (int idx = 0 ; idx < 8 ; idx++)
+        const int tileWidth = get_local_size(0) + 2;
+        const int center = ( get_local_id(1) + 1 ) * tileWidth + get_local_id(0) + 1;
+        const float currentHeight = surfaceTile[center];
+        float inflow = 0;
+        for ( int dy = -1 ; dy <= 1 ; dy++ )
+        {
+            for ( int dx = -1 ; dx <= 1 ; dx++ )
             {
-                int offset = ptr + relNeighbourOffsets[idx];
-                float otherHeight = water[offset]+height[offset];
-                if ( otherHeight < currentHeight )
+                const int idx = center + dy * tileWidth + dx;
+                if ( ( dx != 0 || dy != 0 ) && surfaceTile[idx] > currentHeight )
                 {
-                    water[offset] += fraction;
+                    // upstream
+                    inflow += outflowTile[idx];
                 }
             }
-//        }
+        }
+        const int ptr = y * rowSize + x;
+        waterNext[ptr] += inflow;
     }
 }
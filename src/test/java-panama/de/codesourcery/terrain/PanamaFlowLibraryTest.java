@@ -0,0 +1,90 @@
+package de.codesourcery.terrain;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class PanamaFlowLibraryTest
+{
+    private Data load(Data.Storage storage) throws IOException
+    {
+        final Data data;
+        try ( InputStream in = getClass().getResourceAsStream( "/test.s" ) )
+        {
+            if ( in == null ) {
+                throw new FileNotFoundException( "Failed to load test data" );
+            }
+            data = Data.read( in, storage );
+        }
+        data.initWater( 1, 10 );
+        // segments cover the remaining elements only
+        data.height.rewind();
+        data.water.rewind();
+        return data;
+    }
+
+    private static float[] water(FloatBuffer buffer)
+    {
+        final float[] result = new float[ buffer.capacity() ];
+        for ( int i = 0 ; i < result.length ; i++ ) {
+            result[i] = buffer.get( i );
+        }
+        return result;
+    }
+
+    private static IntBuffer cancelFlag()
+    {
+        return ByteBuffer.allocateDirect( Integer.BYTES ).order( ByteOrder.nativeOrder() ).asIntBuffer();
+    }
+
+    @Test
+    public void testHeapMatchesDirect() throws IOException
+    {
+        Assume.assumeTrue( "libflow not available", NativeFlowEngine.findLibrary() != null );
+        final PanamaFlowLibrary library = new PanamaFlowLibrary();
+        final Data heap = load( Data.Storage.HEAP );
+        final Data direct = load( Data.Storage.DIRECT );
+        final float expected = library.flowRepeatParallel( direct.size, direct.height, direct.water, 21, 3 );
+        assertEquals( expected, library.flowRepeatParallel( heap.size, heap.height, heap.water, 21, 3 ), 0f );
+        assertArrayEquals( water( direct.water ), water( heap.water ), 0f );
+    }
+
+    @Test
+    public void testHeapProgressMatchesDirect() throws IOException
+    {
+        Assume.assumeTrue( "libflow not available", NativeFlowEngine.findLibrary() != null );
+        final PanamaFlowLibrary library = new PanamaFlowLibrary();
+        final Data heap = load( Data.Storage.HEAP );
+        final Data direct = load( Data.Storage.DIRECT );
+
+        final List<Integer> expected = new ArrayList<>();
+        library.flowRepeatParallelCancel( direct.size, direct.height, direct.water, 100, 3, 30,
+                (iteration,moved) -> expected.add( iteration ), cancelFlag() );
+        final List<Integer> actual = new ArrayList<>();
+        library.flowRepeatParallelCancel( heap.size, heap.height, heap.water, 100, 3, 30,
+                (iteration,moved) -> actual.add( iteration ), cancelFlag() );
+
+        assertEquals( Arrays.asList( 30, 60, 90, 100 ), expected );
+        assertEquals( expected, actual );
+        assertArrayEquals( water( direct.water ), water( heap.water ), 0f );
+
+        // stopping early
+        actual.clear();
+        library.flowRepeatParallelCancel( heap.size, heap.height, heap.water, 1000, 3, 10,
+                (iteration,moved) -> actual.add( iteration ) && iteration < 20, cancelFlag() );
+        assertEquals( Arrays.asList( 10, 20, 20 ), actual );
+    }
+}
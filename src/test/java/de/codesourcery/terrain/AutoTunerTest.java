@@ -0,0 +1,115 @@
+package de.codesourcery.terrain;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+
+public class AutoTunerTest
+{
+    private File profileFile;
+
+    @Before
+    public void setUp() throws IOException
+    {
+        profileFile = File.createTempFile( "terrain", ".profile" );
+        profileFile.delete();
+    }
+
+    @After
+    public void tearDown()
+    {
+        profileFile.delete();
+    }
+
+    @Test
+    public void testProfilesAreStoredPerSize()
+    {
+        final AutoTuner tuner = new AutoTuner( profileFile );
+        assertNull( tuner.load( 129 ) );
+
+        tuner.save( 129, new FlowProfile( GatherFlowEngine.NAME, 3, 32, 4, 1.5f ) );
+        tuner.save( 257, new FlowProfile( JavaFlowEngine.NAME, 2, 64, 1, 7f ) );
+
+        final FlowProfile loaded = new AutoTuner( profileFile ).load( 129 );
+        assertNotNull( loaded );
+        assertEquals( GatherFlowEngine.NAME, loaded.engine );
+        assertEquals( 3, loaded.threadCount );
+        assertEquals( 32, loaded.tileSize );
+        assertEquals( 4, loaded.temporalBlockingDepth );
+        assertEquals( 1.5f, loaded.millisPerIteration, 0 );
+
+        assertEquals( JavaFlowEngine.NAME, tuner.load( 257 ).engine );
+        assertNull( tuner.load( 513 ) );
+    }
+
+    @Test
+    public void testTuning()
+    {
+        final int threadCount = AbstractJavaFlowEngine.getThreadCount();
+        final Data data = new Data( 65 );
+        data.setHeight( 32, 32, 10 );
+
+        final AutoTuner tuner = new AutoTuner( profileFile );
+        tuner.setWarmupIterations( 0 );
+        tuner.setMeasuredIterations( 10 );
+        final FlowProfile profile = tuner.getProfile( data );
+
+        assertTrue( FlowEngines.find( profile.engine ).isAvailable() );
+        assertTrue( profile.millisPerIteration >= 0 );
+        assertEquals( threadCount, AbstractJavaFlowEngine.getThreadCount() );
+        // calibration must not touch the height map
+        assertEquals( 0, data.getWaterSum(), 0 );
+        assertEquals( profile.engine, tuner.load( 65 ).engine );
+
+        profile.apply( data );
+        assertEquals( profile.tileSize, data.getTileSize() );
+        assertEquals( profile.temporalBlockingDepth, data.getTemporalBlockingDepth() );
+        AbstractJavaFlowEngine.setThreadCount( threadCount );
+    }
+
+    @Test
+    public void testTimeBudget()
+    {
+        final int threadCount = AbstractJavaFlowEngine.getThreadCount();
+        final Data data = new Data( 65, Data.Storage.HALF );
+        data.setHeight( 32, 32, 10 );
+
+        final AutoTuner tuner = new AutoTuner( profileFile );
+        tuner.setWarmupIterations( 0 );
+        tuner.setMeasuredIterations( 10 );
+        tuner.setTimeBudgetMillis( 0 );
+        // only the default settings of the first engine get measured
+        final FlowProfile profile = tuner.tune( data );
+        FlowEngine first = null;
+        for ( FlowEngine engine : FlowEngines.getEngines() )
+        {
+            if ( first == null && engine.isAvailable() && engine.isIterative() ) {
+                first = engine;
+            }
+        }
+        assertEquals( first.getName(), profile.engine );
+        assertEquals( AbstractJavaFlowEngine.getDefaultThreadCount(), profile.threadCount );
+        assertEquals( TileScheduler.DEFAULT_TILE_SIZE, profile.tileSize );
+        assertEquals( threadCount, AbstractJavaFlowEngine.getThreadCount() );
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testInterrupt()
+    {
+        final AutoTuner tuner = new AutoTuner( profileFile );
+        Thread.currentThread().interrupt();
+        try {
+            tuner.tune( new Data( 65 ) );
+        } finally {
+            Thread.interrupted();
+        }
+    }
+}
@@ -0,0 +1,160 @@
+package de.codesourcery.terrain;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class DeviceResidentTest
+{
+    // keeps a device copy of the water, each iteration adds 1 to every cell
+    private static final class FakeDeviceEngine implements FlowEngine, Data.DeviceResident
+    {
+        private float[] device;
+        private int deviceWaterVersion = -1;
+        private int uploads;
+        private int readBacks;
+        private int snapshots;
+
+        @Override
+        public String getName()
+        {
+            return "FAKE";
+        }
+
+        @Override
+        public boolean isAvailable()
+        {
+            return true;
+        }
+
+        @Override
+        public float flow(Data data, int count, boolean measure)
+        {
+            if ( device == null || deviceWaterVersion != data.waterVersion )
+            {
+                device = new float[ data.size * data.size ];
+                for ( int i = 0 ; i < device.length ; i++ ) {
+                    device[i] = data.water.get( i );
+                }
+                deviceWaterVersion = data.waterVersion;
+                uploads++;
+            }
+            for ( int i = 0 ; i < device.length ; i++ ) {
+                device[i] += count;
+            }
+            data.setDeviceResident( this );
+            return Float.NaN;
+        }
+
+        @Override
+        public void readBack(Data data)
+        {
+            for ( int i = 0 ; i < device.length ; i++ ) {
+                data.water.put( i, device[i] );
+            }
+            readBacks++;
+        }
+
+        @Override
+        public boolean readSnapshot(Data data)
+        {
+            // snapshot of the first cell only, to tell it apart from readBack()
+            data.water.put( 0, device[0] );
+            snapshots++;
+            return true;
+        }
+    }
+
+    @Test
+    public void testWaterIsReadBackOnDemand()
+    {
+        final FakeDeviceEngine engine = new FakeDeviceEngine();
+        final Data data = new Data( 5, Data.Storage.HEAP );
+        data.setFlowEngine( engine );
+
+        data.flow( 10 );
+        data.flow( 10 );
+        assertEquals( 1, engine.uploads );
+        assertEquals( 0, engine.readBacks );
+
+        assertEquals( 20, data.water( 2, 2 ), 0f );
+        assertEquals( 20, data.water( 3 ), 0f );
+        assertEquals( 1, engine.readBacks );
+
+        // reading does not make the device copy outdated
+        data.flow( 5 );
+        assertEquals( 1, engine.uploads );
+        assertEquals( 25*25, data.getTotalWater(), 0 );
+        assertEquals( 2, engine.readBacks );
+    }
+
+    @Test
+    public void testHostChangesAreUploaded()
+    {
+        final FakeDeviceEngine engine = new FakeDeviceEngine();
+        final Data data = new Data( 5, Data.Storage.HEAP );
+        data.setFlowEngine( engine );
+
+        data.flow( 10 );
+        // changing a single cell must not lose the other cells
+        data.setWater( 0, 0, 100 );
+        assertEquals( 1, engine.readBacks );
+
+        data.flow( 1 );
+        assertEquals( 2, engine.uploads );
+        assertEquals( 101, data.water( 0, 0 ), 0f );
+        assertEquals( 11, data.water( 1, 1 ), 0f );
+    }
+
+    @Test
+    public void testOtherEngineSeesDeviceResult()
+    {
+        final FakeDeviceEngine engine = new FakeDeviceEngine();
+        final Data data = new Data( 5, Data.Storage.HEAP );
+        data.setFlowEngine( engine );
+        data.flow( 3 );
+
+        // flat terrain covered by the same amount of water, nothing moves
+        data.flow( 1, FlowEngines.get( JavaFlowEngine.NAME ) );
+        assertEquals( 1, engine.readBacks );
+        assertEquals( 3, data.water( 4, 4 ), 0f );
+
+        // the Java engine may have changed the water
+        data.flow( 1 );
+        assertEquals( 2, engine.uploads );
+    }
+
+    @Test
+    public void testSnapshotsDoNotWaitForDevice()
+    {
+        final FakeDeviceEngine engine = new FakeDeviceEngine();
+        final Data data = new Data( 5, Data.Storage.HEAP );
+        data.setFlowEngine( engine );
+        data.setDeviceSnapshots( true );
+
+        data.flow( 10 );
+        assertEquals( 0, data.water( 0, 0 ), 0f );
+        data.dirty = false;
+        assertTrue( data.pollDeviceSnapshot() );
+        assertTrue( data.dirty );
+        assertEquals( 10, data.water( 0, 0 ), 0f );
+        assertEquals( 0, data.water( 1, 1 ), 0f );
+        assertEquals( 0, engine.readBacks );
+
+        // changing water waits for the current state
+        data.setWater( 1, 1, 100 );
+        assertEquals( 1, engine.readBacks );
+        assertEquals( 10, data.water( 2, 2 ), 0f );
+        assertFalse( data.pollDeviceSnapshot() );
+        assertEquals( 1, engine.snapshots );
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNoSnapshotsWithHalfStorage()
+    {
+        // snapshots would end up in the float copy that HALF storage never reads back
+        new Data( 5, Data.Storage.HALF ).setDeviceSnapshots( true );
+    }
+}
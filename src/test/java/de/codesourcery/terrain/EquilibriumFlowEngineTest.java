@@ -0,0 +1,126 @@
+package de.codesourcery.terrain;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class EquilibriumFlowEngineTest
+{
+    // two 3x3 pits connected by a channel of height 4
+    private static Data createPits()
+    {
+        final Data data = new Data( 12 );
+        data.setFlowEngine( FlowEngines.get( EquilibriumFlowEngine.NAME ) );
+        for ( int y = 0 ; y < data.size ; y++ )
+        {
+            for ( int x = 0 ; x < data.size ; x++ ) {
+                data.setHeight( x, y, 10 );
+            }
+        }
+        for ( int y = 2 ; y <= 4 ; y++ )
+        {
+            for ( int x = 2 ; x <= 4 ; x++ )
+            {
+                data.setHeight( x, y, 0 );
+                data.setHeight( x+5, y, 0 );
+            }
+        }
+        data.setHeight( 5, 3, 4 );
+        data.setHeight( 6, 3, 4 );
+        return data;
+    }
+
+    private static void fillLeftPit(Data data,float amount)
+    {
+        for ( int y = 2 ; y <= 4 ; y++ )
+        {
+            for ( int x = 2 ; x <= 4 ; x++ ) {
+                data.setWater( x, y, amount );
+            }
+        }
+    }
+
+    @Test
+    public void testOverflowIntoNeighbouringPit()
+    {
+        final Data data = createPits();
+        fillLeftPit( data, 6 );
+        data.flow( 1 );
+        for ( int y = 2 ; y <= 4 ; y++ )
+        {
+            for ( int x = 2 ; x <= 4 ; x++ )
+            {
+                assertEquals( 4, data.water( x, y ), 1e-5f );
+                assertEquals( 2, data.water( x+5, y ), 1e-5f );
+            }
+        }
+        assertEquals( 0, data.water( 5, 3 ), 0f );
+        assertEquals( 54, data.getWaterSum(), 1e-4f );
+    }
+
+    @Test
+    public void testPitsMergeIntoSingleLake()
+    {
+        final Data data = createPits();
+        // both pits filled up to the channel plus 50 spread over 20 cells
+        fillLeftPit( data, ( 72 + 50 ) / 9f );
+        data.flow( 1 );
+        for ( int y = 2 ; y <= 4 ; y++ )
+        {
+            for ( int x = 2 ; x <= 4 ; x++ )
+            {
+                assertEquals( 6.5f, data.water( x, y ), 1e-4f );
+                assertEquals( 6.5f, data.water( x+5, y ), 1e-4f );
+            }
+        }
+        assertEquals( 2.5f, data.water( 5, 3 ), 1e-4f );
+        assertEquals( 0, data.water( 0, 0 ), 0f );
+    }
+
+    @Test
+    public void testCloseToIterativeResult()
+    {
+        final Data data = FlowUntilStableTest.createBowl( GatherFlowEngine.NAME );
+        final Data copy = FlowUntilStableTest.createBowl( EquilibriumFlowEngine.NAME );
+        try
+        {
+            data.flowUntilStable( 0.001f, 100000 );
+            // converges immediately
+            assertEquals( Data.STABILITY_CHECK_INTERVAL, copy.flowUntilStable( 0.001f, 100000 ) );
+            assertEquals( 0, copy.getResidual(), 0f );
+
+            double expectedSum = 0;
+            double actualSum = 0;
+            double deviation = 0;
+            for ( int i = 0 ; i < data.size * data.size ; i++ )
+            {
+                expectedSum += data.water( i );
+                actualSum += copy.water( i );
+                deviation += Math.abs( data.water( i ) - copy.water( i ) );
+            }
+            assertEquals( 20*10*10, actualSum, 1e-2 );
+            assertEquals( expectedSum, actualSum, expectedSum * 1e-3 );
+            assertTrue( "Deviation: "+deviation, deviation < expectedSum * 0.01 );
+
+            // the lake is flat
+            float level = Float.NaN;
+            for ( int i = 0 ; i < copy.size * copy.size ; i++ )
+            {
+                if ( copy.water( i ) > 0 )
+                {
+                    final float surface = copy.height( i ) + copy.water( i );
+                    if ( Float.isNaN( level ) ) {
+                        level = surface;
+                    }
+                    assertEquals( level, surface, 1e-3f );
+                }
+            }
+        }
+        finally
+        {
+            data.dispose();
+            copy.dispose();
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package de.codesourcery.terrain;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class FlowUntilStableTest
+{
+    private static final float TOLERANCE = 0.01f;
+    private static final int MAX_ITERATIONS = 100000;
+
+    // bowl-shaped terrain with a column of water at one side
+    static Data createBowl(String engine)
+    {
+        final Data data = new Data( 64 );
+        data.setFlowEngine( FlowEngines.get( engine ) );
+        for ( int y = 0 ; y < data.size ; y++ )
+        {
+            for ( int x = 0 ; x < data.size ; x++ )
+            {
+                final int dx = x - data.size/2;
+                final int dy = y - data.size/2;
+                data.setHeight( x, y, (int) Math.sqrt( dx*dx + dy*dy ) );
+            }
+        }
+        for ( int y = 5 ; y < 15 ; y++ )
+        {
+            for ( int x = 5 ; x < 15 ; x++ ) {
+                data.setWater( x, y, 20 );
+            }
+        }
+        return data;
+    }
+
+    private void assertConverges(String engine,int temporalBlockingDepth)
+    {
+        final Data data = createBowl( engine );
+        try
+        {
+            data.setTemporalBlockingDepth( temporalBlockingDepth );
+            final int iterations = data.flowUntilStable( TOLERANCE, MAX_ITERATIONS );
+            assertTrue( engine+": did not converge", iterations < MAX_ITERATIONS );
+            assertEquals( 0, iterations % Data.STABILITY_CHECK_INTERVAL );
+            assertTrue( engine+": residual "+data.getResidual(), data.getResidual() < TOLERANCE );
+
+            // a single additional check interval must not move more water than the tolerance
+            assertEquals( Data.STABILITY_CHECK_INTERVAL, data.flowUntilStable( TOLERANCE, MAX_ITERATIONS ) );
+        }
+        finally
+        {
+            data.dispose();
+        }
+    }
+
+    @Test
+    public void testJavaModesConverge()
+    {
+        assertConverges( JavaFlowEngine.NAME, 1 );
+        assertConverges( GatherFlowEngine.NAME, 1 );
+        assertConverges( GatherFlowEngine.NAME, 4 );
+        if ( FlowEngines.find( VectorFlowEngine.NAME ).isAvailable() ) {
+            assertConverges( VectorFlowEngine.NAME, 1 );
+        }
+    }
+
+    @Test
+    public void testIterationsAreCapped()
+    {
+        final Data data = createBowl( GatherFlowEngine.NAME );
+        try
+        {
+            assertEquals( 25, data.flowUntilStable( 0, 25 ) );
+            assertTrue( data.getResidual() > 0 );
+        }
+        finally
+        {
+            data.dispose();
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package de.codesourcery.terrain;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class FlowWorkersTest
+{
+    private final FlowWorkers workers = new FlowWorkers( 4, "test" );
+
+    @After
+    public void tearDown()
+    {
+        workers.dispose();
+    }
+
+    @Test
+    public void testAllStepsRunInOrder()
+    {
+        final AtomicInteger runs = new AtomicInteger();
+        final int[] serialSteps = new int[1];
+        for ( int job = 0 ; job < 3 ; job++ )
+        {
+            runs.set( 0 );
+            serialSteps[0] = 0;
+            workers.execute( new FlowWorkers.Job()
+            {
+                @Override
+                public int getStepCount()
+                {
+                    return 3;
+                }
+
+                @Override
+                public void beforeStep(int iteration, int step)
+                {
+                    assertEquals( serialSteps[0], iteration * 3 + step );
+                    assertEquals( serialSteps[0] * 4, runs.get() );
+                }
+
+                @Override
+                public void runStep(int iteration, int step, int workerIndex)
+                {
+                    runs.incrementAndGet();
+                }
+
+                @Override
+                public void afterStep(int iteration, int step)
+                {
+                    serialSteps[0]++;
+                    assertEquals( serialSteps[0] * 4, runs.get() );
+                }
+            }, 10 );
+            assertEquals( 30, serialSteps[0] );
+            assertEquals( 120, runs.get() );
+        }
+    }
+
+    @Test
+    public void testJobsOfDifferentLength()
+    {
+        final AtomicInteger runs = new AtomicInteger();
+        for ( int job = 0 ; job < 1000 ; job++ )
+        {
+            // alternate short and long jobs so that a worker
+            // lagging behind would run into the next job
+            final int iterations = ( job % 2 ) == 0 ? 1 : 10;
+            runs.set( 0 );
+            workers.execute( new FlowWorkers.Job()
+            {
+                @Override
+                public int getStepCount()
+                {
+                    return 1;
+                }
+
+                @Override
+                public void runStep(int iteration, int step, int workerIndex)
+                {
+                    runs.incrementAndGet();
+                }
+            }, iterations );
+            assertEquals( iterations * 4, runs.get() );
+        }
+    }
+
+    @Test
+    public void testFailureIsPropagated()
+    {
+        final IllegalStateException ex = new IllegalStateException("expected");
+        try
+        {
+            workers.execute( new FlowWorkers.Job()
+            {
+                @Override
+                public int getStepCount()
+                {
+                    return 2;
+                }
+
+                @Override
+                public void runStep(int iteration, int step, int workerIndex)
+                {
+                    if ( iteration == 5 && workerIndex == 2 ) {
+                        throw ex;
+                    }
+                }
+            }, 10 );
+            fail("Should've failed");
+        }
+        catch(IllegalStateException e)
+        {
+            assertSame( ex, e );
+        }
+
+        // pool must still be usable
+        final AtomicInteger runs = new AtomicInteger();
+        workers.execute( new FlowWorkers.Job()
+        {
+            @Override
+            public int getStepCount()
+            {
+                return 1;
+            }
+
+            @Override
+            public void runStep(int iteration, int step, int workerIndex)
+            {
+                runs.incrementAndGet();
+            }
+        }, 5 );
+        assertEquals( 20, runs.get() );
+    }
+}
@@ -0,0 +1,79 @@
+package de.codesourcery.terrain;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class MultigridTest
+{
+    private static final float TOLERANCE = 0.01f;
+    private static final int MAX_ITERATIONS = 100000;
+
+    // bowl-shaped terrain with a column of water at one side
+    private static Data createBowl(int size)
+    {
+        final Data data = new Data( size );
+        data.setFlowEngine( FlowEngines.get( GatherFlowEngine.NAME ) );
+        for ( int y = 0 ; y < data.size ; y++ )
+        {
+            for ( int x = 0 ; x < data.size ; x++ )
+            {
+                final int dx = x - data.size/2;
+                final int dy = y - data.size/2;
+                data.setHeight( x, y, (int) Math.sqrt( dx*dx + dy*dy ) / 2 );
+            }
+        }
+        for ( int y = 5 ; y < 25 ; y++ )
+        {
+            for ( int x = 5 ; x < 25 ; x++ ) {
+                data.setWater( x, y, 20 );
+            }
+        }
+        return data;
+    }
+
+    @Test
+    public void testRestrictKeepsWater()
+    {
+        final Data data = createBowl( 65 );
+        final Data coarse = Multigrid.restrict( data );
+        assertEquals( 33, coarse.size );
+        // 4 cells per coarse cell
+        assertEquals( data.getWaterSum(), 4 * coarse.getWaterSum(), 1e-2f );
+        assertEquals( ( data.height( 0, 0 ) + data.height( 1, 0 ) + data.height( 0, 1 ) + data.height( 1, 1 ) ) / 4,
+                coarse.height( 0, 0 ), 1e-5f );
+    }
+
+    @Test
+    public void testFewerIterations()
+    {
+        final Data plain = createBowl( 129 );
+        final Data data = createBowl( 129 );
+        try
+        {
+            final int expectedIterations = plain.flowUntilStable( TOLERANCE, MAX_ITERATIONS );
+            final int iterations = new Multigrid().flowUntilStable( data, TOLERANCE, MAX_ITERATIONS );
+            assertTrue( "Iterations: "+iterations+" vs. "+expectedIterations, iterations * 4 < expectedIterations );
+            assertTrue( data.getResidual() < TOLERANCE );
+
+            double expectedSum = 0;
+            double actualSum = 0;
+            double deviation = 0;
+            for ( int i = 0 ; i < data.size * data.size ; i++ )
+            {
+                expectedSum += plain.water( i );
+                actualSum += data.water( i );
+                deviation += Math.abs( plain.water( i ) - data.water( i ) );
+            }
+            // the iterative engines drop tiny amounts of water, see Data.EPSILON
+            assertEquals( expectedSum, actualSum, expectedSum * 1e-3 );
+            assertTrue( "Deviation: "+deviation, deviation < expectedSum * 0.05 );
+        }
+        finally
+        {
+            plain.dispose();
+            data.dispose();
+        }
+    }
+}
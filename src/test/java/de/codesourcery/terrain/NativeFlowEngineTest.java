@@ -0,0 +1,200 @@
+package de.codesourcery.terrain;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+public class NativeFlowEngineTest
+{
+    private Data load(Data.Storage storage) throws IOException
+    {
+        final Data data;
+        try ( InputStream in = getClass().getResourceAsStream( "/test.s" ) )
+        {
+            if ( in == null ) {
+                throw new FileNotFoundException( "Failed to load test data" );
+            }
+            data = Data.read( in, storage );
+        }
+        data.initWater( 1, 10 );
+        return data;
+    }
+
+    private static float[] water(Data data)
+    {
+        final float[] result = new float[ data.size * data.size ];
+        for ( int i = 0 ; i < result.length ; i++ ) {
+            result[i] = data.water( i );
+        }
+        return result;
+    }
+
+    private float[] run(String engine,int threadCount,Data.Storage storage) throws IOException
+    {
+        final Data data = load( storage );
+        final int oldThreadCount = AbstractJavaFlowEngine.getThreadCount();
+        try
+        {
+            data.setFlowEngine( FlowEngines.get( engine ) );
+            AbstractJavaFlowEngine.setThreadCount( threadCount );
+            data.flow( 1 );
+            data.flow( 20 );
+            return water( data );
+        }
+        finally
+        {
+            AbstractJavaFlowEngine.setThreadCount( oldThreadCount );
+            data.dispose();
+        }
+    }
+
+    @Test
+    public void testParallelMatchesGather() throws IOException
+    {
+        Assume.assumeTrue( "libflow not available", FlowEngines.find( NativeFlowEngine.NAME ).isAvailable() );
+        final float[] expected = run( GatherFlowEngine.NAME, 1, Data.Storage.HEAP );
+        for ( int threads : new int[] {1,3,4} )
+        {
+            final float[] actual = run( NativeFlowEngine.NAME, threads, threads == 3 ? Data.Storage.DIRECT : Data.Storage.HEAP );
+            for ( int i = 0 ; i < expected.length ; i++ )
+            {
+                if ( Float.floatToIntBits( expected[i] ) != Float.floatToIntBits( actual[i] ) ) {
+                    assertEquals( "Threads: "+threads+", cell "+i, expected[i], actual[i], 0f );
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testUnevenRowSplit() throws IOException
+    {
+        Assume.assumeTrue( "libflow not available", FlowEngines.find( NativeFlowEngine.NAME ).isAvailable() );
+        // 257 rows on 32 threads or 10 rows on 8 threads don't divide evenly,
+        // odd repeat counts leave the result in the scratch buffer
+        final float[] expected = run( GatherFlowEngine.NAME, 1, Data.Storage.HEAP );
+        final float[] actual = run( NativeFlowEngine.NAME, 32, Data.Storage.HEAP );
+        for ( int i = 0 ; i < expected.length ; i++ )
+        {
+            if ( Float.floatToIntBits( expected[i] ) != Float.floatToIntBits( actual[i] ) ) {
+                assertEquals( "cell "+i, expected[i], actual[i], 0f );
+            }
+        }
+
+        for ( int threads : new int[] {3,8,16} )
+        {
+            final float[][] results = new float[2][];
+            int idx = 0;
+            for ( String engine : new String[] { GatherFlowEngine.NAME, NativeFlowEngine.NAME } )
+            {
+                final Data data = new Data( 10, Data.Storage.HEAP );
+                final int oldThreadCount = AbstractJavaFlowEngine.getThreadCount();
+                try
+                {
+                    for ( int y = 0 ; y < data.size ; y++ )
+                    {
+                        for ( int x = 0 ; x < data.size ; x++ )
+                        {
+                            data.setHeight( x, y, (x*7 + y*3) % 5 );
+                            data.setWater( x, y, 1 );
+                        }
+                    }
+                    data.setFlowEngine( FlowEngines.get( engine ) );
+                    AbstractJavaFlowEngine.setThreadCount( engine.equals( NativeFlowEngine.NAME ) ? threads : 1 );
+                    data.flow( 7 );
+                    results[idx++] = water( data );
+                }
+                finally
+                {
+                    AbstractJavaFlowEngine.setThreadCount( oldThreadCount );
+                    data.dispose();
+                }
+            }
+            for ( int i = 0 ; i < results[0].length ; i++ ) {
+                assertEquals( "Threads: "+threads+", cell "+i, results[0][i], results[1][i], 0f );
+            }
+        }
+    }
+
+    @Test
+    public void testAsyncRun() throws IOException, InterruptedException, ExecutionException
+    {
+        final NativeFlowEngine engine = (NativeFlowEngine) FlowEngines.find( NativeFlowEngine.NAME );
+        Assume.assumeTrue( "libflow not available", engine.isAvailable() );
+        final Data expected = load( Data.Storage.DIRECT );
+        final Data data = load( Data.Storage.DIRECT );
+        expected.flow( 100, engine );
+
+        final List<Integer> reported = new ArrayList<>();
+        assertEquals( 100, (int) engine.flowAsync( data, 100, 30, (iteration,moved) -> reported.add( iteration ) ).get() );
+        assertEquals( Arrays.asList( 30, 60, 90, 100 ), reported );
+        assertArrayEquals( water( expected ), water( data ), 0f );
+    }
+
+    @Test
+    public void testAsyncRunCanBeStopped() throws IOException, InterruptedException, ExecutionException
+    {
+        final NativeFlowEngine engine = (NativeFlowEngine) FlowEngines.find( NativeFlowEngine.NAME );
+        Assume.assumeTrue( "libflow not available", engine.isAvailable() );
+        final Data expected = load( Data.Storage.HEAP );
+        final Data data = load( Data.Storage.HEAP );
+        expected.flow( 20, engine );
+
+        final List<Integer> reported = new ArrayList<>();
+        final FlowProgressListener listener = (iteration,moved) ->
+        {
+            reported.add( iteration );
+            return iteration < 20;
+        };
+        assertEquals( 20, (int) engine.flowAsync( data, 1000, 10, listener ).get() );
+        assertEquals( Arrays.asList( 10, 20, 20 ), reported );
+        assertArrayEquals( water( expected ), water( data ), 0f );
+    }
+
+    @Test
+    public void testCancelledAsyncRunStopsBeforeFutureIsDone() throws Exception
+    {
+        final NativeFlowEngine engine = (NativeFlowEngine) FlowEngines.find( NativeFlowEngine.NAME );
+        Assume.assumeTrue( "libflow not available", engine.isAvailable() );
+        final Data expected = load( Data.Storage.HEAP );
+        final Data data = load( Data.Storage.HEAP );
+        expected.flow( 5, engine );
+
+        final CompletableFuture<Future<Integer>> future = new CompletableFuture<>();
+        final List<Integer> reported = new ArrayList<>();
+        final FlowProgressListener listener = (iteration,moved) ->
+        {
+            reported.add( iteration );
+            if ( iteration == 5 ) {
+                assertTrue( future.join().cancel( true ) );
+            }
+            return true;
+        };
+        final Future<Integer> result = engine.flowAsync( data, 1000, 1, listener );
+        future.complete( result );
+        try {
+            result.get();
+            fail( "Run should have been cancelled" );
+        } catch(CancellationException e) {
+            // ok
+        }
+        assertTrue( result.isCancelled() );
+        // the native run already returned and reported the iteration it stopped at
+        assertEquals( Arrays.asList( 1, 2, 3, 4, 5, 5 ), reported );
+        assertArrayEquals( water( expected ), water( data ), 0f );
+    }
+}
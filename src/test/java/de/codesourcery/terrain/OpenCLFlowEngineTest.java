@@ -0,0 +1,100 @@
+package de.codesourcery.terrain;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+
+public class OpenCLFlowEngineTest
+{
+    private Data load() throws IOException
+    {
+        final Data data;
+        try ( InputStream in = getClass().getResourceAsStream( "/test.s" ) )
+        {
+            if ( in == null ) {
+                throw new FileNotFoundException( "Failed to load test data" );
+            }
+            data = Data.read( in, Data.Storage.HEAP );
+        }
+        data.initWater( 1, 10 );
+        return data;
+    }
+
+    private float[] run(String engine) throws IOException
+    {
+        final Data data = load();
+        try
+        {
+            data.setFlowEngine( FlowEngines.get( engine ) );
+            // odd number of iterations per call
+            data.flow( 1 );
+            data.flow( 20 );
+            final float[] result = new float[ data.size * data.size ];
+            for ( int i = 0 ; i < result.length ; i++ ) {
+                result[i] = data.water( i );
+            }
+            return result;
+        }
+        finally {
+            data.dispose();
+        }
+    }
+
+    @Test
+    public void testMatchesGather() throws IOException
+    {
+        Assume.assumeTrue( "OpenCL not available", FlowEngines.find( OpenCLFlowEngine.NAME ).isAvailable() );
+        final float[] expected = run( GatherFlowEngine.NAME );
+        final float[] actual = run( OpenCLFlowEngine.NAME );
+        // devices may round divisions differently
+        for ( int i = 0 ; i < expected.length ; i++ ) {
+            assertEquals( "cell "+i, expected[i], actual[i], 1e-3f * Math.max( 1, expected[i] ) );
+        }
+        // no races between work-items
+        final float[] again = run( OpenCLFlowEngine.NAME );
+        for ( int i = 0 ; i < expected.length ; i++ ) {
+            assertEquals( "cell "+i, actual[i], again[i], 0f );
+        }
+    }
+
+    @Test
+    public void testKeepsWater() throws IOException
+    {
+        Assume.assumeTrue( "OpenCL not available", FlowEngines.find( OpenCLFlowEngine.NAME ).isAvailable() );
+        final Data data = load();
+        try
+        {
+            data.setFlowEngine( FlowEngines.get( OpenCLFlowEngine.NAME ) );
+            data.setConservationCheck( true );
+            final double before = data.getTotalWater();
+            data.flow( 50 );
+            final WaterBalance balance = data.getWaterBalance();
+            assertEquals( 50, balance.getSteps() );
+            // only clamping tiny amounts of water destroys any
+            assertTrue( balance.toString(), balance.getNetGain() < before * 1e-5 );
+            assertTrue( balance.toString(), balance.getNetLoss() < before * 1e-3 );
+        }
+        finally {
+            data.dispose();
+        }
+    }
+
+    @Test
+    public void testTileSizeFitsDeviceLimits()
+    {
+        assertArrayEquals( new int[]{ 16, 16 }, OpenCLExecutor.getTileSize( 1024, 1024, 1024 ) );
+        assertArrayEquals( new int[]{ 16, 8 }, OpenCLExecutor.getTileSize( 200, 1024, 1024 ) );
+        // per-dimension limits
+        assertArrayEquals( new int[]{ 4, 64 }, OpenCLExecutor.getTileSize( 1024, 4, 1024 ) );
+        assertArrayEquals( new int[]{ 256, 1 }, OpenCLExecutor.getTileSize( 1024, 1024, 1 ) );
+        assertArrayEquals( new int[]{ 8, 8 }, OpenCLExecutor.getTileSize( 1024, 8, 8 ) );
+        assertArrayEquals( new int[]{ 1, 1 }, OpenCLExecutor.getTileSize( 1, 1024, 1024 ) );
+    }
+}
@@ -10,8 +10,7 @@ import java.io.InputStream;
 
 public class PerformanceTest
 {
-    @Test
-    public void testPerformance() throws IOException
+    private Data loadTestData() throws IOException
     {
         final Data data;
         try ( InputStream in = getClass().getResourceAsStream( "/test.s" ) )
@@ -22,6 +21,13 @@ public class PerformanceTest
             data = Data.read( in );
             data.initWater( 1, 10 );
         }
+        return data;
+    }
+
+    @Test
+    public void testPerformance() throws IOException
+    {
+        final Data data = loadTestData();
 
         long start = System.currentTimeMillis();
         for ( int i = 0 ; i < 500 ; i++ )
@@ -31,4 +37,31 @@ public class PerformanceTest
         long end = System.currentTimeMillis();
         System.out.println("1000 iterations took "+(end-start));
     }
+
+    @Test
+    public void testPerformanceByEngine() throws IOException
+    {
+        for ( FlowEngine engine : FlowEngines.getEngines() )
+        {
+            if ( ! engine.isAvailable() ) {
+                System.out.println( engine.getName()+": not available" );
+                continue;
+            }
+            final Data data = loadTestData();
+            data.setFlowEngine( engine );
+
+            // warm-up
+            for ( int i = 0 ; i < 50 ; i++ ) {
+                data.flow(10);
+            }
+            long start = System.currentTimeMillis();
+            for ( int i = 0 ; i < 500 ; i++ )
+            {
+                data.flow(10);
+            }
+            long end = System.currentTimeMillis();
+            System.out.println(engine.getName()+": 5000 iterations took "+(end-start)+" ms, water: "+data.getWaterSum());
+            data.dispose();
+        }
+    }
 }
@@ -0,0 +1,65 @@
+package de.codesourcery.terrain;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+public class ProgramCacheTest
+{
+    private File directory;
+
+    @Before
+    public void setUp() throws IOException
+    {
+        directory = Files.createTempDirectory( "terrain" ).toFile();
+    }
+
+    @After
+    public void tearDown()
+    {
+        final File[] files = directory.listFiles();
+        if ( files != null )
+        {
+            for ( File file : files ) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void testKeyDependsOnDeviceDriverAndSource()
+    {
+        final String key = ProgramCache.key( "device", "1.0", "source" );
+        assertEquals( key, ProgramCache.key( "device", "1.0", "source" ) );
+        assertNotEquals( key, ProgramCache.key( "device2", "1.0", "source" ) );
+        assertNotEquals( key, ProgramCache.key( "device", "1.1", "source" ) );
+        assertNotEquals( key, ProgramCache.key( "device", "1.0", "source2" ) );
+        assertNotEquals( key, ProgramCache.key( "device1", ".0", "source" ) );
+    }
+
+    @Test
+    public void testStoreAndLoad()
+    {
+        final ProgramCache cache = new ProgramCache( new File( directory, "cache" ) );
+        final String key = ProgramCache.key( "device", "1.0", "source" );
+        assertNull( cache.load( key ) );
+
+        cache.store( key, new byte[]{ 1, 2, 3 } );
+        assertArrayEquals( new byte[]{ 1, 2, 3 }, new ProgramCache( new File( directory, "cache" ) ).load( key ) );
+
+        cache.store( key, new byte[]{ 4 } );
+        assertArrayEquals( new byte[]{ 4 }, cache.load( key ) );
+        // no temporary files left behind
+        assertEquals( 1, new File( directory, "cache" ).listFiles().length );
+    }
+}
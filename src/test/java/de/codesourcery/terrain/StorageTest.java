@@ -0,0 +1,193 @@
+package de.codesourcery.terrain;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+
+public class StorageTest
+{
+    private Data loadTestData(Data.Storage storage) throws IOException
+    {
+        final Data data;
+        try ( InputStream in = getClass().getResourceAsStream( "/test.s" ) )
+        {
+            if ( in == null ) {
+                throw new FileNotFoundException( "Failed to load test data" );
+            }
+            data = Data.read( in, storage );
+            data.initWater( 1, 10 );
+        }
+        return data;
+    }
+
+    private float[] run(FlowEngine engine,Data.Storage storage) throws IOException
+    {
+        final Data data = loadTestData( storage );
+        try
+        {
+            assertEquals( storage, data.getStorage() );
+            data.setFlowEngine( engine );
+            for ( int i = 0 ; i < 5 ; i++ ) {
+                data.flow( 7 );
+            }
+            final float[] result = new float[ data.size * data.size ];
+            for ( int i = 0 ; i < result.length ; i++ ) {
+                result[i] = data.water( i );
+            }
+            return result;
+        }
+        finally
+        {
+            data.dispose();
+        }
+    }
+
+    @Test
+    public void testDirectStorageGivesSameResults() throws IOException
+    {
+        assertSameResults( Data.Storage.DIRECT );
+    }
+
+    @Test
+    public void testTiledStorageGivesSameResults() throws IOException
+    {
+        assertSameResults( Data.Storage.TILED );
+    }
+
+    private void assertSameResults(Data.Storage storage) throws IOException
+    {
+        for ( FlowEngine engine : FlowEngines.getEngines() )
+        {
+            if ( ! engine.isAvailable() ) {
+                continue;
+            }
+            final float[] expected = run( engine, Data.Storage.HEAP );
+            final float[] actual = run( engine, storage );
+            for ( int i = 0 ; i < expected.length ; i++ )
+            {
+                if ( Float.floatToIntBits( expected[i] ) != Float.floatToIntBits( actual[i] ) ) {
+                    assertEquals( engine.getName()+", cell "+i, expected[i], actual[i], 0f );
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testTiledLayoutCoversAllCells()
+    {
+        // not a multiple of the block size
+        final TiledLayout layout = new TiledLayout( TiledLayout.BLOCK_SIZE * 2 + 1 );
+        final boolean[] used = new boolean[ layout.getLength() ];
+        for ( int y = 0 ; y < layout.size ; y++ )
+        {
+            for ( int x = 0 ; x < layout.size ; x++ )
+            {
+                final int idx = layout.index( x, y );
+                assertFalse( "Index used twice: "+x+","+y, used[idx] );
+                used[idx] = true;
+                assertEquals( idx, layout.index( y*layout.size+x ) );
+            }
+        }
+        // cells above and below share a block
+        assertEquals( TiledLayout.BLOCK_SIZE, layout.index( 5, 6 ) - layout.index( 5, 5 ) );
+    }
+
+    @Test
+    public void testHalfFloatConversion()
+    {
+        // all finite values survive a round-trip
+        for ( int bits = 0 ; bits <= 0xffff ; bits++ )
+        {
+            final short half = (short) bits;
+            final float value = HalfFloat.toFloat( half );
+            if ( ! Float.isNaN( value ) ) {
+                assertEquals( "0x"+Integer.toHexString( bits ), half, HalfFloat.toHalf( value ) );
+            }
+        }
+        assertTrue( Float.isNaN( HalfFloat.toFloat( HalfFloat.toHalf( Float.NaN ) ) ) );
+        assertEquals( Float.POSITIVE_INFINITY, HalfFloat.toFloat( HalfFloat.toHalf( 65520f ) ), 0f );
+        assertEquals( 65504f, HalfFloat.toFloat( HalfFloat.toHalf( 65519f ) ), 0f );
+        assertEquals( 0x1p-24f, HalfFloat.toFloat( HalfFloat.toHalf( 0x1.8p-25f ) ), 0f );
+        assertEquals( 0f, HalfFloat.toFloat( HalfFloat.toHalf( 0x1p-25f ) ), 0f );
+        // ties round to even
+        assertEquals( 2048f, HalfFloat.toFloat( HalfFloat.toHalf( 2049f ) ), 0f );
+        assertEquals( 2052f, HalfFloat.toFloat( HalfFloat.toHalf( 2051f ) ), 0f );
+        assertEquals( 0.099975586f, HalfFloat.toFloat( HalfFloat.toHalf( 0.1f ) ), 0f );
+    }
+
+    @Test
+    public void testHalfStorageStaysClose() throws IOException
+    {
+        for ( FlowEngine engine : FlowEngines.getEngines() )
+        {
+            if ( ! engine.isAvailable() ) {
+                continue;
+            }
+            final float[] expected = run( engine, Data.Storage.HEAP );
+            final float[] actual = run( engine, Data.Storage.HALF );
+            // rounded heights change where water settles, so only compare
+            // the amount of water and the average deviation per cell
+            double expectedSum = 0;
+            double actualSum = 0;
+            double deviation = 0;
+            for ( int i = 0 ; i < expected.length ; i++ )
+            {
+                expectedSum += expected[i];
+                actualSum += actual[i];
+                deviation += Math.abs( expected[i] - actual[i] );
+            }
+            assertEquals( engine.getName(), expectedSum, actualSum, expectedSum * 1e-4 );
+            assertTrue( engine.getName()+": "+deviation, deviation < expectedSum * 0.05 );
+        }
+    }
+
+    @Test
+    public void testSaveAndRead() throws IOException
+    {
+        final Data data = loadTestData( Data.Storage.DIRECT );
+        assertTrue( data.water.isDirect() );
+        final Data copy = saveAndRead( data, Data.Storage.HEAP );
+        for ( int i = 0 ; i < data.size * data.size ; i++ )
+        {
+            assertEquals( data.height( i ), copy.height( i ), 0f );
+            assertEquals( data.water( i ), copy.water( i ), 0f );
+        }
+
+        final Data tiled = saveAndRead( data, Data.Storage.TILED );
+        final Data tiledCopy = saveAndRead( tiled, Data.Storage.HEAP );
+        for ( int i = 0 ; i < data.size * data.size ; i++ )
+        {
+            assertEquals( data.height( i ), tiled.height( i ), 0f );
+            assertEquals( data.water( i ), tiled.water( i ), 0f );
+            assertEquals( data.water( i ), tiledCopy.water( i ), 0f );
+        }
+
+        // half-precision values convert to float exactly
+        final Data half = saveAndRead( data, Data.Storage.HALF );
+        final Data halfCopy = saveAndRead( half, Data.Storage.HEAP );
+        for ( int i = 0 ; i < data.size * data.size ; i++ )
+        {
+            assertEquals( data.height( i ), half.height( i ), 0.125f );
+            assertEquals( half.height( i ), halfCopy.height( i ), 0f );
+            assertEquals( half.water( i ), halfCopy.water( i ), 0f );
+        }
+    }
+
+    private static Data saveAndRead(Data data,Data.Storage storage) throws IOException
+    {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        data.save( out );
+        final Data result = Data.read( new ByteArrayInputStream( out.toByteArray() ), storage );
+        assertEquals( data.size, result.size );
+        assertEquals( storage, result.getStorage() );
+        return result;
+    }
+}
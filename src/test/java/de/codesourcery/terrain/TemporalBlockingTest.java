@@ -0,0 +1,64 @@
+package de.codesourcery.terrain;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+
+public class TemporalBlockingTest
+{
+    private Data loadTestData() throws IOException
+    {
+        final Data data;
+        try ( InputStream in = getClass().getResourceAsStream( "/test.s" ) )
+        {
+            if ( in == null ) {
+                throw new FileNotFoundException( "Failed to load test data" );
+            }
+            data = Data.read( in );
+            data.initWater( 1, 10 );
+        }
+        data.setFlowEngine( FlowEngines.get( GatherFlowEngine.NAME ) );
+        return data;
+    }
+
+    private float[] run(int depth) throws IOException
+    {
+        final Data data = loadTestData();
+        try
+        {
+            data.setTemporalBlockingDepth( depth );
+            for ( int i = 0 ; i < 5 ; i++ ) {
+                data.flow( 7 );
+            }
+            final float[] result = new float[ data.size * data.size ];
+            for ( int i = 0 ; i < result.length ; i++ ) {
+                result[i] = data.water( i );
+            }
+            return result;
+        }
+        finally
+        {
+            data.dispose();
+        }
+    }
+
+    @Test
+    public void testResultsMatchSeparateIterations() throws IOException
+    {
+        final float[] expected = run( 1 );
+        for ( int depth : new int[] { 2, 3, 8 } )
+        {
+            final float[] actual = run( depth );
+            for ( int i = 0 ; i < expected.length ; i++ )
+            {
+                if ( Float.floatToIntBits( expected[i] ) != Float.floatToIntBits( actual[i] ) ) {
+                    assertEquals( "Depth "+depth+", cell "+i, expected[i], actual[i], 0f );
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package de.codesourcery.terrain;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class WaterBalanceTest
+{
+    @Test
+    public void testSumIsAccurate()
+    {
+        final Data data = new Data( 257 );
+        for ( int y = 0 ; y < data.size ; y++ )
+        {
+            for ( int x = 0 ; x < data.size ; x++ )
+            {
+                final float value = x == 0 && y == 0 ? 1e7f : 0.001f;
+                data.setWater( x, y, value );
+            }
+        }
+        final double expected = 1e7 + (double) 0.001f * ( data.size * data.size - 1 );
+        // adding up floats serially loses all of the small values
+        assertEquals( expected, data.getTotalWater(), 1e-9 );
+        assertEquals( (float) expected, data.getWaterSum(), 0f );
+    }
+
+    @Test
+    public void testConservationCheck()
+    {
+        for ( FlowEngine engine : FlowEngines.getEngines() )
+        {
+            if ( ! engine.isAvailable() ) {
+                continue;
+            }
+            final Data data = FlowUntilStableTest.createBowl( engine.getName() );
+            try
+            {
+                assertNull( data.getWaterBalance() );
+                data.setConservationCheck( true );
+                final double before = data.getTotalWater();
+                data.flow( 30 );
+                data.flow( 20 );
+                final double after = data.getTotalWater();
+
+                final WaterBalance balance = data.getWaterBalance();
+                final String name = engine.getName();
+                assertEquals( name, engine.isIterative() ? 50 : 2, balance.getSteps() );
+                assertEquals( name, before - after, balance.getNetLoss() - balance.getNetGain(), before * 1e-12 );
+                assertTrue( name+": "+balance, balance.getNetGain() < before * 1e-5 );
+                assertTrue( name+": "+balance, balance.getNetLoss() < before * 1e-3 );
+                assertTrue( name+": "+balance, balance.getMaxChange() <= balance.getNetGain() + balance.getNetLoss() );
+
+                data.setConservationCheck( false );
+                assertNull( data.getWaterBalance() );
+            }
+            finally
+            {
+                data.dispose();
+            }
+        }
+    }
+
+    @Test
+    public void testRecordsNetChanges()
+    {
+        final WaterBalance balance = new WaterBalance();
+        balance.record( 10, 9 );
+        balance.record( 9, 9.5 );
+        balance.record( 9.5, 9.5 );
+        assertEquals( 3, balance.getSteps() );
+        assertEquals( 1, balance.getNetLoss(), 0 );
+        assertEquals( 0.5, balance.getNetGain(), 0 );
+        assertEquals( 1, balance.getMaxChange(), 0 );
+
+        balance.reset();
+        assertEquals( 0, balance.getSteps() );
+        assertEquals( 0, balance.getNetLoss(), 0 );
+    }
+}